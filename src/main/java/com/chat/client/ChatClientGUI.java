@@ -1,5 +1,6 @@
 package com.chat.client;
 
+import com.chat.model.ProtocoleBinaire;
 import com.chat.model.Utilisateur;
 
 import javax.swing.*;
@@ -12,7 +13,10 @@ import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 
 /**
@@ -27,11 +31,15 @@ public class ChatClientGUI extends JFrame {
   private static final Color WARNING_COLOR = new Color(255, 152, 0);
   private static final Color ERROR_COLOR = new Color(244, 67, 54);
   private static final Color BACKGROUND_COLOR = new Color(250, 250, 250);
+  // Dernière ligne d'un lot de messages hors ligne, à acquitter
+  private static final String MARQUE_ACCUSE = "[ACK] ";
 
   // Tout ce qu'il faut pour la connexion
   private Socket socket;
-  private PrintWriter out;
-  private BufferedReader in;
+  private OutputStream out;
+  private ProtocoleBinaire.Lecteur in;
+  // Passe à true quand le serveur a accepté le protocole binaire
+  private volatile boolean binaire = false;
   private String utilisateurActuel;
   private ArrayList<Utilisateur> utilisateurs;
 
@@ -56,6 +64,9 @@ public class ChatClientGUI extends JFrame {
   // Pour gérer l'état
   private boolean isConnected = false;
   private Map<String, JTextArea> conversationsPrivees = new HashMap<>();
+  // Les autres utilisateurs connectés, tenus à jour par /presence (seulement
+  // touché depuis le thread Swing)
+  private Set<String> connectes = new LinkedHashSet<>();
 
   // Pour accumuler les messages de groupes
   private boolean collectingGroupMessages = false;
@@ -375,29 +386,13 @@ public class ChatClientGUI extends JFrame {
     JButton refreshGroupsBtn = createModernButton("🔄 Actualiser", SECONDARY_COLOR);
     refreshGroupsBtn.addActionListener(e -> {
       rafraichirListeGroupes();
-      rafraichirListeUtilisateurs(); // Actualiser aussi les utilisateurs
-      SwingUtilities.invokeLater(() -> {
-        try {
-          Thread.sleep(500); // Attendre que les listes soient mises à jour
-          mettreAJourComboUtilisateurs(); // Mettre à jour le combo
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
-        }
-      });
+      mettreAJourComboUtilisateurs(); // Les utilisateurs sont déjà à jour grâce à /presence
     });
 
     JButton myGroupsBtn = createModernButton("📋 Mes groupes", PRIMARY_COLOR);
     myGroupsBtn.addActionListener(e -> {
       voirMesGroupes();
-      rafraichirListeUtilisateurs(); // Actualiser aussi les utilisateurs
-      SwingUtilities.invokeLater(() -> {
-        try {
-          Thread.sleep(500); // Attendre que les listes soient mises à jour
-          mettreAJourComboUtilisateurs(); // Mettre à jour le combo
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
-        }
-      });
+      mettreAJourComboUtilisateurs();
     });
 
     groupButtonPanel.add(refreshGroupsBtn);
@@ -598,11 +593,12 @@ public class ChatClientGUI extends JFrame {
   private void connecterAuServeur() {
     try {
       socket = new Socket("localhost", 1234);
-      out = new PrintWriter(socket.getOutputStream(), true);
-      in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      out = new BufferedOutputStream(socket.getOutputStream());
+      in = new ProtocoleBinaire.Lecteur(socket.getInputStream());
 
-      String serverPrompt = in.readLine();
-      out.println(utilisateurActuel);
+      String serverPrompt = in.lireLigne();
+      envoyerLigne(utilisateurActuel);
+      negocierBinaire();
 
       isConnected = true;
       statusLabel.setText("Connecte : " + utilisateurActuel);
@@ -613,10 +609,18 @@ public class ChatClientGUI extends JFrame {
 
       new Thread(() -> {
         try {
-          String message;
-          while ((message = in.readLine()) != null) {
-            final String msg = message;
-            SwingUtilities.invokeLater(() -> traiterMessage(msg));
+          if (binaire) {
+            ProtocoleBinaire.TrameRecue trame;
+            while ((trame = in.lireTrame()) != null) {
+              final ProtocoleBinaire.TrameRecue t = trame;
+              SwingUtilities.invokeLater(() -> traiterTrame(t));
+            }
+          } else {
+            String message;
+            while ((message = in.lireLigne()) != null) {
+              final String msg = message;
+              SwingUtilities.invokeLater(() -> traiterMessage(msg));
+            }
           }
         } catch (IOException e) {
           SwingUtilities.invokeLater(() -> {
@@ -632,7 +636,8 @@ public class ChatClientGUI extends JFrame {
       SwingUtilities.invokeLater(() -> {
         try {
           Thread.sleep(1000); // Attendre que la connexion soit établie
-          rafraichirListeUtilisateurs(); // Charger la liste des utilisateurs
+          // Une seule fois : ensuite le serveur nous prévient de chaque arrivée et départ
+          envoyerLigne("/presence");
           rafraichirListeGroupes();
           voirMesGroupes();
           Thread.sleep(500); // Attendre un peu plus pour les utilisateurs
@@ -650,6 +655,155 @@ public class ChatClientGUI extends JFrame {
     }
   }
 
+  // Demande le protocole binaire au serveur
+  // Les lignes qui arrivent avant la réponse (bienvenue, messages hors ligne)
+  // sont affichées normalement ; un vieux serveur répond "Commande inconnue" et
+  // on reste en texte
+  private void negocierBinaire() throws IOException {
+    envoyerLigne(ProtocoleBinaire.COMMANDE_NEGOCIATION);
+    // Un accusé ne peut pas partir pendant la négociation (on ne sait pas encore
+    // si le serveur attend du texte ou des trames) : il part juste après
+    String accuse = null;
+    try {
+      String ligne;
+      while ((ligne = in.lireLigne()) != null) {
+        if (ligne.equals(ProtocoleBinaire.ACCORD)) {
+          binaire = true;
+          return;
+        }
+        if (ligne.startsWith("Commande inconnue")) {
+          return;
+        }
+        if (ligne.startsWith(MARQUE_ACCUSE)) {
+          accuse = ligne;
+          continue;
+        }
+        final String msg = ligne;
+        SwingUtilities.invokeLater(() -> traiterMessage(msg));
+      }
+    } finally {
+      if (accuse != null) {
+        accuserReception(accuse);
+      }
+    }
+  }
+
+  // Fin d'un lot de messages hors ligne : on confirme pour recevoir la suite
+  private void accuserReception(String ligne) {
+    envoyerLigne("/ack " + ligne.substring(MARQUE_ACCUSE.length()));
+  }
+
+  // Envoie une ligne (message ou commande), en trame si on est en binaire
+  private synchronized void envoyerLigne(String ligne) {
+    if (tropLong(ligne)) {
+      return;
+    }
+    if (binaire) {
+      envoyerOctets(ProtocoleBinaire.encoder(ProtocoleBinaire.COMMANDE, ligne));
+    } else {
+      envoyerOctets((ligne + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private void envoyerGeneral(String message) {
+    if (tropLong(message)) {
+      return;
+    }
+    if (binaire) {
+      envoyerOctets(ProtocoleBinaire.encoder(ProtocoleBinaire.ENVOI_GENERAL, message));
+    } else {
+      envoyerLigne(message);
+    }
+  }
+
+  // En binaire le message n'a pas besoin d'être redécoupé par le serveur
+  private void envoyerPrive(String destinataire, String message) {
+    if (tropLong(message)) {
+      return;
+    }
+    if (binaire) {
+      envoyerOctets(ProtocoleBinaire.encoder(ProtocoleBinaire.ENVOI_PRIVE, destinataire, message));
+    } else {
+      envoyerLigne("/msg " + destinataire + " " + message);
+    }
+  }
+
+  // Le serveur refuse les messages plus longs, pas la peine de les envoyer
+  private boolean tropLong(String texte) {
+    if (ProtocoleBinaire.tailleUtf8(texte) <= ProtocoleBinaire.TAILLE_MAX_MESSAGE) {
+      return false;
+    }
+    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+        "Message trop long (" + ProtocoleBinaire.TAILLE_MAX_MESSAGE + " octets au plus)"));
+    return true;
+  }
+
+  private synchronized void envoyerOctets(byte[] octets) {
+    try {
+      out.write(octets);
+      out.flush();
+    } catch (IOException e) {
+      System.err.println("Problème pour envoyer au serveur : " + e.getMessage());
+    }
+  }
+
+  // Une trame du serveur : plus besoin de deviner le type en lisant le texte
+  private void traiterTrame(ProtocoleBinaire.TrameRecue trame) {
+    String[] champs = trame.champs;
+    switch (trame.type) {
+      case ProtocoleBinaire.GENERAL:
+        ajouterMessageGeneral(champs[0] + " : " + champs[1]);
+        break;
+
+      case ProtocoleBinaire.PRIVE: {
+        String autreUtilisateur = champs[0].equals(utilisateurActuel) ? champs[1] : champs[0];
+        creerOngletConversation(autreUtilisateur);
+        ajouterMessageConversation(autreUtilisateur,
+            "[PRIVÉ] " + champs[0] + " → " + champs[1] + " : " + champs[2]);
+        break;
+      }
+
+      case ProtocoleBinaire.GROUPE:
+        ajouterMessageGeneral("[" + champs[0] + "] " + champs[1] + " : " + champs[2]);
+        break;
+
+      case ProtocoleBinaire.UTILISATEURS:
+        mettreAJourListeUtilisateurs(champs);
+        break;
+
+      case ProtocoleBinaire.PRESENCE:
+        recevoirPresence(champs);
+        break;
+
+      case ProtocoleBinaire.UTILISATEURS_SUITE:
+      case ProtocoleBinaire.PRESENCE_SUITE:
+        // Beaucoup de monde : la liste arrive en plusieurs trames
+        completerListeUtilisateurs(champs);
+        break;
+
+      case ProtocoleBinaire.PRESENCE_ARRIVEE:
+        ajouterConnecte(champs[0]);
+        break;
+
+      case ProtocoleBinaire.PRESENCE_DEPART:
+        retirerConnecte(champs[0]);
+        break;
+
+      case ProtocoleBinaire.GROUPES_MODIFIES:
+        ajouterMessageGeneral(champs[0]);
+        rafraichirListeGroupes();
+        voirMesGroupes();
+        break;
+
+      default:
+        // TEXTE et tout ce qu'on ne connaît pas : même traitement qu'en texte
+        if (champs.length > 0) {
+          traiterMessage(champs[0]);
+        }
+        break;
+    }
+  }
+
   private void traiterMessage(String message) {
     if (message.equals("Entrez votre nom d'utilisateur :"))
       return;
@@ -657,8 +811,15 @@ public class ChatClientGUI extends JFrame {
     // Debug: afficher tous les messages reçus du serveur
     System.out.println("DEBUG - Message reçu du serveur: '" + message + "'");
 
-    if (message.startsWith("[PRIVÉ]")) {
+    if (message.startsWith(MARQUE_ACCUSE)) {
+      accuserReception(message);
+    } else if (message.startsWith("[PRIVÉ]")) {
       traiterMessagePrive(message);
+    } else if (message.startsWith("[PRÉSENCE] ")) {
+      traiterPresence(message.substring("[PRÉSENCE] ".length()));
+    } else if (message.equals("Commande inconnue : /presence")) {
+      // Vieux serveur sans /presence : on se contente de la liste
+      envoyerLigne("/list");
     } else if (message.startsWith("Utilisateurs connectés")) {
       mettreAJourListeUtilisateurs(message);
     } else if (message.contains("créé avec succès") || message.contains("ajouté au groupe") ||
@@ -725,7 +886,7 @@ public class ChatClientGUI extends JFrame {
   private void traiterMessagePrive(String message) {
     try {
       String contenu = message.substring("[PRIVÉ] ".length());
-      int fleche = contenu.indexOf(" ? ");
+      int fleche = contenu.indexOf(" → ");
       if (fleche != -1) {
         String expediteur = contenu.substring(0, fleche);
         String reste = contenu.substring(fleche + 3);
@@ -744,49 +905,118 @@ public class ChatClientGUI extends JFrame {
   }
 
   private void mettreAJourListeUtilisateurs(String listeMessage) {
+    if (listeMessage.startsWith("Utilisateurs connectés : ")) {
+      String users = listeMessage.substring("Utilisateurs connectés : ".length());
+      mettreAJourListeUtilisateurs(users.split(", "));
+    } else {
+      mettreAJourListeUtilisateurs(new String[0]);
+    }
+  }
+
+  private void mettreAJourListeUtilisateurs(String[] noms) {
     SwingUtilities.invokeLater(() -> {
-      userListModel.clear();
-      if (listeMessage.startsWith("Utilisateurs connectés : ")) {
-        String users = listeMessage.substring("Utilisateurs connectés : ".length());
-        String[] userArray = users.split(", ");
-        for (String user : userArray) {
-          if (!user.trim().isEmpty() && !user.trim().equals(utilisateurActuel)) {
-            // Ajouter avec indicateur vert pour les connectés, en excluant l'utilisateur
-            // actuel
-            userListModel.addElement("Connecte : " + user.trim());
-          }
+      connectes.clear();
+      for (String user : noms) {
+        if (!user.trim().isEmpty() && !user.trim().equals(utilisateurActuel)) {
+          connectes.add(user.trim());
         }
-      } else if (listeMessage.equals("Aucun utilisateur connecté")) {
-        // Si aucun utilisateur connecté, afficher quand même les utilisateurs connus
-        // comme déconnectés
-        for (Utilisateur user : utilisateurs) {
-          if (!user.getNom().equals(utilisateurActuel)) { // Ne pas s'afficher soi-même
-            userListModel.addElement("Hors ligne : " + user.getNom());
-          }
+      }
+      afficherConnectes();
+    });
+  }
+
+  // Après mettreAJourListeUtilisateurs, donc par invokeLater lui aussi
+  private void completerListeUtilisateurs(String[] noms) {
+    SwingUtilities.invokeLater(() -> {
+      for (String user : noms) {
+        if (!user.trim().isEmpty() && !user.trim().equals(utilisateurActuel)) {
+          connectes.add(user.trim());
         }
       }
+      afficherConnectes();
+    });
+  }
 
-      // Mettre à jour le combobox des groupes avec les utilisateurs disponibles
-      System.out.println("DEBUG - Nombre d'utilisateurs dans la liste: " + userListModel.getSize());
-      for (int i = 0; i < userListModel.getSize(); i++) {
-        System.out.println("DEBUG - Utilisateur " + i + ": '" + userListModel.getElementAt(i) + "'");
+  // Reconstruit toute la liste (au début, ou quand on passe de personne à
+  // quelqu'un et inversement)
+  private void afficherConnectes() {
+    userListModel.clear();
+    for (String user : connectes) {
+      // Ajouter avec indicateur vert pour les connectés, en excluant l'utilisateur
+      // actuel
+      userListModel.addElement("Connecte : " + user);
+    }
+    if (connectes.isEmpty()) {
+      // Si aucun utilisateur connecté, afficher quand même les utilisateurs connus
+      // comme déconnectés
+      for (Utilisateur user : utilisateurs) {
+        if (!user.getNom().equals(utilisateurActuel)) { // Ne pas s'afficher soi-même
+          userListModel.addElement("Hors ligne : " + user.getNom());
+        }
       }
-      mettreAJourComboUtilisateurs();
+    }
+    apresChangementUtilisateurs();
+  }
 
-      // Mettre à jour le statut
-      int connectes = userListModel.getSize();
+  // "= a, b" (tout le monde), "+ nom" (arrivée) ou "- nom" (départ)
+  private void traiterPresence(String presence) {
+    if (presence.startsWith("= ")) {
+      String noms = presence.substring(2);
+      recevoirPresence(noms.isEmpty() ? new String[0] : noms.split(", "));
+    } else if (presence.startsWith("+ ")) {
+      ajouterConnecte(presence.substring(2));
+    } else if (presence.startsWith("- ")) {
+      retirerConnecte(presence.substring(2));
+    }
+  }
 
-      String statusText = "";
-      if (connectes == 0) {
-        statusText = "Aucun autre utilisateur connecte";
-      } else if (connectes == 1) {
-        statusText = "1 autre utilisateur connecte";
-      } else {
-        statusText = connectes + " autres utilisateurs connectes";
-      }
+  private void recevoirPresence(String[] noms) {
+    mettreAJourListeUtilisateurs(noms);
+  }
 
-      statusLabel.setText(statusText);
-    });
+  // Les changements ne touchent qu'une ligne de la liste
+  private void ajouterConnecte(String nom) {
+    if (nom.equals(utilisateurActuel) || !connectes.add(nom)) {
+      return;
+    }
+    if (connectes.size() == 1) {
+      // On enlève les "Hors ligne" affichés quand il n'y avait personne
+      afficherConnectes();
+      return;
+    }
+    userListModel.addElement("Connecte : " + nom);
+    apresChangementUtilisateurs();
+  }
+
+  private void retirerConnecte(String nom) {
+    if (!connectes.remove(nom)) {
+      return;
+    }
+    if (connectes.isEmpty()) {
+      afficherConnectes();
+      return;
+    }
+    userListModel.removeElement("Connecte : " + nom);
+    apresChangementUtilisateurs();
+  }
+
+  private void apresChangementUtilisateurs() {
+    // Mettre à jour le combobox des groupes avec les utilisateurs disponibles
+    mettreAJourComboUtilisateurs();
+
+    // Mettre à jour le statut
+    int nbConnectes = connectes.size();
+
+    String statusText = "";
+    if (nbConnectes == 0) {
+      statusText = "Aucun autre utilisateur connecte";
+    } else if (nbConnectes == 1) {
+      statusText = "1 autre utilisateur connecte";
+    } else {
+      statusText = nbConnectes + " autres utilisateurs connectes";
+    }
+
+    statusLabel.setText(statusText);
   }
 
   private void ajouterMessageGeneral(String message) {
@@ -819,32 +1049,24 @@ public class ChatClientGUI extends JFrame {
 
   private void envoyerMessage() {
     String message = messageField.getText().trim();
-    if (!message.isEmpty() && isConnected) {
+    if (!message.isEmpty() && isConnected && !tropLong(message)) {
       int selectedTab = tabbedPane.getSelectedIndex();
       if (selectedTab == 0) {
         ajouterMessageGeneral(utilisateurActuel + " : " + message);
-        out.println(message);
+        envoyerGeneral(message);
       } else {
         String titre = tabbedPane.getTitleAt(selectedTab);
         String utilisateur = titre.substring(2);
-        out.println("/msg " + utilisateur + " " + message);
+        envoyerPrive(utilisateur, message);
       }
       messageField.setText("");
     }
   }
 
+  // La liste est tenue à jour par /presence, pas besoin de redemander au serveur
   private void rafraichirListeUtilisateurs() {
     if (isConnected) {
-      out.println("/list");
-      // Mettre à jour le combo après avoir demandé la liste
-      SwingUtilities.invokeLater(() -> {
-        try {
-          Thread.sleep(500); // Attendre que la réponse arrive
-          mettreAJourComboUtilisateurs();
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-        }
-      });
+      afficherConnectes();
     }
   }
 
@@ -862,7 +1084,7 @@ public class ChatClientGUI extends JFrame {
 
       if (message != null && !message.trim().isEmpty()) {
         creerOngletConversation(nomUtilisateur);
-        out.println("/msg " + nomUtilisateur + " " + message);
+        envoyerPrive(nomUtilisateur, message);
 
         for (int i = 1; i < tabbedPane.getTabCount(); i++) {
           if (tabbedPane.getTitleAt(i).contains(nomUtilisateur)) {
@@ -1050,7 +1272,7 @@ public class ChatClientGUI extends JFrame {
       // Envoyer le message (le serveur gère automatiquement le hors ligne)
       if (isConnected) {
         creerOngletConversation(destinataire);
-        out.println("/msg " + destinataire + " " + message);
+        envoyerPrive(destinataire, message);
 
         // Confirmation visuelle moderne
         String statusMessage = selectedCombo != null && selectedCombo.startsWith("Connecte :")
@@ -1099,7 +1321,7 @@ public class ChatClientGUI extends JFrame {
       if (confirmation == JOptionPane.YES_OPTION) {
         try {
           if (out != null) {
-            out.println("/bye");
+            envoyerLigne("/bye");
           }
           if (socket != null && !socket.isClosed()) {
             socket.close();
@@ -1150,8 +1372,8 @@ public class ChatClientGUI extends JFrame {
     userListModel.clear();
 
     // Ajouter les utilisateurs connectés avec indicateur vert
-    if (isConnected) {
-      out.println("/list");
+    for (String nom : connectes) {
+      userListModel.addElement("Connecte : " + nom);
     }
 
     // Ajouter les utilisateurs connus du fichier avec indicateur rouge
@@ -1184,23 +1406,19 @@ public class ChatClientGUI extends JFrame {
 
   private void afficherInfoGroupe(String nomGroupe) {
     if (out != null) {
-      out.println("/groupe-membres " + nomGroupe);
+      envoyerLigne("/groupe-membres " + nomGroupe);
     }
   }
 
   private void rafraichirListeGroupes() {
     if (out != null) {
-      out.println("/groupe-liste");
-      // Également charger la liste des utilisateurs pour le combobox
-      out.println("/list");
+      envoyerLigne("/groupe-liste");
     }
   }
 
   private void voirMesGroupes() {
     if (out != null) {
-      out.println("/mes-groupes");
-      // Également charger la liste des utilisateurs pour le combobox
-      out.println("/list");
+      envoyerLigne("/mes-groupes");
     }
   }
 
@@ -1220,7 +1438,7 @@ public class ChatClientGUI extends JFrame {
     }
 
     if (out != null) {
-      out.println("/groupe-creer " + nom + " " + description);
+      envoyerLigne("/groupe-creer " + nom + " " + description);
       groupNameField.setText("");
       groupDescriptionField.setText("");
 
@@ -1279,7 +1497,7 @@ public class ChatClientGUI extends JFrame {
     }
 
     if (out != null) {
-      out.println("/groupe-ajouter " + selectedGroup + " " + utilisateur);
+      envoyerLigne("/groupe-ajouter " + selectedGroup + " " + utilisateur);
       groupMemberCombo.setSelectedIndex(0); // Reset to default
       // Actualiser les informations du groupe après ajout
       SwingUtilities.invokeLater(() -> afficherInfoGroupe(selectedGroup));
@@ -1327,7 +1545,7 @@ public class ChatClientGUI extends JFrame {
     }
 
     if (out != null) {
-      out.println("/groupe-supprimer " + selectedGroup + " " + utilisateur);
+      envoyerLigne("/groupe-supprimer " + selectedGroup + " " + utilisateur);
       groupMemberCombo.setSelectedIndex(0); // Reset to default
       // Actualiser les informations du groupe après suppression
       SwingUtilities.invokeLater(() -> afficherInfoGroupe(selectedGroup));
@@ -5,6 +5,7 @@ import com.chat.model.Utilisateur;
 import java.io.*;
 import java.net.*;
 import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 
 public class EchoClient {
@@ -30,8 +31,8 @@ public class EchoClient {
             System.out.println("Connecté au serveur !");
 
             // On établit la communication avec le serveur
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
 
             // Le serveur nous demande notre nom
             String serverMessage = in.readLine(); // "Entrez votre nom d'utilisateur :"
@@ -155,6 +156,12 @@ public class EchoClient {
             try {
                 String message;
                 while ((message = in.readLine()) != null) {
+                    // Fin d'un lot de messages hors ligne : on confirme la réception
+                    // pour avoir la suite
+                    if (message.startsWith("[ACK] ")) {
+                        out.println("/ack " + message.substring("[ACK] ".length()));
+                        continue;
+                    }
                     // On ignore le message initial de demande de nom
                     if (!message.equals("Entrez votre nom d'utilisateur :")) {
                         System.out.println(message);
@@ -0,0 +1,196 @@
+package com.chat.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Qui a une conversation privée avec qui, pour ne pas lister tout le dossier de
+ * l'historique à chaque fois
+ * Sur le disque c'est un fichier avec une ligne "nom1<tab>nom2" par
+ * conversation, ajoutée la première fois qu'on y écrit. Au démarrage on le
+ * relit ; s'il manque ou qu'une ligne est abîmée, on le refait à partir des
+ * dossiers (les noms sont pris dans le premier message du journal, le nom du
+ * dossier est ambigu quand un nom contient "_")
+ */
+final class AnnuaireConversations {
+  static final String NOM_FICHIER = "conversations.annuaire";
+
+  private final Path dossierHistorique;
+  private final String prefixePrive;
+  private final Path fichier;
+  // Pour chaque utilisateur, les personnes avec qui il a une conversation
+  private final Map<String, Set<String>> partenaires = new ConcurrentHashMap<>();
+  // Pour les ajouts dans le fichier
+  private final ReentrantLock verrou = new ReentrantLock();
+  private FileChannel canal;
+
+  AnnuaireConversations(Path dossierHistorique, String prefixePrive) {
+    this.dossierHistorique = dossierHistorique;
+    this.prefixePrive = prefixePrive;
+    this.fichier = dossierHistorique.resolve(NOM_FICHIER);
+    try {
+      if (!charger()) {
+        reconstruire();
+      }
+    } catch (IOException e) {
+      System.err.println("Problème pour ouvrir l'annuaire des conversations : " + e.getMessage());
+    }
+  }
+
+  // false s'il faut le refaire (pas de fichier, ligne abîmée ou coupée)
+  private boolean charger() throws IOException {
+    if (!Files.exists(fichier)) {
+      return false;
+    }
+    byte[] octets = Files.readAllBytes(fichier);
+    if (octets.length > 0 && octets[octets.length - 1] != '\n') {
+      return false;
+    }
+    // Rien n'est mis en mémoire tant que tout le fichier n'est pas bon
+    List<String[]> paires = new ArrayList<>();
+    for (String ligne : new String(octets, StandardCharsets.UTF_8).split("\n")) {
+      if (ligne.isEmpty()) {
+        continue;
+      }
+      String[] noms = ligne.split("\t", -1);
+      if (noms.length != 2 || noms[0].isEmpty() || noms[1].isEmpty()) {
+        return false;
+      }
+      paires.add(noms);
+    }
+    for (String[] noms : paires) {
+      ajouterEnMemoire(noms[0], noms[1]);
+    }
+    ouvrirCanal();
+    return true;
+  }
+
+  private void ouvrirCanal() throws IOException {
+    canal = FileChannel.open(fichier, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  private boolean ajouterEnMemoire(String utilisateur1, String utilisateur2) {
+    boolean nouveau = partenaires.computeIfAbsent(utilisateur1, k -> ConcurrentHashMap.newKeySet()).add(utilisateur2);
+    partenaires.computeIfAbsent(utilisateur2, k -> ConcurrentHashMap.newKeySet()).add(utilisateur1);
+    return nouveau;
+  }
+
+  /**
+   * Note une conversation entre ces deux personnes. Ne coûte qu'une recherche
+   * dans la table quand elle est déjà connue ; sinon la ligne est ajoutée et
+   * forcée sur le disque (une seule fois par conversation)
+   */
+  void noter(String utilisateur1, String utilisateur2) {
+    Set<String> connus = partenaires.get(utilisateur1);
+    if (connus != null && connus.contains(utilisateur2)) {
+      return;
+    }
+    verrou.lock();
+    try {
+      if (!ajouterEnMemoire(utilisateur1, utilisateur2) || canal == null) {
+        return;
+      }
+      String ligne = nettoyer(utilisateur1) + "\t" + nettoyer(utilisateur2) + "\n";
+      ByteBuffer octets = ByteBuffer.wrap(ligne.getBytes(StandardCharsets.UTF_8));
+      while (octets.hasRemaining()) {
+        canal.write(octets);
+      }
+      canal.force(false);
+    } catch (IOException e) {
+      System.err.println("Problème pour noter la conversation dans l'annuaire : " + e.getMessage());
+    } finally {
+      verrou.unlock();
+    }
+  }
+
+  private static String nettoyer(String nom) {
+    return nom.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  /**
+   * Les personnes avec qui cet utilisateur a une conversation privée
+   */
+  List<String> partenaires(String utilisateur) {
+    Set<String> connus = partenaires.get(utilisateur);
+    if (connus == null) {
+      return new ArrayList<>();
+    }
+    List<String> resultat = new ArrayList<>(connus);
+    Collections.sort(resultat);
+    return resultat;
+  }
+
+  /**
+   * Refait l'annuaire à partir des dossiers des conversations privées, dans un
+   * fichier à côté qui remplace l'ancien d'un coup
+   */
+  void reconstruire() throws IOException {
+    verrou.lock();
+    try {
+      if (canal != null) {
+        canal.close();
+        canal = null;
+      }
+      List<Path> dossiers = new ArrayList<>();
+      try (Stream<Path> liste = Files.list(dossierHistorique)) {
+        liste.filter(Files::isDirectory)
+            .filter(p -> p.getFileName().toString().startsWith(prefixePrive))
+            .forEach(dossiers::add);
+      }
+      List<String[]> paires = new ArrayList<>();
+      StringBuilder contenu = new StringBuilder();
+      for (Path dossier : dossiers) {
+        String[] noms = participants(dossier);
+        if (noms == null) {
+          System.err.println("Conversation sans participants lisibles : " + dossier.getFileName());
+          continue;
+        }
+        paires.add(noms);
+        contenu.append(nettoyer(noms[0])).append('\t').append(nettoyer(noms[1])).append('\n');
+      }
+      // Ce qu'on avait en mémoire (un ancien fichier abîmé...) est remplacé par
+      // ce qu'il y a vraiment dans les dossiers
+      partenaires.clear();
+      for (String[] noms : paires) {
+        ajouterEnMemoire(noms[0], noms[1]);
+      }
+      Path temporaire = fichier.resolveSibling(NOM_FICHIER + ".tmp");
+      try (FileChannel nouveau = FileChannel.open(temporaire, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer octets = ByteBuffer.wrap(contenu.toString().getBytes(StandardCharsets.UTF_8));
+        while (octets.hasRemaining()) {
+          nouveau.write(octets);
+        }
+        nouveau.force(false);
+      }
+      Files.move(temporaire, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      ouvrirCanal();
+      System.out.println("Annuaire des conversations refait (" + dossiers.size() + " conversations privées)");
+    } finally {
+      verrou.unlock();
+    }
+  }
+
+  // Les deux noms du premier message lisible, ou à défaut ceux du nom du
+  // dossier s'il n'y a pas d'ambiguïté
+  private String[] participants(Path dossier) throws IOException {
+    String[] noms = new String[2];
+    LectureJournal.parcourir(dossier, true, 1, e -> {
+      noms[0] = e.expediteur;
+      noms[1] = e.destinataire;
+      return false;
+    });
+    if (noms[0] != null) {
+      return noms;
+    }
+    String[] morceaux = dossier.getFileName().toString().substring(prefixePrive.length()).split("_");
+    return morceaux.length == 2 ? morceaux : null;
+  }
+}
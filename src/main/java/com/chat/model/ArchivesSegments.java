@@ -0,0 +1,220 @@
+package com.chat.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Les vieux segments terminés, compressés en gzip pour prendre moins de place
+ * Un segment est compressé en tâche de fond quand ce n'est plus le dernier de
+ * sa conversation (l'écrivain n'y touchera plus) et que son dernier message a
+ * plus de -Dchat.historique.froidJours (7 par défaut, 0 pour ne jamais
+ * compresser)
+ * À la lecture il est décompressé en entier (un segment fait au plus
+ * -Dchat.historique.segmentKo) et gardé dans un petit cache
+ * (-Dchat.historique.cacheKo, 8 Mo par défaut) : relire une archive
+ * populaire ne coûte rien
+ */
+final class ArchivesSegments {
+  private static final long TAILLE_CACHE = Math.max(0, Long.getLong("chat.historique.cacheKo", 8192)) * 1024;
+  private static final String EXTENSION_TEMPORAIRE = ".tmp";
+
+  // Les segments décompressés, le moins lu dernièrement en tête
+  private static final LinkedHashMap<Path, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private static long tailleCache = 0;
+  private static final ReentrantLock verrou = new ReentrantLock();
+  private static final AtomicLong lectures = new AtomicLong();
+  private static final AtomicLong lecturesEnCache = new AtomicLong();
+
+  // Comptés à chaque passage de la compression
+  private static volatile long segmentsCompresses = 0;
+  private static volatile long octetsOriginaux = 0;
+  private static volatile long octetsCompresses = 0;
+
+  private ArchivesSegments() {
+  }
+
+  /**
+   * Le contenu décompressé d'un segment compressé
+   */
+  static byte[] lire(SegmentJournal archive) throws IOException {
+    Path fichier = archive.fichier();
+    lectures.incrementAndGet();
+    verrou.lock();
+    try {
+      byte[] contenu = cache.get(fichier);
+      if (contenu != null) {
+        lecturesEnCache.incrementAndGet();
+        return contenu;
+      }
+    } finally {
+      verrou.unlock();
+    }
+
+    // Décompressé sans tenir le verrou : deux lectures en même temps du même
+    // segment le décompressent deux fois, ce n'est pas grave
+    byte[] contenu;
+    try (InputStream entree = new GZIPInputStream(Files.newInputStream(fichier), 65536)) {
+      contenu = entree.readAllBytes();
+    }
+    if (contenu.length <= TAILLE_CACHE) {
+      verrou.lock();
+      try {
+        if (cache.put(fichier, contenu) == null) {
+          tailleCache += contenu.length;
+        }
+        Iterator<byte[]> plusAnciens = cache.values().iterator();
+        while (tailleCache > TAILLE_CACHE && plusAnciens.hasNext()) {
+          tailleCache -= plusAnciens.next().length;
+          plusAnciens.remove();
+        }
+      } finally {
+        verrou.unlock();
+      }
+    }
+    return contenu;
+  }
+
+  /**
+   * Compresse un segment terminé : l'archive est écrite à côté puis renommée,
+   * et seulement alors le segment est supprimé. Une lecture qui ne trouve plus
+   * le segment va lire l'archive
+   */
+  static void compresser(SegmentJournal segment) throws IOException {
+    Path archive = segment.versionCompressee(true).fichier();
+    Path temporaire = archive.resolveSibling(archive.getFileName() + EXTENSION_TEMPORAIRE);
+    // Personne n'attend après : autant compresser au maximum
+    try (OutputStream sortie = new GZIPOutputStream(Files.newOutputStream(temporaire), 65536) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    }) {
+      Files.copy(segment.fichier(), sortie);
+    }
+    remplacer(temporaire, archive);
+    oublier(archive);
+    Files.delete(segment.fichier());
+  }
+
+  /**
+   * L'inverse, pour le journal qui reprend un dernier segment compressé
+   */
+  static void decompresser(SegmentJournal archive) throws IOException {
+    Path segment = archive.versionCompressee(false).fichier();
+    Path temporaire = segment.resolveSibling(segment.getFileName() + EXTENSION_TEMPORAIRE);
+    try (InputStream entree = new GZIPInputStream(Files.newInputStream(archive.fichier()), 65536)) {
+      Files.copy(entree, temporaire, StandardCopyOption.REPLACE_EXISTING);
+    }
+    remplacer(temporaire, segment);
+    Files.delete(archive.fichier());
+    // Le journal va y ajouter des messages avant qu'il soit recompressé
+    oublier(archive.fichier());
+  }
+
+  private static void oublier(Path archive) {
+    verrou.lock();
+    try {
+      byte[] contenu = cache.remove(archive);
+      if (contenu != null) {
+        tailleCache -= contenu.length;
+      }
+    } finally {
+      verrou.unlock();
+    }
+  }
+
+  // Sur le disque avant de prendre la place de l'autre, pour qu'un arrêt brutal
+  // ne laisse jamais un fichier à moitié écrit sous le bon nom
+  private static void remplacer(Path temporaire, Path cible) throws IOException {
+    try (FileChannel canal = FileChannel.open(temporaire, StandardOpenOption.WRITE)) {
+      canal.force(true);
+    }
+    Files.move(temporaire, cible, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Compresse les segments terminés de toutes les conversations dont le
+   * dernier message est plus vieux que la limite, et refait le compte de la
+   * place gagnée
+   */
+  static void compresserFroids(Path dossierHistorique, long limite, Predicate<String> prive) {
+    List<Path> dossiers = new ArrayList<>();
+    try (Stream<Path> liste = Files.list(dossierHistorique)) {
+      liste.filter(Files::isDirectory).forEach(dossiers::add);
+    } catch (IOException e) {
+      System.err.println("Problème pour compresser l'historique : " + e.getMessage());
+      return;
+    }
+    long segments = 0, originaux = 0, compresses = 0;
+    for (Path dossier : dossiers) {
+      try {
+        List<SegmentJournal> liste = SegmentJournal.lister(dossier);
+        // Le dernier reste tel quel : l'écrivain peut encore y ajouter
+        for (int i = 0; i + 1 < liste.size(); i++) {
+          SegmentJournal segment = liste.get(i);
+          if (!segment.compresse && LectureJournal.dernierHorodatage(segment,
+              prive.test(dossier.getFileName().toString())) < limite) {
+            compresser(segment);
+            segment = segment.versionCompressee(true);
+          }
+          if (segment.compresse) {
+            segments++;
+            originaux += tailleOriginale(segment.fichier());
+            compresses += Files.size(segment.fichier());
+          }
+        }
+      } catch (NoSuchFileException e) {
+        // Supprimé par le ménage pendant qu'on y était
+      } catch (IOException e) {
+        System.err.println("Problème pour compresser " + dossier + " : " + e.getMessage());
+      }
+    }
+    segmentsCompresses = segments;
+    octetsOriginaux = originaux;
+    octetsCompresses = compresses;
+  }
+
+  // Un fichier gzip finit par la taille d'origine (modulo 4 Go), sur 4 octets
+  private static long tailleOriginale(Path archive) throws IOException {
+    try (FileChannel canal = FileChannel.open(archive, StandardOpenOption.READ)) {
+      ByteBuffer fin = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      IndexSegment.remplir(canal, fin, Math.max(0, canal.size() - 4));
+      return fin.hasRemaining() ? 0 : Integer.toUnsignedLong(fin.getInt(0));
+    }
+  }
+
+  static long segmentsCompresses() {
+    return segmentsCompresses;
+  }
+
+  static long octetsOriginaux() {
+    return octetsOriginaux;
+  }
+
+  static long octetsCompresses() {
+    return octetsCompresses;
+  }
+
+  static long lectures() {
+    return lectures.get();
+  }
+
+  static long lecturesEnCache() {
+    return lecturesEnCache.get();
+  }
+}
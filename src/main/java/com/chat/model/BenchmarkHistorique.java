@@ -0,0 +1,86 @@
+package com.chat.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Petit benchmark : combien de messages d'historique par seconde arrivent
+ * jusqu'au disque
+ * Compare l'ancienne méthode (Files.write qui ouvre, écrit et referme le
+ * fichier pour chaque message) avec l'EcrivainGroupe, pour chaque règle de
+ * synchro. Plusieurs threads écrivent dans quelques conversations, comme des
+ * clients qui parlent en même temps
+ * Tout se passe dans un dossier temporaire
+ *
+ * Lancement : mvn -Pbenchmark-historique exec:java
+ */
+public class BenchmarkHistorique {
+  private static final int THREADS = 8;
+  private static final int CONVERSATIONS = 16;
+  private static final String MESSAGE = "Salut tout le monde, quelqu'un a vu le match hier soir ?";
+
+  public static void main(String[] args) throws Exception {
+    System.out.println(String.format("%-28s | %12s | %14s", "Méthode", "Messages", "Messages/s"));
+
+    // L'ancienne méthode est lente, on lui donne moins de messages
+    Path ancien = Files.createTempDirectory("historique-");
+    mesurer("Files.write par message", 20_000, (conversation, message) -> {
+      try {
+        Files.write(ancien.resolve(conversation + ".txt"), ("2024-01-01 12:00:00|Alice|" + message + "\n").getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }, null);
+    supprimer(ancien);
+
+    for (String regle : new String[] { "jamais", "50", "lot" }) {
+      System.setProperty("chat.historique.fsync", regle);
+      Path dossier = Files.createTempDirectory("historique-");
+      EcrivainGroupe ecrivain = new EcrivainGroupe(dossier, "chat-historique", 64, null);
+      mesurer("EcrivainGroupe fsync=" + regle, 2_000_000,
+          (conversation, message) -> ecrivain.ajouter(conversation,
+              new Enregistrement(System.currentTimeMillis(), "Alice", null, message)),
+          ecrivain);
+      supprimer(dossier);
+    }
+  }
+
+  private interface Sauvegarde {
+    void ajouter(String conversation, String message);
+  }
+
+  private static void mesurer(String nom, int total, Sauvegarde sauvegarde, EcrivainGroupe ecrivain)
+      throws InterruptedException {
+    int parThread = total / THREADS;
+    Thread[] threads = new Thread[THREADS];
+    long debut = System.nanoTime();
+    for (int t = 0; t < THREADS; t++) {
+      final int numero = t;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < parThread; i++) {
+          sauvegarde.ajouter("conversation_" + ((numero + i) % CONVERSATIONS), MESSAGE);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (ecrivain != null) {
+      // On ne compte que ce qui est vraiment écrit
+      ecrivain.synchroniser();
+    }
+    double secondes = (System.nanoTime() - debut) / 1e9;
+    System.out.println(String.format("%-28s | %12d | %14.0f", nom, parThread * THREADS, parThread * THREADS / secondes));
+  }
+
+  private static void supprimer(Path dossier) throws IOException {
+    try (Stream<Path> fichiers = Files.walk(dossier)) {
+      fichiers.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+}
@@ -0,0 +1,566 @@
+package com.chat.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Écrit les messages d'historique pour tout le monde, par paquets
+ * Les expéditeurs déposent leur message dans une file et repartent tout de
+ * suite. Un seul thread prend tout ce qui attend, regroupe les messages par
+ * conversation et les écrit en une fois dans son journal, puis force sur le
+ * disque selon la règle choisie :
+ * -Dchat.historique.fsync=lot : après chaque paquet (par défaut)
+ * -Dchat.historique.fsync=N : au plus toutes les N millisecondes
+ * -Dchat.historique.fsync=jamais : on laisse faire le système
+ *
+ * Si le disque ne suit plus et que la file est pleine, l'expéditeur n'attend
+ * pas (il peut être une boucle NIO) et le message n'est pas perdu : il est
+ * ajouté à la fin d'un fichier de débordement, à côté des conversations. Tant
+ * que ce fichier n'est pas vide, tout ce qui arrive y passe aussi (sinon un
+ * message récent pourrait doubler un plus ancien), et le thread écrivain le
+ * relit une fois la file vide. S'il reste des messages dedans au démarrage
+ * (arrêt brutal), ils sont écrits d'abord, au pire en double pour le dernier
+ * paquet. -Dchat.historique.debordement=jeter jette le message à la place
+ * (il est seulement compté)
+ *
+ * Les journaux restent ouverts entre deux paquets, avec un nombre maximum :
+ * le moins utilisé est refermé quand il en faut un nouveau
+ * Il peut y en avoir plusieurs, MessageStorage envoie toujours une même
+ * conversation au même écrivain pour garder l'ordre des messages
+ */
+final class EcrivainGroupe {
+  private static final int CAPACITE_FILE = 65536;
+  private static final int TAILLE_MAX_PAQUET = 8192;
+  // Le thread se réveille au moins aussi souvent, pour la synchro périodique et
+  // pour l'arrêt (on ne l'interrompt pas : un FileChannel interrompu se ferme)
+  private static final long ATTENTE_MAX_MS = 100;
+  private static final boolean JETER_SI_PLEINE = "jeter".equalsIgnoreCase(
+      System.getProperty("chat.historique.debordement", "disque"));
+
+  private final Path dossier;
+  private final int maxOuverts;
+  // Prévenu après chaque écriture (null si personne)
+  private final Ecouteur ecouteur;
+  // -1 : après chaque paquet, 0 : jamais, sinon le délai en millisecondes
+  private final long delaiSynchro;
+
+  // Pleine, le disque ne suit plus : ce qui arrive passe par le débordement
+  private final ArrayBlockingQueue<Ajout> file;
+  // Pour que les lectures voient ce qui a été déposé avant elles (seulement
+  // les messages gardés, dans la file ou le débordement)
+  private final AtomicLong deposes = new AtomicLong();
+  private volatile long ecrits = 0;
+  // Déposés mais perdus ensuite (débordement illisible) : ils comptent comme
+  // traités pour synchroniser
+  private volatile long abandonnes = 0;
+  // Messages pas sauvegardés (débordement jeté ou impossible à écrire)
+  private final AtomicLong perdus = new AtomicLong();
+
+  // Le fichier de débordement : les expéditeurs y ajoutent sous le verrou, le
+  // thread écrivain relit dans l'ordre. debordes compte les messages écrits
+  // dedans, relus ceux que le thread écrivain a déjà repris ; quand il a tout
+  // repris le fichier est supprimé et debordes revient à 0
+  private final Path fichierDebordement;
+  private final ReentrantLock verrouDebordement = new ReentrantLock();
+  private DataOutputStream sortieDebordement;
+  // Taille du fichier jusqu'au dernier message complet
+  private long tailleDebordement = 0;
+  private volatile long debordes = 0;
+  private long relus = 0;
+  private DataInputStream entreeDebordement;
+  // Le plus vieux message du paquet en train d'être écrit (null entre deux)
+  private volatile Ajout plusAncienEnCours;
+  private final ReentrantLock verrou = new ReentrantLock();
+  private final Condition paquetEcrit = verrou.newCondition();
+
+  private volatile boolean arret = false;
+  private final Thread thread;
+
+  // Seulement utilisés par le thread écrivain
+  private final LinkedHashMap<String, JournalConversation> ouverts = new LinkedHashMap<>(16, 0.75f, true);
+  private final Set<JournalConversation> aSynchroniser = new HashSet<>();
+  private long derniereSynchro = System.nanoTime();
+
+  private static final class Ajout {
+    final String conversation;
+    final Enregistrement enregistrement;
+    // Pour un message relu du débordement : quand il a été relu
+    final long depot = System.nanoTime();
+
+    Ajout(String conversation, Enregistrement enregistrement) {
+      this.conversation = conversation;
+      this.enregistrement = enregistrement;
+    }
+  }
+
+  /**
+   * Appelé sur le thread écrivain avec les messages qui viennent d'être
+   * écrits, dans l'ordre et avec leur numéro (l'index de recherche s'en sert)
+   */
+  interface Ecouteur {
+    void apresEcriture(String conversation, List<Enregistrement> enregistrements);
+  }
+
+  EcrivainGroupe(Path dossier, String nom, int maxOuverts, Ecouteur ecouteur) {
+    this(dossier, nom, maxOuverts, ecouteur, CAPACITE_FILE);
+  }
+
+  EcrivainGroupe(Path dossier, String nom, int maxOuverts, Ecouteur ecouteur, int capacite) {
+    this.dossier = dossier;
+    this.maxOuverts = Math.max(1, maxOuverts);
+    this.ecouteur = ecouteur;
+    this.delaiSynchro = lireRegleSynchro(System.getProperty("chat.historique.fsync", "lot"));
+    this.file = new ArrayBlockingQueue<>(Math.max(1, capacite));
+    this.fichierDebordement = dossier.resolve(nom + ".debordement");
+    reprendreDebordement();
+
+    thread = new Thread(this::ecrire, nom);
+    thread.setDaemon(true);
+    thread.start();
+    // Ce qui attend encore part sur le disque avant l'arrêt
+    Runtime.getRuntime().addShutdownHook(new Thread(this::arreter, nom + "-arret"));
+  }
+
+  private static long lireRegleSynchro(String valeur) {
+    if (valeur.equalsIgnoreCase("lot")) {
+      return -1;
+    }
+    if (valeur.equalsIgnoreCase("jamais")) {
+      return 0;
+    }
+    try {
+      return Math.max(1, Long.parseLong(valeur.trim()));
+    } catch (NumberFormatException e) {
+      System.err.println("Règle fsync inconnue : " + valeur + ", on force après chaque paquet");
+      return -1;
+    }
+  }
+
+  /**
+   * Ajoute un message à la fin du journal d'une conversation (un sous-dossier
+   * du dossier), sans attendre qu'il soit écrit
+   * false seulement s'il ne sera pas sauvegardé (débordement jeté, ou le
+   * fichier de débordement n'a pas pu être écrit)
+   */
+  boolean ajouter(String conversation, Enregistrement enregistrement) {
+    Ajout ajout = new Ajout(conversation, enregistrement);
+    if ((debordes == 0 || JETER_SI_PLEINE) && file.offer(ajout)) {
+      // Compté seulement une fois gardé : synchroniser n'attend jamais un
+      // message qui ne sera pas écrit
+      deposes.incrementAndGet();
+      return true;
+    }
+    if (JETER_SI_PLEINE) {
+      perdus.incrementAndGet();
+      return false;
+    }
+    verrouDebordement.lock();
+    try {
+      // Le thread écrivain a peut-être tout repris entre temps
+      if (debordes == 0 && file.offer(ajout)) {
+        deposes.incrementAndGet();
+        return true;
+      }
+      deborder(conversation, enregistrement);
+      deposes.incrementAndGet();
+      return true;
+    } catch (IOException e) {
+      System.err.println("Problème pour mettre un message de côté dans " + fichierDebordement + " : "
+          + e.getMessage());
+      perdus.incrementAndGet();
+      return false;
+    } finally {
+      verrouDebordement.unlock();
+    }
+  }
+
+  // Sous verrouDebordement
+  private void deborder(String conversation, Enregistrement enregistrement) throws IOException {
+    if (sortieDebordement == null) {
+      sortieDebordement = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(fichierDebordement,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+      tailleDebordement = Files.size(fichierDebordement);
+    }
+    try {
+      ecrireTexte(sortieDebordement, conversation);
+      sortieDebordement.writeLong(enregistrement.horodatage);
+      ecrireTexte(sortieDebordement, enregistrement.expediteur);
+      ecrireTexte(sortieDebordement, enregistrement.destinataire);
+      ecrireTexte(sortieDebordement, enregistrement.message);
+      // Le thread écrivain ne relit que des messages complets
+      sortieDebordement.flush();
+      tailleDebordement = Files.size(fichierDebordement);
+    } catch (IOException e) {
+      // Un morceau de message décalerait tous les suivants : on revient au
+      // dernier complet
+      fermerFlux(sortieDebordement);
+      sortieDebordement = null;
+      try (FileChannel canal = FileChannel.open(fichierDebordement, StandardOpenOption.WRITE)) {
+        canal.truncate(tailleDebordement);
+      }
+      throw e;
+    }
+    debordes++;
+  }
+
+  private static void ecrireTexte(DataOutputStream sortie, String texte) throws IOException {
+    if (texte == null) {
+      sortie.writeInt(-1);
+      return;
+    }
+    byte[] octets = texte.getBytes(StandardCharsets.UTF_8);
+    sortie.writeInt(octets.length);
+    sortie.write(octets);
+  }
+
+  private static String lireTexte(DataInputStream entree) throws IOException {
+    int taille = entree.readInt();
+    if (taille < 0) {
+      return null;
+    }
+    byte[] octets = new byte[taille];
+    entree.readFully(octets);
+    return new String(octets, StandardCharsets.UTF_8);
+  }
+
+  private static Ajout lireAjout(DataInputStream entree) throws IOException {
+    String conversation = lireTexte(entree);
+    long horodatage = entree.readLong();
+    String expediteur = lireTexte(entree);
+    String destinataire = lireTexte(entree);
+    String message = lireTexte(entree);
+    return new Ajout(conversation, new Enregistrement(horodatage, expediteur, destinataire, message));
+  }
+
+  // Au démarrage : ce qui restait dans le débordement sera écrit en premier
+  // Un dernier message coupé (arrêt pendant l'écriture) est enlevé
+  private void reprendreDebordement() {
+    if (!Files.exists(fichierDebordement)) {
+      return;
+    }
+    long complets = 0;
+    long taille = 0;
+    try {
+      byte[] octets = Files.readAllBytes(fichierDebordement);
+      ByteArrayInputStream lus = new ByteArrayInputStream(octets);
+      DataInputStream entree = new DataInputStream(lus);
+      try {
+        while (true) {
+          lireAjout(entree);
+          complets++;
+          taille = octets.length - lus.available();
+        }
+      } catch (EOFException e) {
+        // Fin du fichier, éventuellement au milieu d'un message
+      }
+      try (FileChannel canal = FileChannel.open(fichierDebordement, StandardOpenOption.WRITE)) {
+        canal.truncate(taille);
+      }
+    } catch (IOException e) {
+      // On le laisse tel quel pour ne rien perdre, il sera repris au prochain
+      // démarrage
+      System.err.println("Problème pour relire " + fichierDebordement + " : " + e.getMessage());
+      return;
+    }
+    if (complets == 0) {
+      supprimerDebordement();
+      return;
+    }
+    System.out.println(complets + " messages pas encore sauvegardés repris de " + fichierDebordement);
+    debordes = complets;
+    deposes.addAndGet(complets);
+  }
+
+  /**
+   * Attend que tout ce qui a été déposé jusqu'ici soit écrit (pas forcément
+   * forcé sur le disque), pour relire un journal sans rater les derniers messages
+   */
+  void synchroniser() {
+    long cible = deposes.get();
+    if (ecrits + abandonnes >= cible || Thread.currentThread() == thread) {
+      return;
+    }
+    verrou.lock();
+    try {
+      while (ecrits + abandonnes < cible && thread.isAlive()) {
+        paquetEcrit.await(100, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      verrou.unlock();
+    }
+  }
+
+  // Messages déposés pas encore écrits (ceux du paquet en cours compris)
+  long enAttente() {
+    return Math.max(0, deposes.get() - ecrits - abandonnes);
+  }
+
+  // Depuis combien de temps attend le plus vieux message pas encore écrit
+  long retardMs() {
+    Ajout plusAncien = plusAncienEnCours;
+    if (plusAncien == null) {
+      plusAncien = file.peek();
+    }
+    return plusAncien == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - plusAncien.depot);
+  }
+
+  long ecrits() {
+    return ecrits;
+  }
+
+  long perdus() {
+    return perdus.get();
+  }
+
+  // --- Le thread écrivain ---
+
+  private void ecrire() {
+    ArrayList<Ajout> paquet = new ArrayList<>();
+    while (!arret) {
+      try {
+        // La file passe avant le débordement : ce qu'elle contient est arrivé
+        // avant
+        Ajout premier = debordes > 0 ? file.poll() : file.poll(ATTENTE_MAX_MS, TimeUnit.MILLISECONDS);
+        if (premier != null) {
+          paquet.add(premier);
+          file.drainTo(paquet, TAILLE_MAX_PAQUET - 1);
+        } else if (debordes > 0) {
+          relireDebordement(paquet);
+        }
+        if (!paquet.isEmpty()) {
+          ecrirePaquet(paquet);
+          paquet.clear();
+        }
+        synchroniserSiBesoin(false);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    // Ce qui est arrivé pendant le dernier tour
+    while (file.drainTo(paquet, TAILLE_MAX_PAQUET) > 0) {
+      ecrirePaquet(paquet);
+      paquet.clear();
+    }
+    while (debordes > 0 && relireDebordement(paquet)) {
+      ecrirePaquet(paquet);
+      paquet.clear();
+    }
+    synchroniserSiBesoin(true);
+    for (JournalConversation journal : ouverts.values()) {
+      fermer(journal);
+    }
+    ouverts.clear();
+  }
+
+  /**
+   * Reprend un paquet de messages du débordement. Quand tout a été repris, le
+   * fichier est supprimé et les expéditeurs reviennent à la file
+   * false s'il n'y avait rien à reprendre (le fichier ne se relit plus)
+   */
+  private boolean relireDebordement(List<Ajout> paquet) {
+    try {
+      if (entreeDebordement == null) {
+        entreeDebordement = new DataInputStream(new BufferedInputStream(Files.newInputStream(fichierDebordement)));
+      }
+      // Seulement des messages complets : debordes est compté après le flush
+      long disponibles = Math.min(debordes - relus, TAILLE_MAX_PAQUET);
+      for (long i = 0; i < disponibles; i++) {
+        paquet.add(lireAjout(entreeDebordement));
+        relus++;
+      }
+    } catch (IOException e) {
+      System.err.println("Problème pour relire " + fichierDebordement + " : " + e.getMessage());
+      if (paquet.isEmpty()) {
+        // Sinon tout ce qui arrive partirait dans un fichier qu'on ne relit
+        // plus. Il est gardé à côté, les messages qui restent sont comptés
+        verrouDebordement.lock();
+        try {
+          long restants = debordes - relus;
+          perdus.addAndGet(restants);
+          fermerDebordement(false);
+          verrou.lock();
+          try {
+            abandonnes += restants;
+            paquetEcrit.signalAll();
+          } finally {
+            verrou.unlock();
+          }
+        } finally {
+          verrouDebordement.unlock();
+        }
+        return false;
+      }
+    }
+    verrouDebordement.lock();
+    try {
+      if (relus == debordes) {
+        fermerDebordement(true);
+      }
+    } finally {
+      verrouDebordement.unlock();
+    }
+    return !paquet.isEmpty();
+  }
+
+  // Sous verrouDebordement, quand tout a été repris (ou qu'il n'y a plus
+  // moyen de le relire)
+  private void fermerDebordement(boolean toutRepris) {
+    fermerFlux(sortieDebordement);
+    fermerFlux(entreeDebordement);
+    sortieDebordement = null;
+    entreeDebordement = null;
+    if (toutRepris) {
+      supprimerDebordement();
+    } else {
+      try {
+        Files.move(fichierDebordement, fichierDebordement.resolveSibling(fichierDebordement.getFileName() + ".abime"),
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+        System.err.println("Problème pour mettre de côté " + fichierDebordement + " : " + e.getMessage());
+      }
+    }
+    relus = 0;
+    debordes = 0;
+  }
+
+  private void fermerFlux(Closeable flux) {
+    if (flux == null) {
+      return;
+    }
+    try {
+      flux.close();
+    } catch (IOException e) {
+      System.err.println("Problème pour fermer " + fichierDebordement + " : " + e.getMessage());
+    }
+  }
+
+  private void supprimerDebordement() {
+    try {
+      Files.deleteIfExists(fichierDebordement);
+    } catch (IOException e) {
+      System.err.println("Problème pour supprimer " + fichierDebordement + " : " + e.getMessage());
+    }
+  }
+
+  private void ecrirePaquet(ArrayList<Ajout> paquet) {
+    plusAncienEnCours = paquet.get(0);
+    // Tous les messages d'une même conversation, dans l'ordre d'arrivée
+    Map<String, List<Enregistrement>> parConversation = new HashMap<>();
+    for (Ajout ajout : paquet) {
+      parConversation.computeIfAbsent(ajout.conversation, k -> new ArrayList<>()).add(ajout.enregistrement);
+    }
+    for (Map.Entry<String, List<Enregistrement>> entree : parConversation.entrySet()) {
+      try {
+        JournalConversation journal = journal(entree.getKey());
+        journal.ecrire(entree.getValue());
+        if (delaiSynchro != 0) {
+          aSynchroniser.add(journal);
+        }
+        if (ecouteur != null) {
+          ecouteur.apresEcriture(entree.getKey(), entree.getValue());
+        }
+      } catch (IOException e) {
+        System.err.println("Problème pour sauvegarder dans " + entree.getKey() + " : " + e.getMessage());
+        fermer(ouverts.remove(entree.getKey()));
+      }
+    }
+    if (delaiSynchro < 0) {
+      synchroniserSiBesoin(true);
+    }
+
+    verrou.lock();
+    try {
+      ecrits += paquet.size();
+      plusAncienEnCours = null;
+      paquetEcrit.signalAll();
+    } finally {
+      verrou.unlock();
+    }
+  }
+
+  private void synchroniserSiBesoin(boolean maintenant) {
+    if (aSynchroniser.isEmpty()) {
+      return;
+    }
+    if (!maintenant && System.nanoTime() - derniereSynchro < TimeUnit.MILLISECONDS.toNanos(delaiSynchro)) {
+      return;
+    }
+    for (JournalConversation journal : aSynchroniser) {
+      try {
+        journal.forcer();
+      } catch (IOException e) {
+        System.err.println("Problème pour forcer l'écriture de l'historique : " + e.getMessage());
+      }
+    }
+    aSynchroniser.clear();
+    derniereSynchro = System.nanoTime();
+  }
+
+  private JournalConversation journal(String conversation) throws IOException {
+    JournalConversation journal = ouverts.get(conversation);
+    if (journal != null) {
+      return journal;
+    }
+    if (ouverts.size() >= maxOuverts) {
+      // Le moins utilisé dernièrement est en tête
+      Iterator<JournalConversation> plusAncien = ouverts.values().iterator();
+      JournalConversation aFermer = plusAncien.next();
+      plusAncien.remove();
+      if (aSynchroniser.remove(aFermer)) {
+        try {
+          aFermer.forcer();
+        } catch (IOException e) {
+          System.err.println("Problème pour forcer l'écriture de l'historique : " + e.getMessage());
+        }
+      }
+      fermer(aFermer);
+    }
+    journal = new JournalConversation(dossier.resolve(conversation));
+    ouverts.put(conversation, journal);
+    return journal;
+  }
+
+  private void fermer(JournalConversation journal) {
+    if (journal == null) {
+      return;
+    }
+    aSynchroniser.remove(journal);
+    journal.fermer();
+  }
+
+  private void arreter() {
+    arret = true;
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(2));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
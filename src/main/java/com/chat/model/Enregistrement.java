@@ -0,0 +1,182 @@
+package com.chat.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Un message de l'historique, tel qu'il est rangé dans le journal d'une
+ * conversation
+ * Sur le disque c'est une ligne "date|expéditeur|message" (ou
+ * "date|expéditeur|destinataire|message" pour les conversations privées),
+ * le numéro n'est pas écrit : c'est la position de la ligne dans le journal
+ */
+final class Enregistrement {
+  static final DateTimeFormatter FORMAT_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  // "yyyy-MM-dd HH:mm:ss"
+  static final int LONGUEUR_DATE = 19;
+
+  // La dernière seconde formatée : les messages arrivent souvent par dizaines
+  // dans la même seconde, pas la peine de refaire la date à chaque fois
+  private static volatile DateFormatee derniereDate = new DateFormatee(Long.MIN_VALUE, "");
+
+  private static final class DateFormatee {
+    final long seconde;
+    final String texte;
+
+    DateFormatee(long seconde, String texte) {
+      this.seconde = seconde;
+      this.texte = texte;
+    }
+  }
+
+  // Donné par le journal au moment de l'écriture, 0 avant
+  long numero;
+  final long horodatage;
+  final String expediteur;
+  // Seulement pour les conversations privées
+  final String destinataire;
+  final String message;
+
+  Enregistrement(long horodatage, String expediteur, String destinataire, String message) {
+    this.horodatage = horodatage;
+    this.expediteur = expediteur;
+    this.destinataire = destinataire;
+    this.message = message;
+  }
+
+  LocalDateTime date() {
+    return LocalDateTime.ofInstant(Instant.ofEpochMilli(horodatage), ZoneId.systemDefault());
+  }
+
+  // Sans le retour à la ligne. Un message qui en contient (ça peut arriver en
+  // binaire) ne doit pas couper la ligne en deux
+  String versLigne() {
+    StringBuilder ligne = new StringBuilder();
+    ligne.append(dateFormatee()).append('|').append(expediteur).append('|');
+    if (destinataire != null) {
+      ligne.append(destinataire).append('|');
+    }
+    return ligne.append(message.replace('\n', ' ').replace('\r', ' ')).toString();
+  }
+
+  private String dateFormatee() {
+    long seconde = Math.floorDiv(horodatage, 1000);
+    DateFormatee cache = derniereDate;
+    if (cache.seconde != seconde) {
+      cache = new DateFormatee(seconde, date().format(FORMAT_DATE));
+      derniereDate = cache;
+    }
+    return cache.texte;
+  }
+
+  /**
+   * Relit une ligne du journal, null si elle est mal formée
+   */
+  static Enregistrement depuisLigne(String ligne, boolean prive, long numero) {
+    String[] parties = ligne.split("\\|", prive ? 4 : 3);
+    if (parties.length < (prive ? 4 : 3)) {
+      return null;
+    }
+    long horodatage = lireDate(parties[0]);
+    if (horodatage < 0) {
+      return null;
+    }
+    Enregistrement enregistrement = prive
+        ? new Enregistrement(horodatage, parties[1], parties[2], parties[3])
+        : new Enregistrement(horodatage, parties[1], null, parties[2]);
+    enregistrement.numero = numero;
+    return enregistrement;
+  }
+
+  /**
+   * Relit une ligne directement depuis les octets du segment (sans le retour à
+   * la ligne), null si elle est mal formée
+   * La date est lue chiffre par chiffre, sans passer par un DateTimeFormatter
+   */
+  static Enregistrement depuisOctets(ByteBuffer octets, int debut, int fin, boolean prive, long numero) {
+    byte[] ligne = new byte[fin - debut];
+    ByteBuffer copie = octets.duplicate();
+    copie.position(debut);
+    copie.get(ligne);
+
+    long horodatage = lireDate(ligne);
+    if (horodatage < 0 || ligne.length <= LONGUEUR_DATE || ligne[LONGUEUR_DATE] != '|') {
+      return null;
+    }
+    // Les champs avant le message, le message peut lui-même contenir des |
+    int champs = prive ? 2 : 1;
+    String[] valeurs = new String[champs];
+    int depart = LONGUEUR_DATE + 1;
+    for (int c = 0; c < champs; c++) {
+      int separateur = depart;
+      while (separateur < ligne.length && ligne[separateur] != '|') {
+        separateur++;
+      }
+      if (separateur == ligne.length) {
+        return null;
+      }
+      valeurs[c] = new String(ligne, depart, separateur - depart, StandardCharsets.UTF_8);
+      depart = separateur + 1;
+    }
+    String message = new String(ligne, depart, ligne.length - depart, StandardCharsets.UTF_8);
+    Enregistrement enregistrement = new Enregistrement(horodatage, valeurs[0], prive ? valeurs[1] : null, message);
+    enregistrement.numero = numero;
+    return enregistrement;
+  }
+
+  // Les 19 premiers octets, -1 si ce n'est pas une date
+  private static long lireDate(byte[] ligne) {
+    if (ligne.length < LONGUEUR_DATE || ligne[4] != '-' || ligne[7] != '-' || ligne[10] != ' '
+        || ligne[13] != ':' || ligne[16] != ':') {
+      return -1;
+    }
+    int annee = chiffres(ligne, 0, 4), mois = chiffres(ligne, 5, 2), jour = chiffres(ligne, 8, 2);
+    int heure = chiffres(ligne, 11, 2), minute = chiffres(ligne, 14, 2), seconde = chiffres(ligne, 17, 2);
+    if (annee < 0 || mois < 0 || jour < 0 || heure < 0 || minute < 0 || seconde < 0) {
+      return -1;
+    }
+    try {
+      return LocalDateTime.of(annee, mois, jour, heure, minute, seconde).atZone(ZoneId.systemDefault()).toInstant()
+          .toEpochMilli();
+    } catch (DateTimeException e) {
+      return -1;
+    }
+  }
+
+  private static int chiffres(byte[] ligne, int debut, int nombre) {
+    int valeur = 0;
+    for (int i = debut; i < debut + nombre; i++) {
+      if (ligne[i] < '0' || ligne[i] > '9') {
+        return -1;
+      }
+      valeur = valeur * 10 + (ligne[i] - '0');
+    }
+    return valeur;
+  }
+
+  /**
+   * La date telle qu'elle est écrite dans les lignes, arrondie à la seconde
+   * au-dessus : une ligne dont la date est plus petite (en comparant les
+   * octets) est plus ancienne que cet instant
+   */
+  static byte[] dateEnOctets(long horodatage) {
+    long seconde = Math.floorDiv(horodatage + 999, 1000);
+    return LocalDateTime.ofInstant(Instant.ofEpochSecond(seconde), ZoneId.systemDefault()).format(FORMAT_DATE)
+        .getBytes(StandardCharsets.US_ASCII);
+  }
+
+  // -1 si ce n'est pas une date
+  static long lireDate(String texte) {
+    try {
+      return LocalDateTime.parse(texte, FORMAT_DATE).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package com.chat.model;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Écrit un export d'historique au fil de la lecture, sans jamais tout garder
+ * en mémoire
+ * Chaque partie (une conversation) est lue sur un petit pool de threads
+ * (-Dchat.export.threads, 4 au plus par défaut) et mise en blocs de texte dans
+ * une file bornée. Le thread qui exporte vide les files dans l'ordre des
+ * parties : celles lues en avance attendent qu'il arrive jusqu'à elles. Au
+ * plus threads × BLOCS_EN_AVANCE × TAILLE_BLOC en mémoire, quelle que soit la
+ * taille de l'historique
+ * L'export est écrit à côté puis renommé une fois fini : une erreur en route
+ * ne laisse jamais un export coupé sous le nom demandé
+ */
+final class ExportHistorique {
+  private static final int THREADS = Math.max(1,
+      Integer.getInteger("chat.export.threads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+  private static final int TAILLE_BLOC = 64 * 1024;
+  private static final int BLOCS_EN_AVANCE = 4;
+  private static final String SEPARATEUR = System.lineSeparator();
+  private static final String EXTENSION_TEMPORAIRE = ".tmp";
+  // Dernier élément de la file d'une partie lue jusqu'au bout
+  private static final Object FIN = new Object();
+
+  /**
+   * Donne une à une les lignes d'une partie
+   */
+  interface Lecture {
+    void lire(Consumer<String> ligne) throws IOException;
+  }
+
+  /**
+   * Un titre puis les lignes lues, puis une ligne vide
+   */
+  static final class Partie {
+    final String titre;
+    final Lecture lecture;
+
+    Partie(String titre, Lecture lecture) {
+      this.titre = titre;
+      this.lecture = lecture;
+    }
+  }
+
+  // Pour sortir d'une lecture quand l'export est abandonné
+  private static final class Arret extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Arret() {
+      super(null, null, false, false);
+    }
+  }
+
+  private ExportHistorique() {
+  }
+
+  /**
+   * Écrit l'entête puis les parties dans l'ordre, compressé en gzip si demandé
+   */
+  static void exporter(List<String> entete, List<Partie> parties, Path fichier, boolean gzip) throws IOException {
+    // Un pool par export : les lectures d'un export ne prennent jamais la
+    // place de celles qu'un autre attend
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS, tache -> {
+      Thread thread = new Thread(tache, "chat-export");
+      thread.setDaemon(true);
+      return thread;
+    });
+    List<ArrayBlockingQueue<Object>> files = new ArrayList<>();
+    List<Future<?>> lectures = new ArrayList<>();
+    Path temporaire = fichier.resolveSibling(fichier.getFileName() + EXTENSION_TEMPORAIRE);
+    boolean termine = false;
+    try {
+      try (Writer sortie = ouvrir(temporaire, gzip)) {
+        // Les lectures démarrent dans l'ordre des parties : celle qu'on attend a
+        // toujours un thread
+        for (Partie partie : parties) {
+          ArrayBlockingQueue<Object> file = new ArrayBlockingQueue<>(BLOCS_EN_AVANCE);
+          files.add(file);
+          lectures.add(pool.submit(() -> lire(partie, file)));
+        }
+
+        for (String ligne : entete) {
+          sortie.write(ligne);
+          sortie.write(SEPARATEUR);
+        }
+        for (int i = 0; i < parties.size(); i++) {
+          sortie.write(parties.get(i).titre);
+          sortie.write(SEPARATEUR);
+          ArrayBlockingQueue<Object> file = files.get(i);
+          while (true) {
+            Object bloc = file.poll(100, TimeUnit.MILLISECONDS);
+            if (bloc == null) {
+              verifier(lectures.get(i), file, parties.get(i));
+              continue;
+            }
+            if (bloc == FIN) {
+              break;
+            }
+            if (bloc instanceof IOException) {
+              throw (IOException) bloc;
+            }
+            sortie.write((String) bloc);
+          }
+          sortie.write(SEPARATEUR);
+        }
+      }
+      // Le fichier est fermé (gzip terminé) : l'export est complet
+      Files.move(temporaire, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      termine = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Export interrompu");
+    } finally {
+      // Les lectures encore en cours attendent de la place dans leur file
+      pool.shutdownNow();
+      if (!termine) {
+        supprimer(temporaire);
+      }
+    }
+  }
+
+  private static void supprimer(Path temporaire) {
+    try {
+      Files.deleteIfExists(temporaire);
+    } catch (IOException e) {
+      System.err.println("Problème pour supprimer " + temporaire + " : " + e.getMessage());
+    }
+  }
+
+  // Une lecture arrêtée sans rien déposer (une Error, plus de mémoire...)
+  // laisserait l'export attendre pour toujours
+  private static void verifier(Future<?> lecture, ArrayBlockingQueue<Object> file, Partie partie)
+      throws IOException, InterruptedException {
+    if (!lecture.isDone() || !file.isEmpty()) {
+      return;
+    }
+    try {
+      lecture.get();
+    } catch (ExecutionException e) {
+      throw new IOException("Lecture arrêtée pour " + partie.titre, e.getCause());
+    }
+    throw new IOException("Lecture arrêtée pour " + partie.titre);
+  }
+
+  private static Writer ouvrir(Path fichier, boolean gzip) throws IOException {
+    OutputStream sortie = Files.newOutputStream(fichier);
+    if (gzip) {
+      sortie = new GZIPOutputStream(sortie, 65536);
+    }
+    return new BufferedWriter(new OutputStreamWriter(sortie, StandardCharsets.UTF_8), 65536);
+  }
+
+  // Sur un thread du pool
+  private static void lire(Partie partie, ArrayBlockingQueue<Object> file) {
+    StringBuilder bloc = new StringBuilder(TAILLE_BLOC + 256);
+    try {
+      partie.lecture.lire(ligne -> {
+        bloc.append(ligne).append(SEPARATEUR);
+        if (bloc.length() >= TAILLE_BLOC) {
+          deposer(file, bloc.toString());
+          bloc.setLength(0);
+        }
+      });
+      if (bloc.length() > 0) {
+        deposer(file, bloc.toString());
+      }
+      deposer(file, FIN);
+    } catch (Arret arret) {
+      // Export abandonné
+    } catch (IOException | RuntimeException e) {
+      // L'export s'arrête sur cette erreur quand il arrive à cette partie
+      try {
+        deposer(file, e instanceof IOException ? e : new IOException(e));
+      } catch (Arret arret) {
+        // Plus personne n'attend
+      }
+    }
+  }
+
+  private static void deposer(ArrayBlockingQueue<Object> file, Object bloc) {
+    try {
+      file.put(bloc);
+    } catch (InterruptedException e) {
+      throw new Arret();
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.chat.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Le format binaire des segments d'historique (-Dchat.historique.format=binaire,
+ * par défaut ; =texte garde les lignes lisibles d'avant)
+ *
+ * Le segment commence par "CHB1" et la date du premier message (8 octets), puis
+ * chaque message :
+ * [longueur du reste][date][expéditeur][destinataire][longueur][message]
+ * - les nombres sont des varints (7 bits par octet)
+ * - la date est l'écart en millisecondes avec celle du début du segment
+ * - l'expéditeur et le destinataire (seulement dans les conversations privées)
+ *   sont des numéros dans le dictionnaire du segment, un fichier ".dic" avec un
+ *   nom par ligne, dans l'ordre d'arrivée
+ * - le message est en UTF-8
+ * Pas de date à analyser à la lecture, et un nom répété mille fois ne prend
+ * qu'un ou deux octets
+ */
+final class FormatBinaire {
+  static final byte[] MAGIE = { 'C', 'H', 'B', '1' };
+  static final int TAILLE_ENTETE = MAGIE.length + 8;
+
+  private FormatBinaire() {
+  }
+
+  static void ecrireEntete(ByteArrayOutputStream sortie, long base) {
+    sortie.write(MAGIE, 0, MAGIE.length);
+    for (int decalage = 56; decalage >= 0; decalage -= 8) {
+      sortie.write((int) (base >>> decalage));
+    }
+  }
+
+  // -1 si le fichier ne commence pas par l'entête (coupé ou abîmé)
+  static long lireBase(ByteBuffer segment) {
+    if (segment.limit() < TAILLE_ENTETE) {
+      return -1;
+    }
+    for (int i = 0; i < MAGIE.length; i++) {
+      if (segment.get(i) != MAGIE[i]) {
+        return -1;
+      }
+    }
+    return segment.getLong(MAGIE.length);
+  }
+
+  static void ecrireVarint(ByteArrayOutputStream sortie, long valeur) {
+    while ((valeur & ~0x7FL) != 0) {
+      sortie.write((int) ((valeur & 0x7F) | 0x80));
+      valeur >>>= 7;
+    }
+    sortie.write((int) valeur);
+  }
+
+  // Avance la position du tampon, BufferUnderflowException s'il est coupé
+  static long lireVarint(ByteBuffer octets) {
+    long valeur = 0;
+    for (int decalage = 0; decalage < 64; decalage += 7) {
+      byte b = octets.get();
+      valeur |= (long) (b & 0x7F) << decalage;
+      if ((b & 0x80) == 0) {
+        return valeur;
+      }
+    }
+    return valeur;
+  }
+
+  // Les écarts de date peuvent être négatifs si l'horloge recule un peu
+  static long zigzag(long valeur) {
+    return (valeur << 1) ^ (valeur >> 63);
+  }
+
+  static long dezigzag(long valeur) {
+    return (valeur >>> 1) ^ -(valeur & 1);
+  }
+
+  /**
+   * Le corps d'un message, sans sa longueur devant
+   */
+  static byte[] encoder(Enregistrement enregistrement, long base, int expediteur, int destinataire) {
+    ByteArrayOutputStream corps = new ByteArrayOutputStream(enregistrement.message.length() + 16);
+    ecrireVarint(corps, zigzag(enregistrement.horodatage - base));
+    ecrireVarint(corps, expediteur);
+    if (destinataire >= 0) {
+      ecrireVarint(corps, destinataire);
+    }
+    byte[] message = enregistrement.message.getBytes(StandardCharsets.UTF_8);
+    ecrireVarint(corps, message.length);
+    corps.write(message, 0, message.length);
+    return corps.toByteArray();
+  }
+
+  /**
+   * Lit la date d'un message dont le corps commence à la position du tampon
+   */
+  static long lireHorodatage(ByteBuffer corps, long base) {
+    return base + dezigzag(lireVarint(corps));
+  }
+
+  /**
+   * La suite du corps, juste après la date. null si un nom n'est pas dans le
+   * dictionnaire
+   */
+  static Enregistrement decoder(ByteBuffer corps, long horodatage, boolean prive, List<String> dictionnaire,
+      long numero) {
+    String expediteur = nom(dictionnaire, lireVarint(corps));
+    String destinataire = prive ? nom(dictionnaire, lireVarint(corps)) : null;
+    int longueur = (int) lireVarint(corps);
+    if (longueur < 0 || longueur > corps.remaining()) {
+      return null;
+    }
+    byte[] message = new byte[longueur];
+    corps.get(message);
+    if (expediteur == null || (prive && destinataire == null)) {
+      return null;
+    }
+    Enregistrement enregistrement = new Enregistrement(horodatage, expediteur, destinataire,
+        new String(message, StandardCharsets.UTF_8));
+    enregistrement.numero = numero;
+    return enregistrement;
+  }
+
+  private static String nom(List<String> dictionnaire, long numero) {
+    return numero >= 0 && numero < dictionnaire.size() ? dictionnaire.get((int) numero) : null;
+  }
+
+  /**
+   * Les noms du dictionnaire, sans une dernière ligne à moitié écrite
+   */
+  static List<String> lireDictionnaire(Path fichier) throws IOException {
+    List<String> noms = new ArrayList<>();
+    byte[] octets;
+    try {
+      octets = Files.readAllBytes(fichier);
+    } catch (NoSuchFileException e) {
+      return noms;
+    }
+    int debut = 0;
+    for (int i = 0; i < octets.length; i++) {
+      if (octets[i] == '\n') {
+        noms.add(new String(octets, debut, i - debut, StandardCharsets.UTF_8));
+        debut = i + 1;
+      }
+    }
+    return noms;
+  }
+}
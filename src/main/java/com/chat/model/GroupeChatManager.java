@@ -5,6 +5,9 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.io.*;
 import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Gère les groupes de chat
@@ -13,8 +16,15 @@ import java.nio.file.*;
  */
 public class GroupeChatManager {
   private static final String GROUPES_FILE = "data/groupes_chat.txt";
-  private static Map<String, GroupeChat> groupes = new HashMap<>();
-  private static Map<String, List<String>> utilisateursGroupes = new HashMap<>(); // qui est dans quels groupes
+  private static Map<String, GroupeChat> groupes = new ConcurrentHashMap<>();
+  private static Map<String, List<String>> utilisateursGroupes = new ConcurrentHashMap<>(); // qui est dans quels groupes
+
+  // Les sessions clients modifient les groupes en parallèle : les lectures
+  // passent par des collections concurrentes, les modifications (et la
+  // sauvegarde qui suit) sont faites une par une sous ce verrou
+  // ReentrantLock et pas synchronized pour ne pas bloquer les threads porteurs
+  // des threads virtuels
+  private static final ReentrantLock verrou = new ReentrantLock();
 
   /**
    * Un groupe de chat avec ses membres et modérateurs
@@ -32,8 +42,8 @@ public class GroupeChatManager {
       this.nom = nom;
       this.createur = createur;
       this.description = description;
-      this.membres = new HashSet<>();
-      this.moderateurs = new HashSet<>();
+      this.membres = ConcurrentHashMap.newKeySet();
+      this.moderateurs = ConcurrentHashMap.newKeySet();
       this.dateCreation = LocalDateTime.now();
       this.actif = true;
 
@@ -156,6 +166,7 @@ public class GroupeChatManager {
    * Charge tous les groupes depuis le fichier
    */
   public static void chargerGroupes() {
+    verrou.lock();
     try {
       if (Files.exists(Paths.get(GROUPES_FILE))) {
         for (String ligne : Files.readAllLines(Paths.get(GROUPES_FILE))) {
@@ -166,7 +177,7 @@ public class GroupeChatManager {
 
               // On met à jour qui est dans quels groupes
               for (String membre : groupe.getMembres()) {
-                utilisateursGroupes.computeIfAbsent(membre, k -> new ArrayList<>()).add(groupe.getNom());
+                utilisateursGroupes.computeIfAbsent(membre, k -> new CopyOnWriteArrayList<>()).add(groupe.getNom());
               }
             }
           }
@@ -174,6 +185,8 @@ public class GroupeChatManager {
       }
     } catch (IOException e) {
       System.err.println("Problème pour charger les groupes : " + e.getMessage());
+    } finally {
+      verrou.unlock();
     }
   }
 
@@ -181,6 +194,7 @@ public class GroupeChatManager {
    * Sauvegarde tous les groupes dans le fichier
    */
   public static void sauvegarderGroupes() {
+    verrou.lock();
     try {
       // On crée le dossier data s'il existe pas
       Files.createDirectories(Paths.get("data"));
@@ -192,6 +206,8 @@ public class GroupeChatManager {
       Files.write(Paths.get(GROUPES_FILE), lignes);
     } catch (IOException e) {
       System.err.println("Problème pour sauvegarder les groupes : " + e.getMessage());
+    } finally {
+      verrou.unlock();
     }
   }
 
@@ -199,73 +215,88 @@ public class GroupeChatManager {
    * Crée un nouveau groupe
    */
   public static boolean creerGroupe(String nomGroupe, String createur, String description) {
-    if (groupes.containsKey(nomGroupe)) {
-      return false; // Le groupe existe déjà
-    }
+    verrou.lock();
+    try {
+      if (groupes.containsKey(nomGroupe)) {
+        return false; // Le groupe existe déjà
+      }
 
-    GroupeChat nouveauGroupe = new GroupeChat(nomGroupe, createur, description);
-    groupes.put(nomGroupe, nouveauGroupe);
+      GroupeChat nouveauGroupe = new GroupeChat(nomGroupe, createur, description);
+      groupes.put(nomGroupe, nouveauGroupe);
 
-    // On met à jour la liste des groupes de l'utilisateur
-    utilisateursGroupes.computeIfAbsent(createur, k -> new ArrayList<>()).add(nomGroupe);
+      // On met à jour la liste des groupes de l'utilisateur
+      utilisateursGroupes.computeIfAbsent(createur, k -> new CopyOnWriteArrayList<>()).add(nomGroupe);
 
-    sauvegarderGroupes();
-    return true;
+      sauvegarderGroupes();
+      return true;
+    } finally {
+      verrou.unlock();
+    }
   }
 
   /**
    * Ajoute quelqu'un à un groupe (seuls les modérateurs peuvent faire ça)
    */
   public static String ajouterUtilisateurAuGroupe(String nomGroupe, String utilisateur, String moderateur) {
-    GroupeChat groupe = groupes.get(nomGroupe);
-    if (groupe == null) {
-      return "Le groupe '" + nomGroupe + "' n'existe pas";
-    }
+    verrou.lock();
+    try {
+      GroupeChat groupe = groupes.get(nomGroupe);
+      if (groupe == null) {
+        return "Le groupe '" + nomGroupe + "' n'existe pas";
+      }
 
-    if (!groupe.estModerateur(moderateur)) {
-      return "Seuls les modérateurs peuvent ajouter des gens";
-    }
+      if (!groupe.estModerateur(moderateur)) {
+        return "Seuls les modérateurs peuvent ajouter des gens";
+      }
 
-    if (groupe.estMembre(utilisateur)) {
-      return utilisateur + " est déjà dans le groupe";
-    }
+      if (groupe.estMembre(utilisateur)) {
+        return utilisateur + " est déjà dans le groupe";
+      }
 
-    groupe.ajouterMembre(utilisateur);
-    utilisateursGroupes.computeIfAbsent(utilisateur, k -> new ArrayList<>()).add(nomGroupe);
+      groupe.ajouterMembre(utilisateur);
+      utilisateursGroupes.computeIfAbsent(utilisateur, k -> new CopyOnWriteArrayList<>()).add(nomGroupe);
 
-    sauvegarderGroupes();
-    return utilisateur + " a été ajouté au groupe '" + nomGroupe + "'";
+      sauvegarderGroupes();
+      return utilisateur + " a été ajouté au groupe '" + nomGroupe + "'";
+    } finally {
+      verrou.unlock();
+    }
   }
 
   /**
    * Vire quelqu'un d'un groupe (seuls les modérateurs peuvent faire ça)
    */
   public static String supprimerUtilisateurDuGroupe(String nomGroupe, String utilisateur, String moderateur) {
-    GroupeChat groupe = groupes.get(nomGroupe);
-    if (groupe == null) {
-      return "Le groupe '" + nomGroupe + "' n'existe pas";
-    }
+    verrou.lock();
+    try {
+      GroupeChat groupe = groupes.get(nomGroupe);
+      if (groupe == null) {
+        return "Le groupe '" + nomGroupe + "' n'existe pas";
+      }
 
-    if (!groupe.estModerateur(moderateur)) {
-      return "Seuls les modérateurs peuvent virer des gens";
-    }
+      if (!groupe.estModerateur(moderateur)) {
+        return "Seuls les modérateurs peuvent virer des gens";
+      }
 
-    if (utilisateur.equals(groupe.getCreateur())) {
-      return "On peut pas virer le créateur du groupe";
-    }
+      if (utilisateur.equals(groupe.getCreateur())) {
+        return "On peut pas virer le créateur du groupe";
+      }
 
-    if (!groupe.estMembre(utilisateur)) {
-      return utilisateur + " n'est pas dans ce groupe";
-    }
+      if (!groupe.estMembre(utilisateur)) {
+        return utilisateur + " n'est pas dans ce groupe";
+      }
 
-    groupe.supprimerMembre(utilisateur);
-    List<String> groupesUtilisateur = utilisateursGroupes.get(utilisateur);
-    if (groupesUtilisateur != null) {
-      groupesUtilisateur.remove(nomGroupe);
-    }
+      groupe.supprimerMembre(utilisateur);
+      List<String> groupesUtilisateur = utilisateursGroupes.get(utilisateur);
+      if (groupesUtilisateur != null) {
+        groupesUtilisateur.remove(nomGroupe);
+      }
 
-    sauvegarderGroupes();
-    return utilisateur + " a été viré du groupe '" + nomGroupe + "'";
+      sauvegarderGroupes();
+      return utilisateur + " a été viré du groupe '" + nomGroupe + "'";
+    } finally {
+      verrou.unlock();
+    }
   }
 
   /**
@@ -273,26 +304,31 @@ public class GroupeChatManager {
    * ça)
    */
   public static String promouvoirModerateur(String nomGroupe, String utilisateur, String moderateur) {
-    GroupeChat groupe = groupes.get(nomGroupe);
-    if (groupe == null) {
-      return "Le groupe '" + nomGroupe + "' n'existe pas";
-    }
+    verrou.lock();
+    try {
+      GroupeChat groupe = groupes.get(nomGroupe);
+      if (groupe == null) {
+        return "Le groupe '" + nomGroupe + "' n'existe pas";
+      }
 
-    if (!groupe.estModerateur(moderateur)) {
-      return "Seuls les modérateurs peuvent promouvoir quelqu'un";
-    }
+      if (!groupe.estModerateur(moderateur)) {
+        return "Seuls les modérateurs peuvent promouvoir quelqu'un";
+      }
 
-    if (!groupe.estMembre(utilisateur)) {
-      return utilisateur + " n'est pas membre du groupe";
-    }
+      if (!groupe.estMembre(utilisateur)) {
+        return utilisateur + " n'est pas membre du groupe";
+      }
 
-    if (groupe.estModerateur(utilisateur)) {
-      return utilisateur + " est déjà modérateur";
-    }
+      if (groupe.estModerateur(utilisateur)) {
+        return utilisateur + " est déjà modérateur";
+      }
 
-    groupe.ajouterModerateur(utilisateur);
-    sauvegarderGroupes();
-    return utilisateur + " est maintenant modérateur du groupe '" + nomGroupe + "'";
+      groupe.ajouterModerateur(utilisateur);
+      sauvegarderGroupes();
+      return utilisateur + " est maintenant modérateur du groupe '" + nomGroupe + "'";
+    } finally {
+      verrou.unlock();
+    }
   }
 
   /**
@@ -301,10 +337,8 @@ public class GroupeChatManager {
   public static void diffuserMessageGroupe(String nomGroupe, String expediteur, String message, Object serverInstance) {
     GroupeChat groupe = groupes.get(nomGroupe);
     if (groupe != null && groupe.isActif() && groupe.estMembre(expediteur)) {
-      String messageFormate = "[" + nomGroupe + "] " + expediteur + " : " + message;
-
-      // TODO: Ici il faudrait envoyer le message à tous les membres connectés
-      // Pour l'instant on fait juste une sauvegarde
+      // L'envoi aux membres connectés est fait par le serveur
+      // (EchoServer.diffuserMessageGroupe), ici on fait juste la sauvegarde
       MessageStorage.sauvegarderMessageGroupe(nomGroupe, expediteur, message);
     }
   }
@@ -313,7 +347,7 @@ public class GroupeChatManager {
    * Donne la liste des groupes où quelqu'un est membre
    */
   public static List<String> obtenirGroupesUtilisateur(String utilisateur) {
-    return utilisateursGroupes.getOrDefault(utilisateur, new ArrayList<>());
+    return utilisateursGroupes.getOrDefault(utilisateur, Collections.emptyList());
   }
 
   /**
@@ -0,0 +1,325 @@
+package com.chat.model;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Index inversé de l'historique : pour chaque mot, dans chaque conversation,
+ * les numéros des messages qui le contiennent
+ * Les écrivains le complètent après chaque paquet écrit. Au démarrage il est
+ * reconstruit en tâche de fond à partir des journaux (les recherches faites
+ * avant la fin ne voient pas encore tout)
+ * Une recherche ne lit aucun fichier : elle croise les listes de numéros, puis
+ * MessageStorage va chercher seulement les messages trouvés
+ */
+final class IndexRecherche {
+  // Les mots plus courts ("a", "y"...) ne servent à rien pour chercher
+  private static final int LONGUEUR_MIN = 2;
+
+  // Beaucoup de lectures (recherches), des écritures par paquets
+  private final ReentrantReadWriteLock verrou = new ReentrantReadWriteLock();
+  private final Map<String, Integer> numerosConversations = new HashMap<>();
+  private final List<String> conversations = new ArrayList<>();
+  // Pour les conversations privées, les deux personnes qui y parlent
+  private final List<Set<String>> participants = new ArrayList<>();
+  private final Map<String, Map<Integer, Numeros>> mots = new HashMap<>();
+  private volatile boolean complet = false;
+
+  /**
+   * Une conversation et un message trouvés
+   */
+  static final class Resultat {
+    final String conversation;
+    final long numero;
+
+    Resultat(String conversation, long numero) {
+      this.conversation = conversation;
+      this.numero = numero;
+    }
+  }
+
+  // Liste de numéros croissants qui grandit au besoin. En int pour tenir deux
+  // fois plus en mémoire : une conversation n'ira jamais jusqu'à deux
+  // milliards de messages (au-delà ils ne sont juste pas indexés)
+  private static final class Numeros {
+    int[] valeurs = new int[2];
+    int taille;
+
+    void ajouter(long numero) {
+      if (numero > Integer.MAX_VALUE || (taille > 0 && valeurs[taille - 1] >= numero)) {
+        // Déjà là (reconstruction et écriture en même temps)
+        return;
+      }
+      if (taille == valeurs.length) {
+        valeurs = Arrays.copyOf(valeurs, taille * 2);
+      }
+      valeurs[taille++] = (int) numero;
+    }
+
+    void enleverAvant(long premier) {
+      int debut = Arrays.binarySearch(valeurs, 0, taille, (int) Math.min(premier, Integer.MAX_VALUE));
+      if (debut < 0) {
+        debut = -debut - 1;
+      }
+      if (debut > 0) {
+        int reste = taille - debut;
+        valeurs = Arrays.copyOfRange(valeurs, debut, debut + Math.max(reste, 2));
+        taille = reste;
+      }
+    }
+
+    boolean contient(int numero) {
+      return Arrays.binarySearch(valeurs, 0, taille, numero) >= 0;
+    }
+
+    // Les deux listes réunies, sans doublons
+    static Numeros fusionner(Numeros a, Numeros b) {
+      Numeros resultat = new Numeros();
+      resultat.valeurs = new int[a.taille + b.taille];
+      int i = 0, j = 0;
+      while (i < a.taille || j < b.taille) {
+        int suivant;
+        if (j >= b.taille || (i < a.taille && a.valeurs[i] <= b.valeurs[j])) {
+          suivant = a.valeurs[i++];
+        } else {
+          suivant = b.valeurs[j++];
+        }
+        if (resultat.taille == 0 || resultat.valeurs[resultat.taille - 1] != suivant) {
+          resultat.valeurs[resultat.taille++] = suivant;
+        }
+      }
+      return resultat;
+    }
+  }
+
+  /**
+   * Les mots d'un texte tels qu'ils sont indexés : en minuscules, sans accents
+   */
+  static Set<String> mots(String texte) {
+    String simplifie = Normalizer.normalize(texte.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+    Set<String> resultat = new LinkedHashSet<>();
+    StringBuilder mot = new StringBuilder();
+    for (int i = 0; i <= simplifie.length(); i++) {
+      char c = i < simplifie.length() ? simplifie.charAt(i) : ' ';
+      if (Character.getType(c) == Character.NON_SPACING_MARK) {
+        continue;
+      }
+      if (Character.isLetterOrDigit(c)) {
+        mot.append(c);
+      } else if (mot.length() > 0) {
+        if (mot.length() >= LONGUEUR_MIN) {
+          resultat.add(mot.toString());
+        }
+        mot.setLength(0);
+      }
+    }
+    return resultat;
+  }
+
+  /**
+   * Ajoute des messages qui viennent d'être écrits (ils ont leur numéro)
+   */
+  void indexer(String conversation, List<Enregistrement> enregistrements) {
+    // Le découpage en mots se fait avant de prendre le verrou
+    List<Set<String>> motsParMessage = new ArrayList<>(enregistrements.size());
+    for (Enregistrement enregistrement : enregistrements) {
+      motsParMessage.add(mots(enregistrement.message));
+    }
+    verrou.writeLock().lock();
+    try {
+      int numeroConversation = numeroConversation(conversation);
+      for (int i = 0; i < enregistrements.size(); i++) {
+        Enregistrement enregistrement = enregistrements.get(i);
+        ajouterParticipants(numeroConversation, enregistrement);
+        for (String mot : motsParMessage.get(i)) {
+          mots.computeIfAbsent(mot, k -> new HashMap<>())
+              .computeIfAbsent(numeroConversation, k -> new Numeros())
+              .ajouter(enregistrement.numero);
+        }
+      }
+    } finally {
+      verrou.writeLock().unlock();
+    }
+  }
+
+  private int numeroConversation(String conversation) {
+    Integer numero = numerosConversations.get(conversation);
+    if (numero == null) {
+      numero = conversations.size();
+      numerosConversations.put(conversation, numero);
+      conversations.add(conversation);
+      participants.add(new HashSet<>());
+    }
+    return numero;
+  }
+
+  private void ajouterParticipants(int numeroConversation, Enregistrement enregistrement) {
+    if (enregistrement.destinataire != null) {
+      Set<String> personnes = participants.get(numeroConversation);
+      personnes.add(enregistrement.expediteur);
+      personnes.add(enregistrement.destinataire);
+    }
+  }
+
+  /**
+   * Relit tous les journaux du dossier, une conversation à la fois : ce qui a
+   * été lu est fusionné avec ce que les écrivains ont ajouté entre temps
+   */
+  void reconstruire(Path dossierHistorique, Predicate<String> prive) {
+    List<Path> dossiers = new ArrayList<>();
+    try (Stream<Path> liste = Files.list(dossierHistorique)) {
+      liste.filter(Files::isDirectory).forEach(dossiers::add);
+    } catch (IOException e) {
+      System.err.println("Problème pour construire l'index de recherche : " + e.getMessage());
+    }
+    for (Path dossier : dossiers) {
+      String conversation = dossier.getFileName().toString();
+      Map<String, Numeros> lus = new HashMap<>();
+      Set<String> personnes = new HashSet<>();
+      try {
+        LectureJournal.parcourir(dossier, prive.test(conversation), 1, e -> {
+          for (String mot : mots(e.message)) {
+            lus.computeIfAbsent(mot, k -> new Numeros()).ajouter(e.numero);
+          }
+          if (e.destinataire != null) {
+            personnes.add(e.expediteur);
+            personnes.add(e.destinataire);
+          }
+          return true;
+        });
+      } catch (IOException e) {
+        System.err.println("Problème pour indexer " + conversation + " : " + e.getMessage());
+        continue;
+      }
+      verrou.writeLock().lock();
+      try {
+        int numeroConversation = numeroConversation(conversation);
+        participants.get(numeroConversation).addAll(personnes);
+        for (Map.Entry<String, Numeros> entree : lus.entrySet()) {
+          Map<Integer, Numeros> parConversation = mots.computeIfAbsent(entree.getKey(), k -> new HashMap<>());
+          Numeros existants = parConversation.get(numeroConversation);
+          parConversation.put(numeroConversation,
+              existants == null ? entree.getValue() : Numeros.fusionner(entree.getValue(), existants));
+        }
+      } finally {
+        verrou.writeLock().unlock();
+      }
+    }
+    complet = true;
+  }
+
+  /**
+   * Oublie les messages supprimés par le ménage : pour chaque conversation
+   * nettoyée, ceux avant le premier numéro qui reste
+   */
+  void oublierAvant(Map<String, Long> premiers) {
+    verrou.writeLock().lock();
+    try {
+      Map<Integer, Long> parConversation = new HashMap<>();
+      for (Map.Entry<String, Long> entree : premiers.entrySet()) {
+        Integer numeroConversation = numerosConversations.get(entree.getKey());
+        if (numeroConversation != null) {
+          parConversation.put(numeroConversation, entree.getValue());
+        }
+      }
+      if (parConversation.isEmpty()) {
+        return;
+      }
+      Iterator<Map<Integer, Numeros>> listes = mots.values().iterator();
+      while (listes.hasNext()) {
+        Map<Integer, Numeros> liste = listes.next();
+        for (Map.Entry<Integer, Long> entree : parConversation.entrySet()) {
+          Numeros numeros = liste.get(entree.getKey());
+          if (numeros != null) {
+            numeros.enleverAvant(entree.getValue());
+            if (numeros.taille == 0) {
+              liste.remove(entree.getKey());
+            }
+          }
+        }
+        if (liste.isEmpty()) {
+          listes.remove();
+        }
+      }
+    } finally {
+      verrou.writeLock().unlock();
+    }
+  }
+
+  // false tant que la reconstruction du démarrage n'est pas finie
+  boolean estComplet() {
+    return complet;
+  }
+
+  /**
+   * Les messages qui contiennent tous les mots, dans les conversations
+   * permises (on donne aussi qui parle dans une conversation privée) : au plus
+   * "limite" par conversation, les plus récents d'abord
+   */
+  List<Resultat> chercher(Set<String> recherche, BiPredicate<String, Set<String>> permise, int limite) {
+    List<Resultat> resultats = new ArrayList<>();
+    if (recherche.isEmpty()) {
+      return resultats;
+    }
+    verrou.readLock().lock();
+    try {
+      List<Map<Integer, Numeros>> listes = new ArrayList<>();
+      for (String mot : recherche) {
+        Map<Integer, Numeros> parConversation = mots.get(mot);
+        if (parConversation == null) {
+          return resultats;
+        }
+        listes.add(parConversation);
+      }
+      // On part du mot qui est dans le moins de conversations
+      listes.sort(Comparator.comparingInt(Map::size));
+      for (Map.Entry<Integer, Numeros> entree : listes.get(0).entrySet()) {
+        String conversation = conversations.get(entree.getKey());
+        if (!permise.test(conversation, participants.get(entree.getKey()))) {
+          continue;
+        }
+        List<Numeros> autres = new ArrayList<>();
+        autres.add(entree.getValue());
+        for (int i = 1; i < listes.size(); i++) {
+          Numeros numeros = listes.get(i).get(entree.getKey());
+          if (numeros == null) {
+            autres = null;
+            break;
+          }
+          autres.add(numeros);
+        }
+        if (autres == null) {
+          continue;
+        }
+        // On parcourt le mot le plus rare de la conversation et on cherche les
+        // autres par dichotomie
+        autres.sort(Comparator.comparingInt(n -> n.taille));
+        Numeros candidats = autres.remove(0);
+        int trouves = 0;
+        for (int i = candidats.taille - 1; i >= 0 && trouves < limite; i--) {
+          int numero = candidats.valeurs[i];
+          boolean partout = true;
+          for (Numeros numeros : autres) {
+            if (!numeros.contient(numero)) {
+              partout = false;
+              break;
+            }
+          }
+          if (partout) {
+            resultats.add(new Resultat(conversation, numero));
+            trouves++;
+          }
+        }
+      }
+    } finally {
+      verrou.readLock().unlock();
+    }
+    return resultats;
+  }
+}
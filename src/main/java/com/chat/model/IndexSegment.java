@@ -0,0 +1,140 @@
+package com.chat.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * L'index clairsemé d'un segment : une entrée (numéro, date, position) pour le
+ * premier message du segment puis environ tous les
+ * JournalConversation.INTERVALLE_INDEX octets
+ * Pour trouver un message on cherche l'entrée juste avant dans l'index, puis
+ * on lit le segment à partir de sa position : jamais plus de quelques Ko
+ */
+final class IndexSegment {
+  // Trois longs : numéro, date en millisecondes, position dans le segment
+  static final int TAILLE_ENTREE = 24;
+
+  private final long[] numeros;
+  private final long[] horodatages;
+  private final long[] positions;
+
+  private IndexSegment(long[] numeros, long[] horodatages, long[] positions) {
+    this.numeros = numeros;
+    this.horodatages = horodatages;
+    this.positions = positions;
+  }
+
+  /**
+   * Lit l'index d'un segment (vide s'il n'existe pas). Une entrée à moitié
+   * écrite à la fin est ignorée
+   */
+  static IndexSegment lire(Path fichier) throws IOException {
+    try (FileChannel canal = FileChannel.open(fichier, StandardOpenOption.READ)) {
+      return lire(canal);
+    } catch (NoSuchFileException e) {
+      return new IndexSegment(new long[0], new long[0], new long[0]);
+    }
+  }
+
+  static IndexSegment lire(FileChannel canal) throws IOException {
+    int nombre = (int) (canal.size() / TAILLE_ENTREE);
+    ByteBuffer octets = ByteBuffer.allocate(nombre * TAILLE_ENTREE);
+    remplir(canal, octets, 0);
+    octets.flip();
+    long[] numeros = new long[nombre];
+    long[] horodatages = new long[nombre];
+    long[] positions = new long[nombre];
+    for (int i = 0; i < nombre; i++) {
+      numeros[i] = octets.getLong();
+      horodatages[i] = octets.getLong();
+      positions[i] = octets.getLong();
+    }
+    return new IndexSegment(numeros, horodatages, positions);
+  }
+
+  /**
+   * La date de la première entrée, sans lire tout l'index (Long.MIN_VALUE si
+   * l'index est vide)
+   */
+  static long premierHorodatage(Path fichier) throws IOException {
+    try (FileChannel canal = FileChannel.open(fichier, StandardOpenOption.READ)) {
+      ByteBuffer octets = ByteBuffer.allocate(TAILLE_ENTREE);
+      remplir(canal, octets, 0);
+      return octets.hasRemaining() ? Long.MIN_VALUE : octets.getLong(8);
+    } catch (NoSuchFileException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  // Lit à partir de cette position jusqu'à remplir le tampon ou arriver à la fin
+  static void remplir(FileChannel canal, ByteBuffer octets, long position) throws IOException {
+    while (octets.hasRemaining()) {
+      int lus = canal.read(octets, position);
+      if (lus < 0) {
+        return;
+      }
+      position += lus;
+    }
+  }
+
+  static void ecrireEntree(ByteBuffer octets, long numero, long horodatage, long position) {
+    octets.putLong(numero).putLong(horodatage).putLong(position);
+  }
+
+  int taille() {
+    return numeros.length;
+  }
+
+  long numero(int i) {
+    return numeros[i];
+  }
+
+  long horodatage(int i) {
+    return horodatages[i];
+  }
+
+  long position(int i) {
+    return positions[i];
+  }
+
+  /**
+   * La dernière entrée dont le numéro est inférieur ou égal, -1 s'il n'y en a
+   * pas
+   */
+  int chercherNumero(long numero) {
+    int bas = 0, haut = numeros.length - 1, trouve = -1;
+    while (bas <= haut) {
+      int milieu = (bas + haut) >>> 1;
+      if (numeros[milieu] <= numero) {
+        trouve = milieu;
+        bas = milieu + 1;
+      } else {
+        haut = milieu - 1;
+      }
+    }
+    return trouve;
+  }
+
+  /**
+   * La dernière entrée strictement plus ancienne que cette date (les messages
+   * de la même seconde peuvent être juste avant une entrée), -1 s'il n'y en a
+   * pas
+   */
+  int chercherHorodatage(long horodatage) {
+    int bas = 0, haut = horodatages.length - 1, trouve = -1;
+    while (bas <= haut) {
+      int milieu = (bas + haut) >>> 1;
+      if (horodatages[milieu] < horodatage) {
+        trouve = milieu;
+        bas = milieu + 1;
+      } else {
+        haut = milieu - 1;
+      }
+    }
+    return trouve;
+  }
+}
@@ -0,0 +1,286 @@
+package com.chat.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Le journal d'une conversation, côté écriture : un dossier avec des segments
+ * de taille limitée, chacun avec son index clairsemé (voir SegmentJournal et
+ * IndexSegment)
+ * On n'écrit jamais qu'à la fin du dernier segment. Quand il dépasse
+ * -Dchat.historique.segmentKo, ou que le message suivant tombe dans une autre
+ * tranche de temps (-Dchat.historique.trancheHeures, un jour par défaut), ce
+ * message commence un nouveau segment. Un segment ne couvre donc jamais plus
+ * d'une tranche, et le ménage des vieux messages n'a qu'à supprimer des
+ * segments entiers
+ *
+ * Un seul thread s'en sert (celui de l'EcrivainGroupe qui a la conversation),
+ * les lectures passent par LectureJournal et lisent les fichiers directement
+ */
+final class JournalConversation {
+  static final long TAILLE_SEGMENT = Math.max(4, Long.getLong("chat.historique.segmentKo", 1024)) * 1024;
+  // Une entrée d'index environ tous les 4 Ko : on ne lit jamais plus pour
+  // trouver un message
+  static final int INTERVALLE_INDEX = 4096;
+  static final long DUREE_TRANCHE = Math.max(1, Long.getLong("chat.historique.trancheHeures", 24)) * 3_600_000L;
+  // Le format des nouveaux segments, ceux qui existent gardent le leur
+  static final boolean BINAIRE = !"texte".equalsIgnoreCase(System.getProperty("chat.historique.format", "binaire"));
+
+  private final Path dossier;
+  // Le segment en cours (null tant qu'il n'y en a pas)
+  private SegmentJournal courant;
+  private FileChannel segment;
+  private FileChannel index;
+  private FileChannel dictionnaire;
+  private long taille;
+  private long tailleIndex;
+  private long tailleDictionnaire;
+  private long depuisEntree;
+  private long prochainNumero = 1;
+  // La tranche du premier message du segment en cours (MIN_VALUE s'il est vide)
+  private long tranche = Long.MIN_VALUE;
+  // En binaire : la date de départ du segment et les numéros des noms
+  private long base;
+  private final Map<String, Integer> noms = new HashMap<>();
+
+  // Ce qui part dans le segment en cours au prochain vider()
+  private final ByteArrayOutputStream donnees = new ByteArrayOutputStream();
+  private final ByteBuffer entrees = ByteBuffer.allocate(IndexSegment.TAILLE_ENTREE * 256);
+  private final ByteArrayOutputStream nouveauxNoms = new ByteArrayOutputStream();
+
+  JournalConversation(Path dossier) throws IOException {
+    this.dossier = dossier;
+    Files.createDirectories(dossier);
+    List<SegmentJournal> segments = SegmentJournal.lister(dossier);
+    if (!segments.isEmpty()) {
+      SegmentJournal dernier = segments.get(segments.size() - 1);
+      if (dernier.compresse) {
+        // Redevenu le dernier (celui d'après était vide) : on le remet en clair
+        ArchivesSegments.decompresser(dernier);
+        dernier = dernier.versionCompressee(false);
+      }
+      reprendre(dernier);
+    }
+  }
+
+  // Rouvre le dernier segment et retrouve où on en était. Après un arrêt brutal
+  // un message ou une entrée d'index peut être à moitié écrit : on les enlève
+  private void reprendre(SegmentJournal dernier) throws IOException {
+    ouvrir(dernier);
+    long tailleFichier = segment.size();
+    IndexSegment existant = IndexSegment.lire(index);
+    int entreesValides = existant.taille();
+    while (entreesValides > 0 && existant.position(entreesValides - 1) >= tailleFichier) {
+      entreesValides--;
+    }
+    long depart = entreesValides > 0 ? existant.position(entreesValides - 1) : 0;
+    long numero = entreesValides > 0 ? existant.numero(entreesValides - 1) : dernier.premier;
+
+    long[] compte = dernier.compter(segment, depart);
+    taille = compte[1];
+    segment.truncate(taille);
+    tailleIndex = (long) entreesValides * IndexSegment.TAILLE_ENTREE;
+    index.truncate(tailleIndex);
+    depuisEntree = taille - depart;
+    prochainNumero = numero + compte[0];
+    // La première entrée d'index est toujours celle du premier message
+    tranche = entreesValides > 0 ? tranche(existant.horodatage(0)) : Long.MIN_VALUE;
+
+    if (dernier.binaire) {
+      ByteBuffer entete = ByteBuffer.allocate(FormatBinaire.TAILLE_ENTETE);
+      IndexSegment.remplir(segment, entete, 0);
+      entete.flip();
+      base = FormatBinaire.lireBase(entete);
+      if (base < 0) {
+        // L'entête n'a pas été écrit jusqu'au bout : le segment est vide
+        taille = 0;
+        segment.truncate(0);
+        tailleIndex = 0;
+        index.truncate(0);
+        tranche = Long.MIN_VALUE;
+      }
+      List<String> existants = FormatBinaire.lireDictionnaire(dernier.dictionnaire());
+      for (String nom : existants) {
+        noms.put(nom, noms.size());
+      }
+      tailleDictionnaire = 0;
+      for (String nom : existants) {
+        tailleDictionnaire += nom.getBytes(StandardCharsets.UTF_8).length + 1;
+      }
+      dictionnaire.truncate(tailleDictionnaire);
+    }
+    if (dernier.binaire != BINAIRE) {
+      // On a changé de format : le prochain message commence un segment neuf
+      // (qui aura le même numéro si celui-ci est vide, autant l'enlever)
+      boolean vide = taille <= debutDonnees();
+      fermerSegment();
+      if (vide) {
+        dernier.supprimer();
+      }
+    }
+  }
+
+  private void ouvrir(SegmentJournal nouveau) throws IOException {
+    courant = nouveau;
+    segment = FileChannel.open(nouveau.fichier(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    index = FileChannel.open(nouveau.index(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (nouveau.binaire) {
+      dictionnaire = FileChannel.open(nouveau.dictionnaire(),
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    taille = 0;
+    tailleIndex = 0;
+    tailleDictionnaire = 0;
+    depuisEntree = 0;
+    tranche = Long.MIN_VALUE;
+    noms.clear();
+  }
+
+  // Les tranches commencent à minuit UTC quand elles font un jour
+  static long tranche(long horodatage) {
+    return Math.floorDiv(horodatage, DUREE_TRANCHE);
+  }
+
+  /**
+   * Ajoute ces messages à la fin du journal et leur donne leur numéro
+   */
+  void ecrire(List<Enregistrement> enregistrements) throws IOException {
+    for (Enregistrement enregistrement : enregistrements) {
+      byte[] octets = encoder(enregistrement);
+      long position = taille + donnees.size();
+      boolean nouveau = false;
+      boolean plein = position + octets.length > TAILLE_SEGMENT;
+      boolean autreTranche = tranche != Long.MIN_VALUE && tranche(enregistrement.horodatage) != tranche;
+      if (segment == null || (position > debutDonnees() && (plein || autreTranche))) {
+        vider();
+        fermerSegment();
+        ouvrir(new SegmentJournal(dossier, prochainNumero, BINAIRE));
+        position = 0;
+        nouveau = true;
+      }
+      if (courant.binaire && position == 0) {
+        base = enregistrement.horodatage;
+        FormatBinaire.ecrireEntete(donnees, base);
+        position = FormatBinaire.TAILLE_ENTETE;
+        nouveau = true;
+      }
+      if (nouveau) {
+        // Les numéros des noms et la date de départ changent avec le segment
+        octets = encoder(enregistrement);
+      }
+      if (position == debutDonnees()) {
+        tranche = tranche(enregistrement.horodatage);
+      }
+      if (position == debutDonnees() || depuisEntree >= INTERVALLE_INDEX) {
+        if (!entrees.hasRemaining()) {
+          vider();
+        }
+        IndexSegment.ecrireEntree(entrees, prochainNumero, enregistrement.horodatage, position);
+        depuisEntree = 0;
+      }
+      enregistrement.numero = prochainNumero++;
+      donnees.write(octets, 0, octets.length);
+      depuisEntree += octets.length;
+    }
+    vider();
+  }
+
+  private long debutDonnees() {
+    return courant != null && courant.binaire ? FormatBinaire.TAILLE_ENTETE : 0;
+  }
+
+  private byte[] encoder(Enregistrement enregistrement) {
+    if (courant == null || !courant.binaire) {
+      return (enregistrement.versLigne() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    byte[] corps = FormatBinaire.encoder(enregistrement, base, numeroNom(enregistrement.expediteur),
+        enregistrement.destinataire != null ? numeroNom(enregistrement.destinataire) : -1);
+    ByteArrayOutputStream message = new ByteArrayOutputStream(corps.length + 3);
+    FormatBinaire.ecrireVarint(message, corps.length);
+    message.write(corps, 0, corps.length);
+    return message.toByteArray();
+  }
+
+  // Un nom qu'on n'a pas encore vu dans ce segment part dans le dictionnaire
+  private int numeroNom(String nom) {
+    Integer numero = noms.get(nom);
+    if (numero == null) {
+      numero = noms.size();
+      noms.put(nom, numero);
+      byte[] ligne = (nom.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+      nouveauxNoms.write(ligne, 0, ligne.length);
+    }
+    return numero;
+  }
+
+  // Le dictionnaire d'abord, puis les messages, puis l'index : rien ne désigne
+  // jamais quelque chose qui n'est pas encore écrit
+  private void vider() throws IOException {
+    if (nouveauxNoms.size() > 0) {
+      if (dictionnaire != null) {
+        tailleDictionnaire += ecrire(dictionnaire, ByteBuffer.wrap(nouveauxNoms.toByteArray()), tailleDictionnaire);
+      }
+      nouveauxNoms.reset();
+    }
+    if (donnees.size() > 0) {
+      taille += ecrire(segment, ByteBuffer.wrap(donnees.toByteArray()), taille);
+      donnees.reset();
+    }
+    if (entrees.position() > 0) {
+      entrees.flip();
+      tailleIndex += ecrire(index, entrees, tailleIndex);
+      entrees.clear();
+    }
+  }
+
+  private static long ecrire(FileChannel canal, ByteBuffer octets, long position) throws IOException {
+    long ecrits = 0;
+    while (octets.hasRemaining()) {
+      ecrits += canal.write(octets, position + ecrits);
+    }
+    return ecrits;
+  }
+
+  void forcer() throws IOException {
+    if (segment != null) {
+      if (dictionnaire != null) {
+        dictionnaire.force(false);
+      }
+      segment.force(false);
+      index.force(false);
+    }
+  }
+
+  private void fermerSegment() throws IOException {
+    if (segment != null) {
+      // Un segment terminé ne bougera plus, autant qu'il soit sur le disque
+      forcer();
+      segment.close();
+      index.close();
+      if (dictionnaire != null) {
+        dictionnaire.close();
+      }
+      segment = null;
+      index = null;
+      dictionnaire = null;
+      courant = null;
+    }
+  }
+
+  void fermer() {
+    try {
+      fermerSegment();
+    } catch (IOException e) {
+      System.err.println("Problème pour fermer le journal " + dossier + " : " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,327 @@
+package com.chat.model;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+
+/**
+ * Lecture du journal d'une conversation (voir JournalConversation), depuis
+ * n'importe quel thread pendant que l'écrivain ajoute à la fin
+ * On ne lit que des messages complets : un message en train d'être écrit sera
+ * vu à la lecture suivante. Un segment supprimé avant d'être ouvert (ménage
+ * des vieux messages) est simplement sauté, celui déjà projeté reste lisible
+ */
+final class LectureJournal {
+
+  /**
+   * Reçoit les messages dans l'ordre, renvoie false pour arrêter la lecture
+   */
+  interface Visiteur {
+    boolean visiter(Enregistrement enregistrement);
+  }
+
+  private LectureJournal() {
+  }
+
+  /**
+   * Le numéro du dernier message complet du journal (0 s'il est vide) : on
+   * part de la dernière entrée d'index et on compte les messages après
+   */
+  static long dernierNumero(Path dossier) throws IOException {
+    List<SegmentJournal> segments = SegmentJournal.lister(dossier);
+    if (segments.isEmpty()) {
+      return 0;
+    }
+    SegmentJournal dernier = segments.get(segments.size() - 1);
+    IndexSegment index = IndexSegment.lire(dernier.index());
+    long position = 0;
+    long numero = dernier.premier;
+    if (index.taille() > 0) {
+      position = index.position(index.taille() - 1);
+      numero = index.numero(index.taille() - 1);
+    }
+    try {
+      if (dernier.compresse) {
+        numero += dernier.compter(ArchivesSegments.lire(dernier), position)[0];
+      } else {
+        try (FileChannel canal = FileChannel.open(dernier.fichier(), StandardOpenOption.READ)) {
+          numero += dernier.compter(canal, position)[0];
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // Supprimé entre temps : le journal est vide
+      return 0;
+    }
+    return numero - 1;
+  }
+
+  /**
+   * La date la plus récente des messages du segment (Long.MIN_VALUE s'il est
+   * vide) : on ne lit qu'à partir de sa dernière entrée d'index
+   */
+  static long dernierHorodatage(SegmentJournal segment, boolean prive) throws IOException {
+    IndexSegment index = IndexSegment.lire(segment.index());
+    long position = 0;
+    long numero = segment.premier;
+    long[] dernier = { Long.MIN_VALUE };
+    if (index.taille() > 0) {
+      position = index.position(index.taille() - 1);
+      numero = index.numero(index.taille() - 1);
+      dernier[0] = index.horodatage(index.taille() - 1);
+    }
+    lireSegment(segment, position, numero, prive, 0, Long.MIN_VALUE, e -> {
+      dernier[0] = Math.max(dernier[0], e.horodatage);
+      return true;
+    });
+    return dernier[0];
+  }
+
+  /**
+   * Lit les messages à partir de ce numéro (1 pour tout lire)
+   */
+  static void parcourir(Path dossier, boolean prive, long depuisNumero, Visiteur visiteur) throws IOException {
+    List<SegmentJournal> segments = SegmentJournal.lister(dossier);
+    // Le dernier segment qui commence avant ce numéro
+    int premier = 0;
+    for (int i = segments.size() - 1; i > 0; i--) {
+      if (segments.get(i).premier <= depuisNumero) {
+        premier = i;
+        break;
+      }
+    }
+    for (int i = premier; i < segments.size(); i++) {
+      SegmentJournal segment = segments.get(i);
+      long position = 0;
+      long numero = segment.premier;
+      if (depuisNumero > segment.premier) {
+        IndexSegment index = IndexSegment.lire(segment.index());
+        int entree = index.chercherNumero(depuisNumero);
+        if (entree >= 0) {
+          position = index.position(entree);
+          numero = index.numero(entree);
+        }
+      }
+      if (!lireSegment(segment, position, numero, prive, depuisNumero, Long.MIN_VALUE, visiteur)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Lit seulement ces messages (numéros croissants) : les segments ne sont
+   * listés qu'une fois, et ceux d'un même segment sont lus en un passage qui
+   * part de l'entrée d'index juste avant le premier
+   */
+  static void lireNumeros(Path dossier, boolean prive, long[] numeros, Visiteur visiteur) throws IOException {
+    List<SegmentJournal> segments = SegmentJournal.lister(dossier);
+    int debut = 0;
+    for (int i = 0; i < segments.size() && debut < numeros.length; i++) {
+      SegmentJournal segment = segments.get(i);
+      long suivant = i + 1 < segments.size() ? segments.get(i + 1).premier : Long.MAX_VALUE;
+      int fin = debut;
+      while (fin < numeros.length && numeros[fin] < suivant) {
+        fin++;
+      }
+      if (fin == debut) {
+        continue;
+      }
+      long position = 0;
+      long numero = segment.premier;
+      if (numeros[debut] > segment.premier) {
+        IndexSegment index = IndexSegment.lire(segment.index());
+        int entree = index.chercherNumero(numeros[debut]);
+        if (entree >= 0) {
+          position = index.position(entree);
+          numero = index.numero(entree);
+        }
+      }
+      // Un message supprimé entre temps n'est simplement pas visité
+      int[] prochain = { debut };
+      boolean[] continuer = { true };
+      int dernier = fin;
+      lireSegment(segment, position, numero, prive, numeros[debut], Long.MIN_VALUE, e -> {
+        while (prochain[0] < dernier && numeros[prochain[0]] < e.numero) {
+          prochain[0]++;
+        }
+        if (prochain[0] < dernier && numeros[prochain[0]] == e.numero) {
+          continuer[0] = visiteur.visiter(e);
+          prochain[0]++;
+        }
+        return continuer[0] && prochain[0] < dernier;
+      });
+      if (!continuer[0]) {
+        return;
+      }
+      debut = fin;
+    }
+  }
+
+  /**
+   * Lit les messages à partir de cette date (en millisecondes) : une recherche
+   * dans l'index puis quelques Ko avant le premier message voulu
+   */
+  static void parcourirDepuis(Path dossier, boolean prive, long horodatage, Visiteur visiteur) throws IOException {
+    List<SegmentJournal> segments = SegmentJournal.lister(dossier);
+    // Le dernier segment qui commence strictement avant cette date, par
+    // dichotomie sur la première entrée de chaque index
+    int bas = 0, haut = segments.size() - 1, premier = 0;
+    while (bas <= haut) {
+      int milieu = (bas + haut) >>> 1;
+      if (segments.get(milieu).premierHorodatage() < horodatage) {
+        premier = milieu;
+        bas = milieu + 1;
+      } else {
+        haut = milieu - 1;
+      }
+    }
+    for (int i = premier; i < segments.size(); i++) {
+      SegmentJournal segment = segments.get(i);
+      long position = 0;
+      long numero = segment.premier;
+      if (i == premier) {
+        IndexSegment index = IndexSegment.lire(segment.index());
+        int entree = index.chercherHorodatage(horodatage);
+        if (entree >= 0) {
+          position = index.position(entree);
+          numero = index.numero(entree);
+        }
+      }
+      if (!lireSegment(segment, position, numero, prive, 0, horodatage, visiteur)) {
+        return;
+      }
+    }
+  }
+
+  // false si le visiteur a demandé d'arrêter. Le segment est projeté en
+  // mémoire : on cherche les limites des messages directement dans les octets
+  // (qui restent dans le cache du système, pas dans le tas) et on ne décode
+  // que ceux à partir du numéro et de la date voulus (Long.MIN_VALUE pour ne
+  // pas filtrer sur la date)
+  private static boolean lireSegment(SegmentJournal segment, long position, long numero, boolean prive,
+      long numeroMin, long horodatageMin, Visiteur visiteur) throws IOException {
+    if (segment.compresse) {
+      return lireArchive(segment, position, numero, prive, numeroMin, horodatageMin, visiteur);
+    }
+    try (FileChannel canal = FileChannel.open(segment.fichier(), StandardOpenOption.READ)) {
+      long taille = canal.size();
+      if (position >= taille) {
+        return true;
+      }
+      // Ce qui est écrit après ce moment n'est pas dans la projection : ce sera
+      // pour la lecture suivante
+      if (segment.binaire) {
+        MappedByteBuffer octets = canal.map(FileChannel.MapMode.READ_ONLY, 0, taille);
+        return lireBinaire(segment, octets, position, numero, prive, numeroMin, horodatageMin, visiteur);
+      }
+      MappedByteBuffer octets = canal.map(FileChannel.MapMode.READ_ONLY, position, taille - position);
+      return lireTexte(octets, numero, prive, numeroMin, horodatageMin, visiteur);
+    } catch (NoSuchFileException e) {
+      // Compressé depuis qu'on a listé les segments (ou supprimé)
+      return lireArchive(segment.versionCompressee(true), position, numero, prive, numeroMin, horodatageMin,
+          visiteur);
+    }
+  }
+
+  // Pareil sur le segment décompressé (souvent déjà dans le cache)
+  private static boolean lireArchive(SegmentJournal archive, long position, long numero, boolean prive,
+      long numeroMin, long horodatageMin, Visiteur visiteur) throws IOException {
+    byte[] contenu;
+    try {
+      contenu = ArchivesSegments.lire(archive);
+    } catch (NoSuchFileException e) {
+      return true;
+    }
+    if (position >= contenu.length) {
+      return true;
+    }
+    if (archive.binaire) {
+      return lireBinaire(archive, ByteBuffer.wrap(contenu), position, numero, prive, numeroMin, horodatageMin,
+          visiteur);
+    }
+    ByteBuffer octets = ByteBuffer.wrap(contenu, (int) position, contenu.length - (int) position).slice();
+    return lireTexte(octets, numero, prive, numeroMin, horodatageMin, visiteur);
+  }
+
+  private static boolean lireTexte(ByteBuffer octets, long numero, boolean prive, long numeroMin,
+      long horodatageMin, Visiteur visiteur) {
+    byte[] dateMin = horodatageMin == Long.MIN_VALUE ? null : Enregistrement.dateEnOctets(horodatageMin);
+    int debutLigne = 0;
+    int fin = octets.limit();
+    for (int i = 0; i < fin; i++) {
+      if (octets.get(i) != '\n') {
+        continue;
+      }
+      int debut = debutLigne;
+      debutLigne = i + 1;
+      // Une ligne illisible garde quand même son numéro
+      long numeroLigne = numero++;
+      if (numeroLigne < numeroMin || (dateMin != null && plusAncienne(octets, debut, i, dateMin))) {
+        continue;
+      }
+      Enregistrement enregistrement = Enregistrement.depuisOctets(octets, debut, i, prive, numeroLigne);
+      if (enregistrement != null && !visiteur.visiter(enregistrement)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Compare la date au début de la ligne avec dateMin, octet par octet
+  private static boolean plusAncienne(ByteBuffer octets, int debut, int fin, byte[] dateMin) {
+    if (fin - debut < dateMin.length) {
+      return false;
+    }
+    for (int i = 0; i < dateMin.length; i++) {
+      int difference = octets.get(debut + i) - dateMin[i];
+      if (difference != 0) {
+        return difference < 0;
+      }
+    }
+    return false;
+  }
+
+  // Les longueurs devant chaque message permettent de sauter ceux qu'on ne
+  // veut pas sans rien décoder, et la date se lit sans analyse
+  private static boolean lireBinaire(SegmentJournal segment, ByteBuffer octets, long position, long numero,
+      boolean prive, long numeroMin, long horodatageMin, Visiteur visiteur) throws IOException {
+    long base = FormatBinaire.lireBase(octets);
+    if (base < 0) {
+      return true;
+    }
+    // Lu après la projection : tous les noms des messages projetés y sont
+    List<String> dictionnaire = null;
+    octets.position((int) Math.max(position, FormatBinaire.TAILLE_ENTETE));
+    try {
+      while (octets.hasRemaining()) {
+        int longueur = (int) FormatBinaire.lireVarint(octets);
+        if (longueur < 0 || longueur > octets.remaining()) {
+          // Pas encore écrit jusqu'au bout
+          break;
+        }
+        int suivant = octets.position() + longueur;
+        long numeroMessage = numero++;
+        if (numeroMessage >= numeroMin) {
+          long horodatage = FormatBinaire.lireHorodatage(octets, base);
+          if (horodatage >= horodatageMin) {
+            if (dictionnaire == null) {
+              dictionnaire = FormatBinaire.lireDictionnaire(segment.dictionnaire());
+            }
+            Enregistrement enregistrement = FormatBinaire.decoder(octets, horodatage, prive, dictionnaire,
+                numeroMessage);
+            if (enregistrement != null && !visiteur.visiter(enregistrement)) {
+              return false;
+            }
+          }
+        }
+        octets.position(suivant);
+      }
+    } catch (BufferUnderflowException e) {
+      // Un message coupé à la fin
+    }
+    return true;
+  }
+}
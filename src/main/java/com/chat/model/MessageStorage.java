@@ -1,221 +1,448 @@
 package com.chat.model;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
 
 /**
  * Système de sauvegarde pour les messages
  * Garde en mémoire tout ce qui s'est dit dans les conversations
+ * Chaque conversation a son dossier dans data/messages_history, avec son
+ * journal découpé en segments indexés (voir JournalConversation), en binaire
+ * compact (voir FormatBinaire) ou en texte avec -Dchat.historique.format=texte
  */
 public class MessageStorage {
   private static final String MESSAGES_DIR = "data/messages_history";
-  private static final String GENERAL_CHAT_FILE = "general_chat.txt";
+  private static final String GENERAL_CHAT = "general_chat";
   private static final String PRIVATE_CHAT_PREFIX = "private_";
   private static final String GROUP_CHAT_PREFIX = "group_";
+  // Les anciens fichiers d'une seule pièce, repris au démarrage
+  private static final String ANCIEN_FORMAT = ".txt";
+  private static final DateTimeFormatter FORMAT_HEURE = DateTimeFormatter.ofPattern("HH:mm:ss");
+  private static final DateTimeFormatter FORMAT_JOUR = DateTimeFormatter.ofPattern("dd/MM/yyyy");
 
   static {
     // On crée le dossier s'il n'existe pas encore
     try {
       Files.createDirectories(Paths.get(MESSAGES_DIR));
+      importerAnciensFichiers();
     } catch (IOException e) {
       System.err.println("Problème pour créer le dossier des messages : " + e.getMessage());
     }
   }
 
+  // Les mots de tout l'historique, complété par les écrivains après chaque
+  // paquet (voir rechercher)
+  private static final IndexRecherche index = new IndexRecherche();
+  // Qui parle avec qui en privé, tenu à jour par les écrivains
+  private static final AnnuaireConversations annuaire =
+      new AnnuaireConversations(Paths.get(MESSAGES_DIR), PRIVATE_CHAT_PREFIX);
+  // Toutes les sauvegardes passent par eux : fichiers gardés ouverts, lignes
+  // écrites par paquets sur leurs propres threads, l'envoi des messages
+  // n'attend jamais le disque. Leur nombre se règle avec
+  // -Dchat.historique.ecrivains=N, une conversation va toujours au même
+  private static final EcrivainGroupe[] ecrivains = creerEcrivains();
+
+  static {
+    // Ce qui était déjà sur le disque est indexé en tâche de fond, le
+    // démarrage n'attend pas
+    Thread reconstruction = new Thread(
+        () -> index.reconstruire(Paths.get(MESSAGES_DIR), MessageStorage::estPrivee), "chat-index");
+    reconstruction.setDaemon(true);
+    reconstruction.setPriority(Thread.MIN_PRIORITY);
+    reconstruction.start();
+  }
+
+  // Combien de jours on garde chaque type de conversation (0 : tout garder)
+  private static final int RETENTION_GENERAL = Integer.getInteger("chat.retention.general", 0);
+  private static final int RETENTION_PRIVE = Integer.getInteger("chat.retention.prive", 0);
+  private static final int RETENTION_GROUPE = Integer.getInteger("chat.retention.groupe", 0);
+
+  // Les segments terminés dont le dernier message a plus de jours que ça sont
+  // compressés (0 : jamais, voir ArchivesSegments)
+  private static final int JOURS_AVANT_COMPRESSION = Integer.getInteger("chat.historique.froidJours", 7);
+
+  static {
+    // Le ménage et la compression passent en tâche de fond avec la priorité la
+    // plus basse, toutes les -Dchat.retention.intervalleMinutes (60 par défaut)
+    if (RETENTION_GENERAL > 0 || RETENTION_PRIVE > 0 || RETENTION_GROUPE > 0 || JOURS_AVANT_COMPRESSION > 0) {
+      long intervalle = Math.max(1, Long.getLong("chat.retention.intervalleMinutes", 60));
+      ScheduledExecutorService menage = Executors.newSingleThreadScheduledExecutor(tache -> {
+        Thread thread = new Thread(tache, "chat-menage");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+      menage.scheduleWithFixedDelay(() -> {
+        try {
+          nettoyer(MessageStorage::joursAConserver);
+          if (JOURS_AVANT_COMPRESSION > 0) {
+            ArchivesSegments.compresserFroids(Paths.get(MESSAGES_DIR),
+                System.currentTimeMillis() - TimeUnit.DAYS.toMillis(JOURS_AVANT_COMPRESSION), MessageStorage::estPrivee);
+          }
+        } catch (RuntimeException e) {
+          // Sinon les passages suivants n'auraient plus lieu
+          System.err.println("Problème pendant le ménage de l'historique : " + e);
+        }
+      }, 1, intervalle, TimeUnit.MINUTES);
+    }
+  }
+
+  private static int joursAConserver(String conversation) {
+    if (estPrivee(conversation)) {
+      return RETENTION_PRIVE;
+    }
+    return conversation.startsWith(GROUP_CHAT_PREFIX) ? RETENTION_GROUPE : RETENTION_GENERAL;
+  }
+
+  private static EcrivainGroupe[] creerEcrivains() {
+    int nombre = Math.max(1, Integer.getInteger("chat.historique.ecrivains", 2));
+    // Le maximum de fichiers ouverts est partagé entre les écrivains
+    int maxOuverts = Integer.getInteger("chat.historique.fichiersOuverts", 64);
+    EcrivainGroupe[] resultat = new EcrivainGroupe[nombre];
+    for (int i = 0; i < nombre; i++) {
+      resultat[i] = new EcrivainGroupe(Paths.get(MESSAGES_DIR), "chat-historique-" + i,
+          Math.max(1, maxOuverts / nombre), MessageStorage::apresEcriture);
+    }
+    return resultat;
+  }
+
+  // Sur le thread écrivain, juste après que ces messages ont été écrits
+  private static void apresEcriture(String conversation, List<Enregistrement> enregistrements) {
+    if (estPrivee(conversation)) {
+      for (Enregistrement enregistrement : enregistrements) {
+        annuaire.noter(enregistrement.expediteur, enregistrement.destinataire);
+      }
+    }
+    index.indexer(conversation, enregistrements);
+  }
+
+  private static EcrivainGroupe ecrivain(String conversation) {
+    return ecrivains[Math.floorMod(conversation.hashCode(), ecrivains.length)];
+  }
+
+  // Attend que les messages déjà déposés soient dans les journaux
+  private static void synchroniser() {
+    for (EcrivainGroupe ecrivain : ecrivains) {
+      ecrivain.synchroniser();
+    }
+  }
+
+  /**
+   * Donne la file d'attente et le retard des écrivains de l'historique, et la
+   * place gagnée par la compression des vieux segments
+   */
+  public static StatistiquesHistorique statistiquesHistorique() {
+    long enAttente = 0, retardMs = 0, ecrits = 0, perdus = 0;
+    for (EcrivainGroupe ecrivain : ecrivains) {
+      enAttente += ecrivain.enAttente();
+      retardMs = Math.max(retardMs, ecrivain.retardMs());
+      ecrits += ecrivain.ecrits();
+      perdus += ecrivain.perdus();
+    }
+    return new StatistiquesHistorique(enAttente, retardMs, ecrits, perdus, ArchivesSegments.segmentsCompresses(),
+        ArchivesSegments.octetsOriginaux(), ArchivesSegments.octetsCompresses(), ArchivesSegments.lectures(),
+        ArchivesSegments.lecturesEnCache());
+  }
+
   /**
    * Sauvegarde un message dans le chat général
    */
   public static void sauvegarderMessageGeneral(String expediteur, String message) {
-    String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-    String ligne = timestamp + "|" + expediteur + "|" + message;
-
-    try {
-      Files.write(
-          Paths.get(MESSAGES_DIR, GENERAL_CHAT_FILE),
-          (ligne + "\n").getBytes(),
-          StandardOpenOption.CREATE,
-          StandardOpenOption.APPEND);
-    } catch (IOException e) {
-      System.err.println("Problème pour sauvegarder le message général : " + e.getMessage());
-    }
+    sauvegarder(GENERAL_CHAT, new Enregistrement(System.currentTimeMillis(), expediteur, null, message));
   }
 
   /**
    * Sauvegarde un message privé entre deux personnes
    */
   public static void sauvegarderMessagePrive(String expediteur, String destinataire, String message) {
-    String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-    String ligne = timestamp + "|" + expediteur + "|" + destinataire + "|" + message;
-
-    // Je trie les noms pour avoir toujours le même nom de fichier peu importe qui
-    // écrit à qui
-    String[] users = { expediteur, destinataire };
-    Arrays.sort(users);
-    String filename = PRIVATE_CHAT_PREFIX + users[0] + "_" + users[1] + ".txt";
-
-    try {
-      Files.write(
-          Paths.get(MESSAGES_DIR, filename),
-          (ligne + "\n").getBytes(),
-          StandardOpenOption.CREATE,
-          StandardOpenOption.APPEND);
-    } catch (IOException e) {
-      System.err.println("Problème pour sauvegarder le message privé : " + e.getMessage());
-    }
+    sauvegarder(conversationPrivee(expediteur, destinataire),
+        new Enregistrement(System.currentTimeMillis(), expediteur, destinataire, message));
   }
 
   /**
    * Sauvegarde un message de groupe
    */
   public static void sauvegarderMessageGroupe(String nomGroupe, String expediteur, String message) {
-    String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-    String ligne = timestamp + "|" + expediteur + "|" + message;
+    sauvegarder(GROUP_CHAT_PREFIX + nomGroupe, new Enregistrement(System.currentTimeMillis(), expediteur, null, message));
+  }
 
-    String filename = GROUP_CHAT_PREFIX + nomGroupe + ".txt";
+  private static void sauvegarder(String conversation, Enregistrement enregistrement) {
+    ecrivain(conversation).ajouter(conversation, enregistrement);
+  }
 
-    try {
-      Files.write(
-          Paths.get(MESSAGES_DIR, filename),
-          (ligne + "\n").getBytes(),
-          StandardOpenOption.CREATE,
-          StandardOpenOption.APPEND);
-    } catch (IOException e) {
-      System.err.println("Problème pour sauvegarder le message de groupe : " + e.getMessage());
-    }
+  // Je trie les noms pour avoir toujours la même conversation peu importe qui
+  // écrit à qui
+  private static String conversationPrivee(String utilisateur1, String utilisateur2) {
+    String[] users = { utilisateur1, utilisateur2 };
+    Arrays.sort(users);
+    return PRIVATE_CHAT_PREFIX + users[0] + "_" + users[1];
   }
 
   /**
    * Récupère tout ce qui s'est dit dans le chat général
    */
   public static List<String> chargerHistoriqueGeneral() {
-    List<String> historique = new ArrayList<>();
-    Path fichier = Paths.get(MESSAGES_DIR, GENERAL_CHAT_FILE);
+    return charger(GENERAL_CHAT, MessageStorage::formaterGeneral, "général");
+  }
 
-    try {
-      if (Files.exists(fichier)) {
-        for (String ligne : Files.readAllLines(fichier)) {
-          if (!ligne.trim().isEmpty()) {
-            String[] parties = ligne.split("\\|", 3);
-            if (parties.length >= 3) {
-              String timestamp = parties[0];
-              String expediteur = parties[1];
-              String message = parties[2];
-
-              // Je formate juste l'heure pour l'affichage
-              String timeDisplay = LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))
-                  .format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-              historique.add("[" + timeDisplay + "] " + expediteur + " : " + message);
-            }
-          }
-        }
-      }
-    } catch (IOException e) {
-      System.err.println("Problème pour charger l'historique général : " + e.getMessage());
-    }
+  /**
+   * Récupère les messages du chat général à partir d'un moment donné, sans
+   * relire tout ce qu'il y a avant
+   */
+  public static List<String> chargerHistoriqueGeneralDepuis(LocalDateTime moment, int nombre) {
+    return chargerDepuis(GENERAL_CHAT, moment, nombre, MessageStorage::formaterGeneral, "général");
+  }
 
-    return historique;
+  /**
+   * Une page du chat général : les "limite" messages juste avant le numéro
+   * "avant", ou juste après le numéro "apres" (0 pour ne pas s'en servir). Sans
+   * l'un ni l'autre, ce sont les derniers messages
+   */
+  public static PageHistorique chargerHistoriqueGeneral(int limite, long avant, long apres) {
+    return chargerPage(GENERAL_CHAT, limite, avant, apres, MessageStorage::formaterGeneral, "général");
   }
 
   /**
    * Récupère l'historique d'une conversation privée
    */
   public static List<String> chargerHistoriquePrive(String utilisateur1, String utilisateur2) {
-    List<String> historique = new ArrayList<>();
+    return charger(conversationPrivee(utilisateur1, utilisateur2), MessageStorage::formaterPrive, "privé");
+  }
 
-    // Même logique que pour la sauvegarde : je trie les noms
-    String[] users = { utilisateur1, utilisateur2 };
-    Arrays.sort(users);
-    String filename = PRIVATE_CHAT_PREFIX + users[0] + "_" + users[1] + ".txt";
+  /**
+   * Récupère les messages d'une conversation privée à partir d'un moment donné
+   */
+  public static List<String> chargerHistoriquePriveDepuis(String utilisateur1, String utilisateur2,
+      LocalDateTime moment, int nombre) {
+    return chargerDepuis(conversationPrivee(utilisateur1, utilisateur2), moment, nombre,
+        MessageStorage::formaterPrive, "privé");
+  }
 
-    Path fichier = Paths.get(MESSAGES_DIR, filename);
+  /**
+   * Une page d'une conversation privée (voir chargerHistoriqueGeneral)
+   */
+  public static PageHistorique chargerHistoriquePrive(String utilisateur1, String utilisateur2, int limite, long avant,
+      long apres) {
+    return chargerPage(conversationPrivee(utilisateur1, utilisateur2), limite, avant, apres,
+        MessageStorage::formaterPrive, "privé");
+  }
+
+  /**
+   * Récupère l'historique d'un groupe
+   */
+  public static List<String> chargerHistoriqueGroupe(String nomGroupe) {
+    return charger(GROUP_CHAT_PREFIX + nomGroupe, e -> formaterGroupe(nomGroupe, e), "du groupe");
+  }
 
+  /**
+   * Récupère les messages d'un groupe à partir d'un moment donné
+   */
+  public static List<String> chargerHistoriqueGroupeDepuis(String nomGroupe, LocalDateTime moment, int nombre) {
+    return chargerDepuis(GROUP_CHAT_PREFIX + nomGroupe, moment, nombre, e -> formaterGroupe(nomGroupe, e),
+        "du groupe");
+  }
+
+  /**
+   * Une page d'un groupe (voir chargerHistoriqueGeneral)
+   */
+  public static PageHistorique chargerHistoriqueGroupe(String nomGroupe, int limite, long avant, long apres) {
+    return chargerPage(GROUP_CHAT_PREFIX + nomGroupe, limite, avant, apres, e -> formaterGroupe(nomGroupe, e),
+        "du groupe");
+  }
+
+  private static List<String> charger(String conversation, Function<Enregistrement, String> format, String quoi) {
+    List<String> historique = new ArrayList<>();
+    // Les derniers messages sont peut-être encore dans la file des écrivains
+    synchroniser();
     try {
-      if (Files.exists(fichier)) {
-        for (String ligne : Files.readAllLines(fichier)) {
-          if (!ligne.trim().isEmpty()) {
-            String[] parties = ligne.split("\\|", 4);
-            if (parties.length >= 4) {
-              String timestamp = parties[0];
-              String expediteur = parties[1];
-              String destinataire = parties[2];
-              String message = parties[3];
-
-              // Même format que pour le chat général
-              String timeDisplay = LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))
-                  .format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-              historique.add("[" + timeDisplay + "] " + expediteur + " → " + destinataire + " : " + message);
-            }
-          }
-        }
-      }
+      LectureJournal.parcourir(Paths.get(MESSAGES_DIR, conversation), estPrivee(conversation), 1, e -> {
+        historique.add(format.apply(e));
+        return true;
+      });
     } catch (IOException e) {
-      System.err.println("Problème pour charger l'historique privé : " + e.getMessage());
+      System.err.println("Problème pour charger l'historique " + quoi + " : " + e.getMessage());
     }
-
     return historique;
   }
 
-  /**
-   * Récupère l'historique d'un groupe
-   */
-  public static List<String> chargerHistoriqueGroupe(String nomGroupe) {
+  private static List<String> chargerDepuis(String conversation, LocalDateTime moment, int nombre,
+      Function<Enregistrement, String> format, String quoi) {
     List<String> historique = new ArrayList<>();
-    String filename = GROUP_CHAT_PREFIX + nomGroupe + ".txt";
-    Path fichier = Paths.get(MESSAGES_DIR, filename);
+    if (nombre <= 0) {
+      return historique;
+    }
+    synchroniser();
+    long horodatage = moment.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    try {
+      LectureJournal.parcourirDepuis(Paths.get(MESSAGES_DIR, conversation), estPrivee(conversation), horodatage,
+          e -> {
+            historique.add(format.apply(e));
+            return historique.size() < nombre;
+          });
+    } catch (IOException e) {
+      System.err.println("Problème pour charger l'historique " + quoi + " : " + e.getMessage());
+    }
+    return historique;
+  }
 
+  // Les numéros se suivent dans un journal : la page voulue est un intervalle
+  // de numéros qu'on retrouve avec l'index, sans relire ce qu'il y a avant. La
+  // mémoire et le temps ne dépendent que de la taille de la page
+  private static PageHistorique chargerPage(String conversation, int limite, long avant, long apres,
+      Function<Enregistrement, String> format, String quoi) {
+    List<String> messages = new ArrayList<>();
+    synchroniser();
+    Path dossier = Paths.get(MESSAGES_DIR, conversation);
     try {
-      if (Files.exists(fichier)) {
-        for (String ligne : Files.readAllLines(fichier)) {
-          if (!ligne.trim().isEmpty()) {
-            String[] parties = ligne.split("\\|", 3);
-            if (parties.length >= 3) {
-              String timestamp = parties[0];
-              String expediteur = parties[1];
-              String message = parties[2];
-
-              // J'ajoute le nom du groupe dans l'affichage
-              String timeDisplay = LocalDateTime.parse(timestamp, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"))
-                  .format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-              historique.add("[" + timeDisplay + "] [" + nomGroupe + "] " + expediteur + " : " + message);
-            }
+      List<SegmentJournal> segments = SegmentJournal.lister(dossier);
+      long dernierDuJournal = LectureJournal.dernierNumero(dossier);
+      if (limite <= 0 || segments.isEmpty() || dernierDuJournal == 0) {
+        return new PageHistorique(messages, 0, 0, false, false);
+      }
+      long premierDuJournal = segments.get(0).premier;
+      // Les bornes de la page, comprises
+      long debut;
+      long fin;
+      if (avant > 0 || apres <= 0) {
+        fin = avant > 0 ? Math.min(avant - 1, dernierDuJournal) : dernierDuJournal;
+        debut = Math.max(Math.max(fin - limite + 1, apres + 1), premierDuJournal);
+      } else {
+        debut = Math.max(apres + 1, premierDuJournal);
+        fin = Math.min(debut + limite - 1, dernierDuJournal);
+      }
+      long[] bornes = { 0, 0 };
+      if (debut <= fin) {
+        LectureJournal.parcourir(dossier, estPrivee(conversation), debut, e -> {
+          if (e.numero > fin) {
+            return false;
           }
-        }
+          if (bornes[0] == 0) {
+            bornes[0] = e.numero;
+          }
+          bornes[1] = e.numero;
+          messages.add(format.apply(e));
+          return e.numero < fin;
+        });
       }
+      return new PageHistorique(messages, bornes[0], bornes[1], debut > premierDuJournal, fin < dernierDuJournal);
     } catch (IOException e) {
-      System.err.println("Problème pour charger l'historique du groupe : " + e.getMessage());
+      System.err.println("Problème pour charger l'historique " + quoi + " : " + e.getMessage());
+      return new PageHistorique(messages, 0, 0, false, false);
     }
+  }
 
-    return historique;
+  private static boolean estPrivee(String conversation) {
+    return conversation.startsWith(PRIVATE_CHAT_PREFIX);
+  }
+
+  // Je formate juste l'heure pour l'affichage
+  private static String formaterGeneral(Enregistrement e) {
+    return "[" + e.date().format(FORMAT_HEURE) + "] " + e.expediteur + " : " + e.message;
+  }
+
+  private static String formaterPrive(Enregistrement e) {
+    return "[" + e.date().format(FORMAT_HEURE) + "] " + e.expediteur + " → " + e.destinataire + " : " + e.message;
+  }
+
+  // J'ajoute le nom du groupe dans l'affichage
+  private static String formaterGroupe(String nomGroupe, Enregistrement e) {
+    return "[" + e.date().format(FORMAT_HEURE) + "] [" + nomGroupe + "] " + e.expediteur + " : " + e.message;
+  }
+
+  /**
+   * Cherche les messages qui contiennent tous ces mots (sans tenir compte des
+   * majuscules ni des accents) dans les conversations de l'utilisateur : le
+   * chat général, ses conversations privées et ses groupes
+   * Les plus récents d'abord, au plus "limite"
+   */
+  public static List<String> rechercher(String utilisateur, Collection<String> groupes, String termes, int limite) {
+    Set<String> conversationsGroupes = new HashSet<>();
+    for (String groupe : groupes) {
+      conversationsGroupes.add(GROUP_CHAT_PREFIX + groupe);
+    }
+    List<IndexRecherche.Resultat> trouves = index.chercher(IndexRecherche.mots(termes),
+        (conversation, participants) -> conversation.equals(GENERAL_CHAT)
+            || conversationsGroupes.contains(conversation)
+            || (estPrivee(conversation) && participants.contains(utilisateur)),
+        limite);
+
+    // Seuls les messages trouvés sont relus, chacun à partir de son index
+    Map<String, List<Long>> parConversation = new HashMap<>();
+    for (IndexRecherche.Resultat trouve : trouves) {
+      parConversation.computeIfAbsent(trouve.conversation, k -> new ArrayList<>()).add(trouve.numero);
+    }
+    List<Map.Entry<String, Enregistrement>> messages = new ArrayList<>();
+    for (Map.Entry<String, List<Long>> entree : parConversation.entrySet()) {
+      String conversation = entree.getKey();
+      long[] numeros = entree.getValue().stream().mapToLong(Long::longValue).sorted().toArray();
+      try {
+        LectureJournal.lireNumeros(Paths.get(MESSAGES_DIR, conversation), estPrivee(conversation), numeros, e -> {
+          messages.add(new AbstractMap.SimpleEntry<>(conversation, e));
+          return true;
+        });
+      } catch (IOException e) {
+        System.err.println("Problème pour relire les messages trouvés dans " + conversation + " : " + e.getMessage());
+      }
+    }
+    messages.sort((a, b) -> a.getValue().horodatage != b.getValue().horodatage
+        ? Long.compare(b.getValue().horodatage, a.getValue().horodatage)
+        : Long.compare(b.getValue().numero, a.getValue().numero));
+
+    List<String> resultats = new ArrayList<>();
+    for (Map.Entry<String, Enregistrement> message : messages.subList(0, Math.min(limite, messages.size()))) {
+      String conversation = message.getKey();
+      Enregistrement e = message.getValue();
+      String ligne;
+      if (conversation.startsWith(GROUP_CHAT_PREFIX)) {
+        ligne = formaterGroupe(conversation.substring(GROUP_CHAT_PREFIX.length()), e);
+      } else if (estPrivee(conversation)) {
+        ligne = formaterPrive(e);
+      } else {
+        ligne = formaterGeneral(e);
+      }
+      resultats.add(e.date().format(FORMAT_JOUR) + " " + ligne);
+    }
+    return resultats;
+  }
+
+  /**
+   * false tant que l'historique déjà sur le disque n'est pas entièrement
+   * indexé (juste après le démarrage) : une recherche peut en rater une partie
+   */
+  public static boolean rechercheComplete() {
+    return index.estComplet();
   }
 
   /**
    * Trouve toutes les conversations privées d'un utilisateur
    */
   public static List<String> obtenirConversationsPrivees(String utilisateur) {
-    List<String> conversations = new ArrayList<>();
+    // L'annuaire les connaît déjà, pas besoin de lister le dossier
+    return annuaire.partenaires(utilisateur);
+  }
 
+  /**
+   * Refait l'annuaire des conversations privées à partir des dossiers (il est
+   * refait tout seul au démarrage s'il manque ou s'il est abîmé)
+   */
+  public static void reconstruireAnnuaire() {
     try {
-      Files.list(Paths.get(MESSAGES_DIR))
-          .filter(path -> path.getFileName().toString().startsWith(PRIVATE_CHAT_PREFIX))
-          .forEach(path -> {
-            String filename = path.getFileName().toString();
-            String[] users = filename.replace(PRIVATE_CHAT_PREFIX, "").replace(".txt", "").split("_");
-            if (users.length == 2) {
-              if (users[0].equals(utilisateur)) {
-                conversations.add(users[1]);
-              } else if (users[1].equals(utilisateur)) {
-                conversations.add(users[0]);
-              }
-            }
-          });
+      annuaire.reconstruire();
     } catch (IOException e) {
-      System.err.println("Problème pour lire les conversations : " + e.getMessage());
+      System.err.println("Problème pour refaire l'annuaire des conversations : " + e.getMessage());
     }
-
-    return conversations;
   }
 
   /**
@@ -224,14 +451,10 @@ public class MessageStorage {
   public static List<String> obtenirGroupesAvecHistorique() {
     List<String> groupes = new ArrayList<>();
 
-    try {
-      Files.list(Paths.get(MESSAGES_DIR))
+    try (Stream<Path> dossiers = Files.list(Paths.get(MESSAGES_DIR))) {
+      dossiers.filter(Files::isDirectory)
           .filter(path -> path.getFileName().toString().startsWith(GROUP_CHAT_PREFIX))
-          .forEach(path -> {
-            String filename = path.getFileName().toString();
-            String nomGroupe = filename.replace(GROUP_CHAT_PREFIX, "").replace(".txt", "");
-            groupes.add(nomGroupe);
-          });
+          .forEach(path -> groupes.add(path.getFileName().toString().replace(GROUP_CHAT_PREFIX, "")));
     } catch (IOException e) {
       System.err.println("Problème pour lire les groupes : " + e.getMessage());
     }
@@ -240,74 +463,99 @@ public class MessageStorage {
   }
 
   /**
-   * Fait le ménage dans les anciens messages (plus de X jours)
+   * Fait le ménage dans les anciens messages (plus de X jours), pour toutes les
+   * conversations. D'habitude c'est fait en tâche de fond avec
+   * -Dchat.retention.general, .prive et .groupe
    */
   public static void nettoyerAncienMessage(int joursAConserver) {
-    LocalDateTime limite = LocalDateTime.now().minusDays(joursAConserver);
+    nettoyer(conversation -> joursAConserver);
+  }
 
-    try {
-      Files.list(Paths.get(MESSAGES_DIR))
-          .filter(path -> path.toString().endsWith(".txt"))
-          .forEach(path -> {
-            try {
-              List<String> lignesAConserver = new ArrayList<>();
-              for (String ligne : Files.readAllLines(path)) {
-                if (!ligne.trim().isEmpty()) {
-                  String[] parties = ligne.split("\\|", 2);
-                  if (parties.length >= 1) {
-                    try {
-                      LocalDateTime dateLigne = LocalDateTime.parse(parties[0],
-                          DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-                      if (dateLigne.isAfter(limite)) {
-                        lignesAConserver.add(ligne);
-                      }
-                    } catch (Exception e) {
-                      // Si la ligne est mal formatée, on la garde quand même
-                      lignesAConserver.add(ligne);
-                    }
-                  }
-                }
-              }
-
-              // On réécrit le fichier avec seulement les messages récents
-              Files.write(path, lignesAConserver, StandardOpenOption.TRUNCATE_EXISTING);
-            } catch (IOException e) {
-              System.err.println("Problème pour nettoyer " + path + " : " + e.getMessage());
-            }
-          });
-    } catch (IOException e) {
-      System.err.println("Problème pour nettoyer les messages : " + e.getMessage());
+  private static void nettoyer(ToIntFunction<String> joursAConserver) {
+    index.oublierAvant(SegmentJournal.supprimerAnciens(Paths.get(MESSAGES_DIR), joursAConserver,
+        System.currentTimeMillis(), MessageStorage::estPrivee));
+  }
+
+  // Les conversations d'avant les journaux étaient un seul fichier texte avec
+  // les mêmes lignes : on les range dans un journal puis on enlève le fichier
+  private static void importerAnciensFichiers() throws IOException {
+    List<Path> anciens;
+    try (Stream<Path> fichiers = Files.list(Paths.get(MESSAGES_DIR))) {
+      anciens = new ArrayList<>();
+      fichiers.filter(p -> p.getFileName().toString().endsWith(ANCIEN_FORMAT)).forEach(anciens::add);
+    }
+    for (Path ancien : anciens) {
+      String nom = ancien.getFileName().toString();
+      String conversation = nom.substring(0, nom.length() - ANCIEN_FORMAT.length());
+      List<Enregistrement> enregistrements = new ArrayList<>();
+      for (String ligne : Files.readAllLines(ancien, StandardCharsets.UTF_8)) {
+        if (ligne.trim().isEmpty()) {
+          continue;
+        }
+        Enregistrement enregistrement = Enregistrement.depuisLigne(ligne, estPrivee(conversation), 0);
+        if (enregistrement != null) {
+          enregistrements.add(enregistrement);
+        } else {
+          System.err.println("Ligne illisible ignorée dans " + nom + " : " + ligne);
+        }
+      }
+      JournalConversation journal = new JournalConversation(Paths.get(MESSAGES_DIR, conversation));
+      try {
+        journal.ecrire(enregistrements);
+        journal.forcer();
+      } finally {
+        journal.fermer();
+      }
+      Files.delete(ancien);
+      System.out.println("Historique " + nom + " importé (" + enregistrements.size() + " messages)");
     }
   }
 
   /**
-   * Exporte tout l'historique dans un fichier texte lisible
+   * Exporte tout l'historique dans un fichier texte lisible (compressé en gzip
+   * si le nom finit par ".gz")
    */
   public static void exporterHistorique(String utilisateur, String fichierExport) {
-    try {
-      List<String> export = new ArrayList<>();
-      export.add("=== HISTORIQUE DES CONVERSATIONS ===");
-      export.add("Utilisateur : " + utilisateur);
-      export.add("Date d'export : " + LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss")));
-      export.add("");
-
-      // Chat général d'abord
-      export.add("--- CHAT GÉNÉRAL ---");
-      export.addAll(chargerHistoriqueGeneral());
-      export.add("");
-
-      // Puis toutes les conversations privées
-      List<String> conversations = obtenirConversationsPrivees(utilisateur);
-      for (String autreUtilisateur : conversations) {
-        export.add("--- CONVERSATION AVEC " + autreUtilisateur.toUpperCase() + " ---");
-        export.addAll(chargerHistoriquePrive(utilisateur, autreUtilisateur));
-        export.add("");
-      }
+    exporterHistorique(utilisateur, fichierExport, fichierExport.endsWith(".gz"));
+  }
 
-      Files.write(Paths.get(fichierExport), export);
+  /**
+   * Pareil en choisissant la compression. Les conversations sont lues en
+   * parallèle et écrites au fur et à mesure (voir ExportHistorique) : même un
+   * très gros historique ne prend que quelques Mo de mémoire
+   */
+  public static void exporterHistorique(String utilisateur, String fichierExport, boolean compresser) {
+    List<String> entete = Arrays.asList(
+        "=== HISTORIQUE DES CONVERSATIONS ===",
+        "Utilisateur : " + utilisateur,
+        "Date d'export : " + LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss")),
+        "");
+
+    // Chat général d'abord, puis toutes les conversations privées
+    List<ExportHistorique.Partie> parties = new ArrayList<>();
+    parties.add(new ExportHistorique.Partie("--- CHAT GÉNÉRAL ---",
+        ligne -> lireConversation(GENERAL_CHAT, MessageStorage::formaterGeneral, ligne)));
+    for (String autreUtilisateur : obtenirConversationsPrivees(utilisateur)) {
+      parties.add(new ExportHistorique.Partie("--- CONVERSATION AVEC " + autreUtilisateur.toUpperCase() + " ---",
+          ligne -> lireConversation(conversationPrivee(utilisateur, autreUtilisateur), MessageStorage::formaterPrive,
+              ligne)));
+    }
+
+    // Les derniers messages sont peut-être encore dans la file des écrivains
+    synchroniser();
+    try {
+      ExportHistorique.exporter(entete, parties, Paths.get(fichierExport), compresser);
       System.out.println("Historique exporté vers : " + fichierExport);
     } catch (IOException e) {
       System.err.println("Problème pour exporter l'historique : " + e.getMessage());
     }
   }
-}
\ No newline at end of file
+
+  private static void lireConversation(String conversation, Function<Enregistrement, String> format,
+      Consumer<String> ligne) throws IOException {
+    LectureJournal.parcourir(Paths.get(MESSAGES_DIR, conversation), estPrivee(conversation), 1, e -> {
+      ligne.accept(format.apply(e));
+      return true;
+    });
+  }
+}
@@ -0,0 +1,49 @@
+package com.chat.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Une page d'historique : quelques messages qui se suivent, avec les numéros
+ * à redonner pour avoir la page d'avant ou d'après
+ * Les numéros sont ceux du journal de la conversation, ils ne changent jamais
+ */
+public final class PageHistorique {
+  private final List<String> messages;
+  private final long premierNumero;
+  private final long dernierNumero;
+  private final boolean plusAnciens;
+  private final boolean plusRecents;
+
+  PageHistorique(List<String> messages, long premierNumero, long dernierNumero, boolean plusAnciens,
+      boolean plusRecents) {
+    this.messages = Collections.unmodifiableList(messages);
+    this.premierNumero = premierNumero;
+    this.dernierNumero = dernierNumero;
+    this.plusAnciens = plusAnciens;
+    this.plusRecents = plusRecents;
+  }
+
+  // Les messages formatés, du plus ancien au plus récent
+  public List<String> getMessages() {
+    return messages;
+  }
+
+  // À passer en "avant" pour la page précédente (0 si la page est vide)
+  public long getPremierNumero() {
+    return premierNumero;
+  }
+
+  // À passer en "apres" pour la page suivante (0 si la page est vide)
+  public long getDernierNumero() {
+    return dernierNumero;
+  }
+
+  public boolean aDesPlusAnciens() {
+    return plusAnciens;
+  }
+
+  public boolean aDesPlusRecents() {
+    return plusRecents;
+  }
+}
@@ -0,0 +1,306 @@
+package com.chat.model;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Le protocole binaire entre le client graphique et le serveur
+ * Le client le demande avec /binaire une fois connecté, le serveur répond
+ * "OK BINAIRE" (dernière ligne en texte) et ensuite tout passe en trames dans
+ * les deux sens
+ *
+ * Une trame : [type : 1 octet][taille du corps : 4 octets][corps]
+ * Le corps est une suite de champs : [taille : 2 octets][texte UTF-8]
+ *
+ * Le protocole texte reste disponible pour EchoClient et telnet
+ */
+public final class ProtocoleBinaire {
+  public static final String COMMANDE_NEGOCIATION = "/binaire";
+  public static final String ACCORD = "OK BINAIRE";
+
+  // Serveur vers client
+  public static final byte TEXTE = 0x01; // [texte] une ligne quelconque du protocole texte
+  public static final byte GENERAL = 0x02; // [expediteur][message]
+  public static final byte PRIVE = 0x03; // [expediteur][destinataire][message]
+  public static final byte GROUPE = 0x04; // [groupe][expediteur][message]
+  public static final byte UTILISATEURS = 0x05; // [nom]... les utilisateurs connectés
+  public static final byte GROUPES_MODIFIES = 0x06; // [texte] un groupe a été créé ou modifié
+  public static final byte PRESENCE = 0x07; // [nom]... tous les connectés, au début de /presence
+  public static final byte PRESENCE_ARRIVEE = 0x08; // [nom] quelqu'un vient de se connecter
+  public static final byte PRESENCE_DEPART = 0x09; // [nom] quelqu'un vient de partir
+  public static final byte UTILISATEURS_SUITE = 0x0A; // [nom]... la suite de la trame UTILISATEURS d'avant
+  public static final byte PRESENCE_SUITE = 0x0B; // [nom]... la suite de la trame PRESENCE d'avant
+
+  // Client vers serveur
+  public static final byte COMMANDE = 0x10; // [ligne] comme une ligne du protocole texte
+  public static final byte ENVOI_GENERAL = 0x11; // [message]
+  public static final byte ENVOI_PRIVE = 0x12; // [destinataire][message]
+  public static final byte ENVOI_GROUPE = 0x13; // [groupe][message]
+
+  public static final int TAILLE_ENTETE = 5;
+  public static final int TAILLE_MAX_CORPS = 64 * 1024;
+  // Un champ seul doit tenir dans le corps avec sa taille
+  private static final int TAILLE_MAX_CHAMP = TAILLE_MAX_CORPS - 2;
+  // Ce que le serveur accepte d'un client (en octets UTF-8) : un message, ou un
+  // nom d'utilisateur. Même avec trois champs à la limite, une trame de chat
+  // tient toujours dans TAILLE_MAX_CORPS
+  public static final int TAILLE_MAX_MESSAGE = 16 * 1024;
+  public static final int TAILLE_MAX_NOM = 256;
+
+  private ProtocoleBinaire() {
+  }
+
+  /**
+   * Une trame décodée
+   */
+  public static final class TrameRecue {
+    public final byte type;
+    public final String[] champs;
+
+    public TrameRecue(byte type, String[] champs) {
+      this.type = type;
+      this.champs = champs;
+    }
+  }
+
+  /**
+   * Encode une trame complète (en-tête compris)
+   * Un champ trop long pour une trame est coupé (entre deux caractères), mais
+   * une trame dont le corps dépasse TAILLE_MAX_CORPS est refusée : le client la
+   * prendrait pour une erreur et se déconnecterait
+   */
+  public static byte[] encoder(byte type, String... champs) {
+    byte[][] encodes = new byte[champs.length][];
+    int tailleCorps = 0;
+    for (int i = 0; i < champs.length; i++) {
+      encodes[i] = encoderChamp(champs[i]);
+      tailleCorps += 2 + encodes[i].length;
+    }
+    if (tailleCorps > TAILLE_MAX_CORPS) {
+      throw new IllegalArgumentException("Trame trop longue : " + tailleCorps);
+    }
+    return assembler(type, encodes, 0, encodes.length, tailleCorps);
+  }
+
+  /**
+   * Une liste de noms (UTILISATEURS, PRESENCE) en autant de trames qu'il faut :
+   * la première du type donné, les autres du type suite, collées les unes aux
+   * autres
+   */
+  public static byte[] encoderListe(byte type, byte suite, String[] noms) {
+    byte[][] encodes = new byte[noms.length][];
+    for (int i = 0; i < noms.length; i++) {
+      encodes[i] = encoderChamp(noms[i]);
+    }
+    ByteArrayOutputStream trames = new ByteArrayOutputStream();
+    int debut = 0;
+    do {
+      int fin = debut;
+      int tailleCorps = 0;
+      while (fin < encodes.length && tailleCorps + 2 + encodes[fin].length <= TAILLE_MAX_CORPS) {
+        tailleCorps += 2 + encodes[fin].length;
+        fin++;
+      }
+      trames.writeBytes(assembler(debut == 0 ? type : suite, encodes, debut, fin, tailleCorps));
+      debut = fin;
+    } while (debut < encodes.length);
+    return trames.toByteArray();
+  }
+
+  private static byte[] encoderChamp(String champ) {
+    byte[] octets = (champ == null ? "" : champ).getBytes(StandardCharsets.UTF_8);
+    if (octets.length <= TAILLE_MAX_CHAMP) {
+      return octets;
+    }
+    // On recule jusqu'au début d'un caractère pour ne pas en garder la moitié
+    int taille = TAILLE_MAX_CHAMP;
+    while (taille > 0 && (octets[taille] & 0xC0) == 0x80) {
+      taille--;
+    }
+    return Arrays.copyOf(octets, taille);
+  }
+
+  private static byte[] assembler(byte type, byte[][] encodes, int debut, int fin, int tailleCorps) {
+    byte[] trame = new byte[TAILLE_ENTETE + tailleCorps];
+    trame[0] = type;
+    ecrireEntier(trame, 1, tailleCorps);
+    int position = TAILLE_ENTETE;
+    for (int i = debut; i < fin; i++) {
+      byte[] champ = encodes[i];
+      trame[position] = (byte) (champ.length >>> 8);
+      trame[position + 1] = (byte) champ.length;
+      System.arraycopy(champ, 0, trame, position + 2, champ.length);
+      position += 2 + champ.length;
+    }
+    return trame;
+  }
+
+  /**
+   * La taille du texte en UTF-8, sans l'encoder
+   */
+  public static int tailleUtf8(String texte) {
+    int taille = 0;
+    for (int i = 0; i < texte.length(); i++) {
+      char c = texte.charAt(i);
+      if (c < 0x80) {
+        taille++;
+      } else if (c < 0x800) {
+        taille += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < texte.length()
+          && Character.isLowSurrogate(texte.charAt(i + 1))) {
+        taille += 4;
+        i++;
+      } else {
+        taille += 3;
+      }
+    }
+    return taille;
+  }
+
+  /**
+   * Lit la taille du corps dans l'en-tête qui commence à offset
+   */
+  public static int lireTailleCorps(byte[] donnees, int offset) {
+    return ((donnees[offset + 1] & 0xFF) << 24) | ((donnees[offset + 2] & 0xFF) << 16)
+        | ((donnees[offset + 3] & 0xFF) << 8) | (donnees[offset + 4] & 0xFF);
+  }
+
+  /**
+   * Décode les champs d'un corps directement là où il se trouve (pas de copie
+   * intermédiaire, seulement les String finales)
+   */
+  public static String[] decoderChamps(byte[] donnees, int offset, int longueur) {
+    int nbChamps = 0;
+    int position = offset;
+    int fin = offset + longueur;
+    while (position < fin) {
+      int taille = lireTailleChamp(donnees, position, fin);
+      position += 2 + taille;
+      nbChamps++;
+    }
+
+    String[] champs = new String[nbChamps];
+    position = offset;
+    for (int i = 0; i < nbChamps; i++) {
+      int taille = lireTailleChamp(donnees, position, fin);
+      champs[i] = new String(donnees, position + 2, taille, StandardCharsets.UTF_8);
+      position += 2 + taille;
+    }
+    return champs;
+  }
+
+  private static int lireTailleChamp(byte[] donnees, int position, int fin) {
+    if (position + 2 > fin) {
+      throw new IllegalArgumentException("Champ tronqué");
+    }
+    int taille = ((donnees[position] & 0xFF) << 8) | (donnees[position + 1] & 0xFF);
+    if (position + 2 + taille > fin) {
+      throw new IllegalArgumentException("Champ plus long que la trame");
+    }
+    return taille;
+  }
+
+  private static void ecrireEntier(byte[] donnees, int offset, int valeur) {
+    donnees[offset] = (byte) (valeur >>> 24);
+    donnees[offset + 1] = (byte) (valeur >>> 16);
+    donnees[offset + 2] = (byte) (valeur >>> 8);
+    donnees[offset + 3] = (byte) valeur;
+  }
+
+  /**
+   * Lecture d'un flux qui commence en texte et peut passer en binaire
+   * On ne peut pas utiliser un BufferedReader : il lirait d'avance des octets
+   * binaires en les prenant pour du texte
+   */
+  public static final class Lecteur {
+    private final InputStream in;
+    private final byte[] tampon = new byte[8192];
+    private int position = 0;
+    private int limite = 0;
+    private byte[] ligne = new byte[256];
+
+    public Lecteur(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Une ligne du protocole texte (sans \r\n), null en fin de flux
+     */
+    public String lireLigne() throws IOException {
+      int taille = 0;
+      while (true) {
+        if (position == limite && !remplir()) {
+          return taille > 0 ? decoderLigne(taille) : null;
+        }
+        byte octet = tampon[position++];
+        if (octet == '\n') {
+          return decoderLigne(taille);
+        }
+        if (taille == ligne.length) {
+          if (taille >= TAILLE_MAX_CORPS) {
+            throw new IOException("Ligne trop longue");
+          }
+          ligne = Arrays.copyOf(ligne, taille * 2);
+        }
+        ligne[taille++] = octet;
+      }
+    }
+
+    private String decoderLigne(int taille) {
+      if (taille > 0 && ligne[taille - 1] == '\r') {
+        taille--;
+      }
+      return new String(ligne, 0, taille, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * La prochaine trame binaire, null en fin de flux
+     */
+    public TrameRecue lireTrame() throws IOException {
+      byte[] entete = new byte[TAILLE_ENTETE];
+      if (!lireExactement(entete, 0, TAILLE_ENTETE, true)) {
+        return null;
+      }
+      int tailleCorps = lireTailleCorps(entete, 0);
+      if (tailleCorps < 0 || tailleCorps > TAILLE_MAX_CORPS) {
+        throw new IOException("Trame trop longue : " + tailleCorps);
+      }
+      byte[] corps = new byte[tailleCorps];
+      lireExactement(corps, 0, tailleCorps, false);
+      try {
+        return new TrameRecue(entete[0], decoderChamps(corps, 0, tailleCorps));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Trame mal formée : " + e.getMessage());
+      }
+    }
+
+    private boolean lireExactement(byte[] destination, int offset, int longueur, boolean finPossible)
+        throws IOException {
+      int lus = 0;
+      while (lus < longueur) {
+        if (position == limite && !remplir()) {
+          if (lus == 0 && finPossible) {
+            return false;
+          }
+          throw new EOFException("Trame incomplète");
+        }
+        int n = Math.min(longueur - lus, limite - position);
+        System.arraycopy(tampon, position, destination, offset + lus, n);
+        position += n;
+        lus += n;
+      }
+      return true;
+    }
+
+    private boolean remplir() throws IOException {
+      int n = in.read(tampon, 0, tampon.length);
+      if (n <= 0) {
+        return false;
+      }
+      position = 0;
+      limite = n;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package com.chat.model;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Un segment du journal d'une conversation et les fichiers qui vont avec :
+ * "<premier numéro>.log" (lignes de texte) ou "<premier numéro>.bin" (format
+ * binaire, voir FormatBinaire), son index ".idx" et, en binaire, le
+ * dictionnaire des noms ".dic"
+ * Une conversation peut avoir des segments des deux formats, chacun est lu
+ * avec le sien
+ * Un vieux segment terminé peut aussi être compressé en gzip (".bin.gz" ou
+ * ".log.gz", voir ArchivesSegments) : l'index et le dictionnaire restent tels
+ * quels, les positions sont celles du segment décompressé
+ */
+final class SegmentJournal {
+  static final String EXTENSION_TEXTE = ".log";
+  static final String EXTENSION_BINAIRE = ".bin";
+  static final String EXTENSION_INDEX = ".idx";
+  static final String EXTENSION_DICTIONNAIRE = ".dic";
+  static final String EXTENSION_COMPRESSEE = ".gz";
+
+  final Path dossier;
+  final long premier;
+  final boolean binaire;
+  final boolean compresse;
+
+  SegmentJournal(Path dossier, long premier, boolean binaire) {
+    this(dossier, premier, binaire, false);
+  }
+
+  SegmentJournal(Path dossier, long premier, boolean binaire, boolean compresse) {
+    this.dossier = dossier;
+    this.premier = premier;
+    this.binaire = binaire;
+    this.compresse = compresse;
+  }
+
+  // Le même segment, compressé ou pas
+  SegmentJournal versionCompressee(boolean compressee) {
+    return new SegmentJournal(dossier, premier, binaire, compressee);
+  }
+
+  /**
+   * Les segments de la conversation, dans l'ordre
+   */
+  static List<SegmentJournal> lister(Path dossier) throws IOException {
+    if (!Files.isDirectory(dossier)) {
+      return Collections.emptyList();
+    }
+    // Si un arrêt a laissé les deux versions d'un segment, on prend celle
+    // qui n'est pas compressée (elle est complète, l'autre peut-être pas)
+    Map<Long, SegmentJournal> parNumero = new HashMap<>();
+    try (Stream<Path> fichiers = Files.list(dossier)) {
+      fichiers.map(p -> p.getFileName().toString()).forEach(nom -> {
+        boolean compresse = nom.endsWith(EXTENSION_COMPRESSEE);
+        if (compresse) {
+          nom = nom.substring(0, nom.length() - EXTENSION_COMPRESSEE.length());
+        }
+        boolean binaire = nom.endsWith(EXTENSION_BINAIRE);
+        if (!binaire && !nom.endsWith(EXTENSION_TEXTE)) {
+          return;
+        }
+        try {
+          SegmentJournal segment = new SegmentJournal(dossier, Long.parseLong(nom.substring(0, nom.length() - 4)),
+              binaire, compresse);
+          parNumero.merge(segment.premier, segment, (a, b) -> a.compresse ? b : a);
+        } catch (NumberFormatException e) {
+          // Pas un segment
+        }
+      });
+    }
+    List<SegmentJournal> segments = new ArrayList<>(parNumero.values());
+    segments.sort(Comparator.comparingLong(s -> s.premier));
+    return segments;
+  }
+
+  /**
+   * Le ménage de la rétention : on supprime les segments entiers dont le
+   * dernier message est trop vieux. Comme un segment ne couvre qu'une tranche
+   * de temps, il n'y a jamais rien à réécrire. Le dernier segment, celui où
+   * l'écrivain ajoute, n'est jamais touché
+   * Donne le premier numéro qui reste dans chaque conversation nettoyée
+   */
+  static Map<String, Long> supprimerAnciens(Path dossierHistorique, ToIntFunction<String> joursAConserver,
+      long maintenant, Predicate<String> prive) {
+    Map<String, Long> premiersRestants = new HashMap<>();
+    List<Path> dossiers = new ArrayList<>();
+    try (Stream<Path> liste = Files.list(dossierHistorique)) {
+      liste.filter(Files::isDirectory).forEach(dossiers::add);
+    } catch (IOException e) {
+      System.err.println("Problème pour nettoyer les messages : " + e.getMessage());
+      return premiersRestants;
+    }
+    for (Path dossier : dossiers) {
+      String conversation = dossier.getFileName().toString();
+      int jours = joursAConserver.applyAsInt(conversation);
+      if (jours <= 0) {
+        continue;
+      }
+      long limite = maintenant - TimeUnit.DAYS.toMillis(jours);
+      try {
+        List<SegmentJournal> segments = lister(dossier);
+        int supprimes = 0;
+        while (supprimes + 1 < segments.size()
+            && LectureJournal.dernierHorodatage(segments.get(supprimes), prive.test(conversation)) < limite) {
+          segments.get(supprimes).supprimer();
+          supprimes++;
+        }
+        if (supprimes > 0) {
+          premiersRestants.put(conversation, segments.get(supprimes).premier);
+        }
+      } catch (IOException e) {
+        System.err.println("Problème pour nettoyer " + dossier + " : " + e.getMessage());
+      }
+    }
+    return premiersRestants;
+  }
+
+  private Path fichier(String extension) {
+    return dossier.resolve(String.format("%020d", premier) + extension);
+  }
+
+  Path fichier() {
+    return fichier((binaire ? EXTENSION_BINAIRE : EXTENSION_TEXTE) + (compresse ? EXTENSION_COMPRESSEE : ""));
+  }
+
+  Path index() {
+    return fichier(EXTENSION_INDEX);
+  }
+
+  Path dictionnaire() {
+    return fichier(EXTENSION_DICTIONNAIRE);
+  }
+
+  // La date du premier message (Long.MIN_VALUE si on ne la connaît pas)
+  long premierHorodatage() throws IOException {
+    return IndexSegment.premierHorodatage(index());
+  }
+
+  void supprimer() throws IOException {
+    Files.deleteIfExists(versionCompressee(true).fichier());
+    Files.deleteIfExists(versionCompressee(false).fichier());
+    Files.deleteIfExists(index());
+    Files.deleteIfExists(dictionnaire());
+  }
+
+  /**
+   * Compte les messages complets à partir de cette position (le début d'un
+   * message), et donne où se termine le dernier : { nombre, fin }
+   */
+  long[] compter(FileChannel canal, long depart) throws IOException {
+    long taille = canal.size();
+    if (binaire) {
+      depart = Math.max(depart, FormatBinaire.TAILLE_ENTETE);
+    }
+    if (depart >= taille) {
+      return new long[] { 0, Math.min(depart, taille) };
+    }
+    return compter(canal.map(FileChannel.MapMode.READ_ONLY, depart, taille - depart), depart);
+  }
+
+  /**
+   * Pareil sur un segment décompressé en mémoire
+   */
+  long[] compter(byte[] segment, long depart) {
+    if (binaire) {
+      depart = Math.max(depart, FormatBinaire.TAILLE_ENTETE);
+    }
+    if (depart >= segment.length) {
+      return new long[] { 0, Math.min(depart, segment.length) };
+    }
+    return compter(ByteBuffer.wrap(segment, (int) depart, segment.length - (int) depart).slice(), depart);
+  }
+
+  // Les octets commencent à la position depart du segment
+  private long[] compter(ByteBuffer octets, long depart) {
+    long nombre = 0;
+    int fin = 0;
+    if (!binaire) {
+      for (int i = 0; i < octets.limit(); i++) {
+        if (octets.get(i) == '\n') {
+          nombre++;
+          fin = i + 1;
+        }
+      }
+      return new long[] { nombre, depart + fin };
+    }
+    try {
+      while (octets.hasRemaining()) {
+        long longueur = FormatBinaire.lireVarint(octets);
+        if (longueur > octets.remaining()) {
+          break;
+        }
+        octets.position(octets.position() + (int) longueur);
+        nombre++;
+        fin = octets.position();
+      }
+    } catch (BufferUnderflowException e) {
+      // La longueur du dernier est coupée
+    }
+    return new long[] { nombre, depart + fin };
+  }
+}
@@ -0,0 +1,83 @@
+package com.chat.model;
+
+/**
+ * L'état des écrivains de l'historique à un instant donné, pour l'interface du
+ * serveur
+ * Si le retard grimpe, le disque ne suit plus le rythme des messages
+ * Avec la place gagnée en compressant les vieux segments (comptée à chaque
+ * passage de la compression)
+ */
+public final class StatistiquesHistorique {
+  private final long enAttente;
+  private final long retardMs;
+  private final long ecrits;
+  private final long perdus;
+  private final long segmentsCompresses;
+  private final long octetsOriginaux;
+  private final long octetsCompresses;
+  private final long lecturesArchives;
+  private final long lecturesEnCache;
+
+  StatistiquesHistorique(long enAttente, long retardMs, long ecrits, long perdus, long segmentsCompresses,
+      long octetsOriginaux, long octetsCompresses, long lecturesArchives, long lecturesEnCache) {
+    this.enAttente = enAttente;
+    this.retardMs = retardMs;
+    this.ecrits = ecrits;
+    this.perdus = perdus;
+    this.segmentsCompresses = segmentsCompresses;
+    this.octetsOriginaux = octetsOriginaux;
+    this.octetsCompresses = octetsCompresses;
+    this.lecturesArchives = lecturesArchives;
+    this.lecturesEnCache = lecturesEnCache;
+  }
+
+  // Messages déposés mais pas encore écrits dans leur fichier
+  public long getEnAttente() {
+    return enAttente;
+  }
+
+  // Depuis combien de temps attend le plus vieux (0 si tout est écrit)
+  public long getRetardMs() {
+    return retardMs;
+  }
+
+  // Messages écrits depuis le démarrage
+  public long getEcrits() {
+    return ecrits;
+  }
+
+  // Messages pas sauvegardés : file pleine avec -Dchat.historique.debordement=jeter,
+  // ou fichier de débordement impossible à écrire
+  public long getPerdus() {
+    return perdus;
+  }
+
+  // Vieux segments compressés sur le disque
+  public long getSegmentsCompresses() {
+    return segmentsCompresses;
+  }
+
+  // Leur taille avant compression
+  public long getOctetsOriginaux() {
+    return octetsOriginaux;
+  }
+
+  // Leur taille sur le disque
+  public long getOctetsCompresses() {
+    return octetsCompresses;
+  }
+
+  public long getOctetsEconomises() {
+    return octetsOriginaux - octetsCompresses;
+  }
+
+  // Lectures de segments compressés depuis le démarrage, et celles servies
+  // par le cache sans rien décompresser
+  public long getLecturesArchives() {
+    return lecturesArchives;
+  }
+
+  public long getLecturesEnCache() {
+    return lecturesEnCache;
+  }
+}
@@ -0,0 +1,79 @@
+package com.chat.server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Petit benchmark : temps CPU d'une diffusion selon la taille du salon
+ * Compare l'ancienne méthode (un PrintWriter par client, donc un encodage
+ * UTF-8 par destinataire) avec une Trame encodée une seule fois
+ * Les sockets sont remplacées par des flux qui jettent tout, on ne mesure que
+ * le travail fait côté serveur
+ *
+ * Lancement : mvn -Pbenchmark exec:java
+ */
+public class BenchmarkDiffusion {
+    private static final int[] TAILLES_SALON = { 10, 100, 1000, 5000 };
+    private static final String MESSAGE = "Alice : Salut tout le monde, quelqu'un a vu le match hier soir ? "
+            + "C'était vraiment incroyable, surtout la fin !";
+
+    public static void main(String[] args) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!mx.isCurrentThreadCpuTimeSupported()) {
+            System.err.println("Mesure du temps CPU pas disponible sur cette JVM");
+            return;
+        }
+
+        System.out.println(String.format("%10s | %22s | %22s | %6s",
+                "Salon", "1 encodage/client (µs)", "Trame partagée (µs)", "Gain"));
+        for (int taille : TAILLES_SALON) {
+            int diffusions = Math.max(20, 200_000 / taille);
+
+            PrintWriter[] writers = new PrintWriter[taille];
+            OutputStream[] flux = new OutputStream[taille];
+            for (int i = 0; i < taille; i++) {
+                writers[i] = new PrintWriter(
+                        new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8), true);
+                flux[i] = new BufferedOutputStream(OutputStream.nullOutputStream());
+            }
+
+            // Une passe de chauffe pour laisser le JIT compiler les deux chemins
+            mesurerParClient(mx, writers, diffusions);
+            mesurerTramePartagee(mx, flux, diffusions);
+
+            double ancien = mesurerParClient(mx, writers, diffusions) / 1000.0 / diffusions;
+            double nouveau = mesurerTramePartagee(mx, flux, diffusions) / 1000.0 / diffusions;
+            System.out.println(String.format("%10d | %22.1f | %22.1f | %5.1fx", taille, ancien, nouveau, ancien / nouveau));
+        }
+    }
+
+    // Comme avant : chaque client encode le message avec son PrintWriter
+    private static long mesurerParClient(ThreadMXBean mx, PrintWriter[] writers, int diffusions) {
+        long debut = mx.getCurrentThreadCpuTime();
+        for (int d = 0; d < diffusions; d++) {
+            for (PrintWriter writer : writers) {
+                writer.println(MESSAGE);
+            }
+        }
+        return mx.getCurrentThreadCpuTime() - debut;
+    }
+
+    // Maintenant : une Trame encodée une fois, les mêmes octets pour tout le monde
+    private static long mesurerTramePartagee(ThreadMXBean mx, OutputStream[] flux, int diffusions) {
+        long debut = mx.getCurrentThreadCpuTime();
+        try {
+            for (int d = 0; d < diffusions; d++) {
+                Trame trame = Trame.texte(MESSAGE);
+                for (OutputStream out : flux) {
+                    out.write(trame.octets(false));
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Problème pendant le benchmark : " + e.getMessage());
+        }
+        return mx.getCurrentThreadCpuTime() - debut;
+    }
+}
@@ -0,0 +1,589 @@
+package com.chat.server;
+
+import com.chat.model.GroupeChatManager;
+import com.chat.model.MessageStorage;
+import com.chat.model.ProtocoleBinaire;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Gère la session d'un client : soit dans son propre thread, soit pilotée par
+// une boucle du ServeurNio qui lui passe les lignes une par une
+class ClientHandler implements Runnable {
+    // Au plus un avertissement de limite de débit toutes les 5 secondes
+    private static final long DELAI_AVERTISSEMENT = 5_000_000_000L;
+    // Nombre de messages renvoyés par /chercher
+    private static final int MAX_RESULTATS_RECHERCHE = Integer.getInteger("chat.recherche.resultats", 20);
+
+    private Socket socket;
+    private ThreadFactory fabrique;
+    private Connexion connexion;
+    private final PolitiqueDebordement politique;
+    private String nomUtilisateur;
+    private boolean identifie = false;
+    private final AtomicBoolean termine = new AtomicBoolean(false);
+    // Des messages ont été mis de côté parce que la file de sortie était pleine
+    private volatile boolean messagesMisDeCote = false;
+    // Le client a demandé le protocole binaire : ce qu'il envoie ensuite est en
+    // trames
+    private volatile boolean entreeBinaire = false;
+    // Relecture des messages hors ligne avec accusés (null en mode direct)
+    private volatile RelectureHorsLigne relecture;
+    // Limite de débit, utilisée seulement par le thread qui lit la connexion
+    private final LimiteurDebit limiteur = new LimiteurDebit();
+    private long dernierAvertissement = System.nanoTime() - DELAI_AVERTISSEMENT;
+
+    public ClientHandler(Socket socket) {
+        this(socket, Thread::new);
+    }
+
+    // L'écrivain de la connexion tourne sur le même genre de thread que la
+    // lecture (classique ou virtuel)
+    ClientHandler(Socket socket, ThreadFactory fabrique) {
+        this.socket = socket;
+        this.fabrique = fabrique;
+        this.politique = PolitiqueDebordement.configuree();
+    }
+
+    ClientHandler(Connexion connexion, PolitiqueDebordement politique) {
+        this.connexion = connexion;
+        this.politique = politique;
+    }
+
+    @Override
+    public void run() {
+        try {
+            ProtocoleBinaire.Lecteur in = new ProtocoleBinaire.Lecteur(socket.getInputStream());
+            connexion = new ConnexionSocket(socket, fabrique, politique);
+
+            demarrer();
+
+            // On écoute les messages, en texte puis éventuellement en binaire
+            while (!connexion.estFermee()) {
+                if (entreeBinaire) {
+                    ProtocoleBinaire.TrameRecue trame = in.lireTrame();
+                    if (trame == null) {
+                        break;
+                    }
+                    // Après la pause le message est compté comme les autres
+                    long attente;
+                    while ((attente = attenteDebit(trame.type, trame.champs)) > 0) {
+                        patienter(attente);
+                    }
+                    recevoirTrame(trame.type, trame.champs);
+                } else {
+                    String message = in.lireLigne();
+                    if (message == null) {
+                        break;
+                    }
+                    long attente;
+                    while ((attente = attenteDebit(message)) > 0) {
+                        patienter(attente);
+                    }
+                    recevoirLigne(message);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!termine.get() && (connexion == null || !connexion.estFermee())) {
+                System.out.println("Problème avec le client " + nomUtilisateur + " : " + e.getMessage());
+            }
+        } finally {
+            terminer();
+            // Sans connexion, personne d'autre ne fermera la socket
+            if (connexion == null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("Problème pour fermer la connexion : " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Début de la session : on demande le nom d'utilisateur
+    void demarrer() {
+        envoyerMessage("Entrez votre nom d'utilisateur :");
+    }
+
+    // Limite atteinte : on arrête simplement de lire la socket, le client finit
+    // par être bloqué par TCP sans gêner les autres
+    private void patienter(long attente) throws InterruptedException {
+        Thread.sleep(attente / 1_000_000, (int) (attente % 1_000_000));
+    }
+
+    /**
+     * 0 si la ligne peut être traitée tout de suite (elle est comptée), sinon le
+     * temps en nanosecondes pendant lequel il faut arrêter de lire
+     * Le message n'est pas perdu : il sera traité après la pause
+     */
+    long attenteDebit(String ligne) {
+        if (!identifie || ligne.equalsIgnoreCase("/bye") || ligne.startsWith("/ack ")) {
+            return 0;
+        }
+        return verifierDebit(categorieDebit(ligne));
+    }
+
+    long attenteDebit(byte type, String[] champs) {
+        switch (type) {
+            case ProtocoleBinaire.COMMANDE:
+                return champs.length >= 1 ? attenteDebit(champs[0]) : 0;
+            case ProtocoleBinaire.ENVOI_GENERAL:
+                return identifie ? verifierDebit(LimiteurDebit.Categorie.DIFFUSION) : 0;
+            case ProtocoleBinaire.ENVOI_PRIVE:
+                return identifie ? verifierDebit(LimiteurDebit.Categorie.PRIVE) : 0;
+            case ProtocoleBinaire.ENVOI_GROUPE:
+                return identifie ? verifierDebit(LimiteurDebit.Categorie.GROUPE) : 0;
+            default:
+                return identifie ? verifierDebit(null) : 0;
+        }
+    }
+
+    private long verifierDebit(LimiteurDebit.Categorie categorie) {
+        long attente = limiteur.attente(categorie);
+        long maintenant = System.nanoTime();
+        if (attente > 0 && maintenant - dernierAvertissement >= DELAI_AVERTISSEMENT) {
+            // Pas un avertissement par message retenu, sinon c'est nous qui inondons
+            dernierAvertissement = maintenant;
+            envoyerMessage("[LIMITE] Vous envoyez trop vite, vos messages sont retenus "
+                    + Math.max(1, attente / 1_000_000) + " ms");
+        }
+        return attente;
+    }
+
+    private static LimiteurDebit.Categorie categorieDebit(String ligne) {
+        if (!ligne.startsWith("/")) {
+            return LimiteurDebit.Categorie.DIFFUSION;
+        }
+        int espace = ligne.indexOf(' ');
+        switch ((espace < 0 ? ligne : ligne.substring(0, espace)).toLowerCase()) {
+            case "/msg":
+                return LimiteurDebit.Categorie.PRIVE;
+            case "/groupe-msg":
+                return LimiteurDebit.Categorie.GROUPE;
+            case "/list":
+            case "/groupe-liste":
+            case "/groupe-membres":
+            case "/mes-groupes":
+            case "/chercher":
+                return LimiteurDebit.Categorie.LISTE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * true pour les commandes qui lisent ou écrivent des fichiers (recherche dans
+     * l'historique, sauvegarde des groupes) : le moteur NIO ne les fait pas sur
+     * sa boucle
+     */
+    boolean estBloquante(String ligne) {
+        if (!identifie || !ligne.startsWith("/")) {
+            return false;
+        }
+        int espace = ligne.indexOf(' ');
+        switch ((espace < 0 ? ligne : ligne.substring(0, espace)).toLowerCase()) {
+            case "/chercher":
+            case "/groupe-creer":
+            case "/groupe-ajouter":
+            case "/groupe-supprimer":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    boolean estBloquante(byte type, String[] champs) {
+        return type == ProtocoleBinaire.COMMANDE && champs.length >= 1 && estBloquante(champs[0]);
+    }
+
+    // Une ligne complète vient d'arriver du client
+    void recevoirLigne(String ligne) {
+        if (!identifie) {
+            identifier(ligne);
+        } else if (!tropLong(ligne)) {
+            traiterMessage(ligne);
+        }
+    }
+
+    // Au-delà, le message ne tiendrait plus dans une trame binaire avec ses
+    // noms : il n'est ni envoyé ni sauvegardé
+    private boolean tropLong(String... textes) {
+        for (String texte : textes) {
+            if (ProtocoleBinaire.tailleUtf8(texte) > ProtocoleBinaire.TAILLE_MAX_MESSAGE) {
+                envoyerMessage("Message trop long (" + ProtocoleBinaire.TAILLE_MAX_MESSAGE
+                        + " octets au plus), pas envoyé");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Une trame binaire complète vient d'arriver : les champs sont déjà séparés,
+    // pas besoin de découper la ligne
+    void recevoirTrame(byte type, String[] champs) {
+        if (type == ProtocoleBinaire.COMMANDE && champs.length >= 1) {
+            recevoirLigne(champs[0]);
+            return;
+        }
+        if (!identifie || tropLong(champs)) {
+            return;
+        }
+        if (type == ProtocoleBinaire.ENVOI_GENERAL && champs.length >= 1) {
+            EchoServer.diffuserMessage(nomUtilisateur, champs[0], nomUtilisateur);
+        } else if (type == ProtocoleBinaire.ENVOI_PRIVE && champs.length >= 2) {
+            EchoServer.envoyerMessagePrive(nomUtilisateur, champs[0], champs[1]);
+        } else if (type == ProtocoleBinaire.ENVOI_GROUPE && champs.length >= 2) {
+            envoyerAuGroupe(champs[0], champs[1]);
+        } else {
+            envoyerMessage("Trame inconnue : " + type);
+        }
+    }
+
+    RelectureHorsLigne getRelecture() {
+        return relecture;
+    }
+
+    boolean estEntreeBinaire() {
+        return entreeBinaire;
+    }
+
+    // Fin de la session, quelle que soit la raison (appelé une seule fois)
+    void terminer() {
+        if (!termine.compareAndSet(false, true)) {
+            return;
+        }
+        if (identifie) {
+            EchoServer.retirerUtilisateur(nomUtilisateur);
+        }
+        if (connexion != null) {
+            connexion.fermer();
+        }
+    }
+
+    String getNomUtilisateur() {
+        return nomUtilisateur;
+    }
+
+    // Nombre de messages en attente d'envoi vers ce client
+    int getProfondeurFile() {
+        return connexion != null ? connexion.profondeurFile() : 0;
+    }
+
+    long getMessagesPerdus() {
+        return connexion != null ? connexion.messagesPerdus() : 0;
+    }
+
+    private void identifier(String nom) {
+        nomUtilisateur = nom;
+
+        if (nomUtilisateur == null || nomUtilisateur.trim().isEmpty()
+                || ProtocoleBinaire.tailleUtf8(nomUtilisateur) > ProtocoleBinaire.TAILLE_MAX_NOM) {
+            envoyerMessage("Nom pas valide. Connexion fermée.");
+            connexion.fermer();
+            return;
+        }
+
+        // On vérifie si le nom est déjà pris
+        if (EchoServer.utilisateursConnectes.containsKey(nomUtilisateur)) {
+            envoyerMessage("Ce nom d'utilisateur est déjà pris. Connexion refusée.");
+            connexion.fermer();
+            return;
+        }
+
+        // On ajoute l'utilisateur et on lui montre les commandes
+        identifie = true;
+        relecture = EchoServer.nouvelleRelecture(this, nomUtilisateur);
+        EchoServer.ajouterUtilisateur(nomUtilisateur, this);
+        // Toute la bannière part en une seule écriture
+        List<String> lignes = new ArrayList<>();
+        lignes.add("Bienvenue " + nomUtilisateur + " !");
+        lignes.add("Commandes disponibles :");
+        lignes.add("- /list : voir qui est connecté");
+        lignes.add("- /presence : être prévenu de chaque connexion et déconnexion");
+        lignes.add("- /msg <utilisateur> <message> : envoyer un message privé");
+        lignes.add("- /chercher <mots> : retrouver des messages dans l'historique de vos conversations");
+        lignes.add("- /bye : quitter le chat");
+        lignes.add("COMMANDES GROUPES :");
+        lignes.add("- /groupe-creer <nom> <description> : créer un groupe");
+        lignes.add("- /groupe-liste : voir tous les groupes");
+        lignes.add("- /groupe-membres <nom> : voir les membres d'un groupe");
+        lignes.add("- /groupe-ajouter <nom> <utilisateur> : ajouter un utilisateur au groupe");
+        lignes.add("- /groupe-supprimer <nom> <utilisateur> : supprimer un utilisateur du groupe");
+        lignes.add("- /groupe-msg <nom> <message> : envoyer un message au groupe");
+        lignes.add("- /mes-groupes : voir mes groupes");
+        lignes.add("Tapez simplement votre message pour l'envoyer à tout le monde.");
+        envoyerLignes(lignes);
+    }
+
+    // Traite un message reçu
+    private void traiterMessage(String message) {
+        if (message.startsWith("/")) {
+            traiterCommande(message);
+        } else {
+            EchoServer.diffuserMessage(nomUtilisateur, message, nomUtilisateur);
+        }
+    }
+
+    // Traite les commandes spéciales
+    private void traiterCommande(String commande) {
+        String[] parties = commande.split(" ", 4);
+
+        switch (parties[0].toLowerCase()) {
+            case "/list":
+                envoyerTrame(EchoServer.obtenirTrameUtilisateurs());
+                break;
+
+            case "/presence":
+                EchoServer.abonnerPresence(this);
+                break;
+
+            case ProtocoleBinaire.COMMANDE_NEGOCIATION:
+                // La réponse est la dernière ligne en texte, tout ce qui suit est en binaire
+                envoyerTrame(Trame.basculeBinaire());
+                entreeBinaire = true;
+                break;
+
+            case "/msg":
+                if (parties.length >= 3) {
+                    String destinataire = parties[1];
+                    String message = parties[2];
+                    EchoServer.envoyerMessagePrive(nomUtilisateur, destinataire, message);
+                } else {
+                    envoyerMessage("Usage : /msg <utilisateur> <message>");
+                }
+                break;
+
+            case "/ack":
+                // Accusé de réception d'un lot de messages hors ligne
+                if (relecture != null && parties.length >= 2) {
+                    try {
+                        relecture.acquitter(Long.parseLong(parties[1]));
+                    } catch (NumberFormatException e) {
+                        envoyerMessage("Usage : /ack <numéro>");
+                    }
+                }
+                break;
+
+            case "/chercher":
+                // Tout ce qui suit la commande, espaces compris
+                String termes = commande.substring(parties[0].length()).trim();
+                if (termes.isEmpty()) {
+                    envoyerMessage("Usage : /chercher <mots>");
+                } else {
+                    chercher(termes);
+                }
+                break;
+
+            case "/bye":
+                envoyerMessage("Au revoir " + nomUtilisateur + " !");
+                connexion.fermer();
+                break;
+
+            // Commandes pour les groupes
+            case "/groupe-creer":
+                if (parties.length >= 3) {
+                    String nomGroupe = parties[1];
+                    String description = parties.length >= 4 ? parties[2] + " " + parties[3] : parties[2];
+                    boolean succes = GroupeChatManager.creerGroupe(nomGroupe, nomUtilisateur, description);
+                    if (succes) {
+                        envoyerTrame(Trame.groupesModifies("Groupe '" + nomGroupe
+                                + "' créé avec succès ! Vous êtes maintenant le créateur et modérateur."));
+                    } else {
+                        envoyerMessage("Erreur : Un groupe avec ce nom existe déjà.");
+                    }
+                } else {
+                    envoyerMessage("Usage : /groupe-creer <nom> <description>");
+                }
+                break;
+
+            case "/groupe-liste":
+                if (GroupeChatManager.obtenirTousGroupes().isEmpty()) {
+                    envoyerMessage("Aucun groupe n'a été créé pour le moment.");
+                } else {
+                    List<String> lignes = new ArrayList<>();
+                    lignes.add("=== LISTE DES GROUPES ===");
+                    for (String nomGroupe : GroupeChatManager.obtenirTousGroupes().keySet()) {
+                        GroupeChatManager.GroupeChat groupe = GroupeChatManager.obtenirGroupe(nomGroupe);
+                        lignes.add("- " + nomGroupe + " (" + groupe.getMembres().size() + " membres) - "
+                                + groupe.getDescription());
+                    }
+                    envoyerLignes(lignes);
+                }
+                break;
+
+            case "/groupe-membres":
+                if (parties.length >= 2) {
+                    String nomGroupe = parties[1];
+                    GroupeChatManager.GroupeChat groupe = GroupeChatManager.obtenirGroupe(nomGroupe);
+                    if (groupe == null) {
+                        envoyerMessage("Le groupe '" + nomGroupe + "' n'existe pas.");
+                    } else {
+                        envoyerLignes(Arrays.asList(
+                                "=== MEMBRES DU GROUPE '" + nomGroupe + "' ===",
+                                "Créateur : " + groupe.getCreateur(),
+                                "Modérateurs : " + String.join(", ", groupe.getModerateurs()),
+                                "Membres : " + String.join(", ", groupe.getMembres()),
+                                "Total : " + groupe.getMembres().size() + " membres"));
+                    }
+                } else {
+                    envoyerMessage("Usage : /groupe-membres <nom>");
+                }
+                break;
+
+            case "/groupe-ajouter":
+                if (parties.length >= 3) {
+                    String nomGroupe = parties[1];
+                    String utilisateur = parties[2];
+                    boolean dejaMembre = GroupeChatManager.estMembreGroupe(nomGroupe, utilisateur);
+                    String resultat = GroupeChatManager.ajouterUtilisateurAuGroupe(nomGroupe, utilisateur,
+                            nomUtilisateur);
+                    envoyerResultatGroupe(resultat,
+                            !dejaMembre && GroupeChatManager.estMembreGroupe(nomGroupe, utilisateur));
+                } else {
+                    envoyerMessage("Usage : /groupe-ajouter <nom> <utilisateur>");
+                }
+                break;
+
+            case "/groupe-supprimer":
+                if (parties.length >= 3) {
+                    String nomGroupe = parties[1];
+                    String utilisateur = parties[2];
+                    boolean etaitMembre = GroupeChatManager.estMembreGroupe(nomGroupe, utilisateur);
+                    String resultat = GroupeChatManager.supprimerUtilisateurDuGroupe(nomGroupe, utilisateur,
+                            nomUtilisateur);
+                    envoyerResultatGroupe(resultat,
+                            etaitMembre && !GroupeChatManager.estMembreGroupe(nomGroupe, utilisateur));
+                } else {
+                    envoyerMessage("Usage : /groupe-supprimer <nom> <utilisateur>");
+                }
+                break;
+
+            case "/groupe-msg":
+                if (parties.length >= 3) {
+                    String nomGroupe = parties[1];
+                    String message = parties[2];
+                    if (parties.length >= 4) {
+                        message += " " + parties[3];
+                    }
+                    envoyerAuGroupe(nomGroupe, message);
+                } else {
+                    envoyerMessage("Usage : /groupe-msg <nom> <message>");
+                }
+                break;
+
+            case "/mes-groupes":
+                List<String> mesGroupes = GroupeChatManager.obtenirGroupesUtilisateur(nomUtilisateur);
+                if (mesGroupes.isEmpty()) {
+                    envoyerMessage("Vous n'êtes membre d'aucun groupe.");
+                } else {
+                    List<String> lignes = new ArrayList<>();
+                    lignes.add("=== VOS GROUPES ===");
+                    for (String nomGroupe : mesGroupes) {
+                        GroupeChatManager.GroupeChat groupe = GroupeChatManager.obtenirGroupe(nomGroupe);
+                        if (groupe != null) {
+                            String role = groupe.estModerateur(nomUtilisateur) ? "(Modérateur)" : "(Membre)";
+                            lignes.add("- " + nomGroupe + " " + role + " - " + groupe.getDescription());
+                        }
+                    }
+                    envoyerLignes(lignes);
+                }
+                break;
+
+            default:
+                envoyerMessage("Commande inconnue : " + parties[0]);
+                break;
+        }
+    }
+
+    // Les messages les plus récents qui contiennent tous les mots, dans le chat
+    // général, ses conversations privées et ses groupes
+    private void chercher(String termes) {
+        List<String> resultats = MessageStorage.rechercher(nomUtilisateur,
+                GroupeChatManager.obtenirGroupesUtilisateur(nomUtilisateur), termes, MAX_RESULTATS_RECHERCHE);
+        List<String> lignes = new ArrayList<>();
+        if (resultats.isEmpty()) {
+            lignes.add("Aucun message ne contient '" + termes + "'.");
+        } else {
+            lignes.add("=== " + resultats.size() + " MESSAGE(S) POUR '" + termes + "' ===");
+            lignes.addAll(resultats);
+        }
+        if (!MessageStorage.rechercheComplete()) {
+            lignes.add("(l'historique est encore en cours d'indexation, il peut manquer des messages)");
+        }
+        envoyerLignes(lignes);
+    }
+
+    private void envoyerAuGroupe(String nomGroupe, String message) {
+        if (!EchoServer.diffuserMessageGroupe(nomGroupe, nomUtilisateur, message)) {
+            envoyerMessage("Impossible d'écrire dans le groupe '" + nomGroupe
+                    + "' (groupe inconnu ou vous n'en êtes pas membre).");
+        }
+    }
+
+    // Les clients binaires savent qu'ils doivent rafraîchir leurs groupes sans
+    // avoir à chercher des mots dans le texte de la réponse
+    private void envoyerResultatGroupe(String resultat, boolean modifie) {
+        envoyerTrame(modifie ? Trame.groupesModifies(resultat) : Trame.texte(resultat));
+    }
+
+    // Une réponse de plusieurs lignes, envoyée d'un bloc
+    void envoyerLignes(List<String> lignes) {
+        envoyerTrame(Trame.lot(lignes));
+    }
+
+    // Envoie un message à ce client (sans attendre qu'il soit vraiment parti)
+    public void envoyerMessage(String message) {
+        envoyerTrame(Trame.texte(message));
+    }
+
+    // Même chose avec une trame déjà encodée, partagée entre plusieurs clients
+    void envoyerTrame(Trame trame) {
+        if (connexion == null) {
+            return;
+        }
+        if (connexion.envoyer(trame)) {
+            // La file s'est vidée : on renvoie ce qui avait été mis de côté
+            if (messagesMisDeCote && connexion.profondeurFile() == 0) {
+                messagesMisDeCote = false;
+                EchoServer.planifierMessagesHorsLigne(nomUtilisateur);
+            }
+        } else if (!connexion.estFermee()) {
+            gererFilePleine(trame);
+        }
+    }
+
+    // Un lot de la relecture hors ligne : s'il ne passe pas, il n'est surtout pas
+    // remis dans le stock (il y est encore), on relancera quand la file se videra
+    boolean envoyerRelecture(Trame trame) {
+        if (connexion == null || connexion.estFermee()) {
+            return false;
+        }
+        if (!connexion.envoyer(trame)) {
+            messagesMisDeCote = true;
+            return false;
+        }
+        return true;
+    }
+
+    // La file de sortie est pleine : le client ne lit pas assez vite
+    // Seul un message de chat peut être mis de côté, une fois relu ce n'est
+    // qu'une ligne de plus ; le reste ne peut pas être perdu, on coupe
+    private void gererFilePleine(Trame trame) {
+        if (politique == PolitiqueDebordement.STOCKER_HORS_LIGNE && identifie && trame.estMessage()
+                && EchoServer.stockerMessageHorsLigne(nomUtilisateur, trame.getTexte())) {
+            messagesMisDeCote = true;
+            return;
+        }
+        System.out.println("Client " + nomUtilisateur + " trop lent (" + connexion.profondeurFile()
+                + " messages en attente), connexion coupée");
+        connexion.couper();
+    }
+}
@@ -0,0 +1,41 @@
+package com.chat.server;
+
+/**
+ * Le transport d'une session client, vu depuis ClientHandler
+ * Permet d'avoir le même protocole que ce soit un thread par client ou le
+ * moteur NIO
+ * Chaque connexion a sa propre file de sortie bornée : envoyer ne bloque
+ * jamais l'appelant, même si le client lit lentement
+ */
+interface Connexion {
+
+    /**
+     * Met une trame dans la file de sortie, les octets sont partagés et pas
+     * recopiés
+     * 
+     * @return false si la file est pleine et que la trame n'a pas été prise
+     */
+    boolean envoyer(Trame trame);
+
+    /**
+     * Ferme la connexion une fois que ce qui est en attente est parti
+     */
+    void fermer();
+
+    /**
+     * Ferme la connexion tout de suite, ce qui est en attente est perdu
+     */
+    void couper();
+
+    boolean estFermee();
+
+    /**
+     * Nombre de messages en attente d'écriture vers le client
+     */
+    int profondeurFile();
+
+    /**
+     * Nombre de messages jetés parce que la file était pleine
+     */
+    long messagesPerdus();
+}
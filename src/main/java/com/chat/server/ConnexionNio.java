@@ -0,0 +1,371 @@
+package com.chat.server;
+
+import com.chat.model.ProtocoleBinaire;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Une connexion non bloquante gérée par une boucle du ServeurNio
+ * La lecture et l'écriture se font toujours sur le thread de la boucle, les
+ * autres threads ne font que déposer des trames dans la file de sortie
+ * (sauf les commandes bloquantes, passées à un autre thread pendant que la
+ * lecture est suspendue)
+ */
+class ConnexionNio implements Connexion {
+    // Au-delà, on considère que le client fait n'importe quoi
+    private static final int TAILLE_MAX_LIGNE = 64 * 1024;
+    private static final int TAILLE_MAX_PARTIEL = ProtocoleBinaire.TAILLE_ENTETE + ProtocoleBinaire.TAILLE_MAX_CORPS;
+
+    private final SocketChannel canal;
+    private final ServeurNio.Boucle boucle;
+    private final ClientHandler handler;
+    private SelectionKey cle;
+
+    // Morceau de ligne (ou de trame) reçu mais pas encore complet
+    // Alloué seulement quand il y en a besoin (la plupart des connexions sont
+    // inactives)
+    private byte[] partiel;
+    private int taillePartiel;
+
+    // Ce que les autres threads veulent envoyer (file bornée), et ce qui est en
+    // cours d'envoi
+    private final FileSortante<Trame> aEnvoyer;
+    private final ArrayList<Trame> aEncoder = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer> enCours = new ArrayDeque<>();
+    private final AtomicBoolean ecritureDemandee = new AtomicBoolean(false);
+    // La sortie passe en binaire après la réponse à /binaire
+    private boolean sortieBinaire = false;
+
+    // Limite de débit atteinte ou commande bloquante en cours : on ne lit plus
+    // jusqu'à la reprise
+    private boolean suspendue = false;
+    private boolean commandeEnCours = false;
+
+    private volatile boolean fermetureDemandee = false;
+    private volatile boolean coupureDemandee = false;
+    private volatile boolean fermee = false;
+
+    ConnexionNio(SocketChannel canal, ServeurNio.Boucle boucle, PolitiqueDebordement politique) {
+        this.canal = canal;
+        this.boucle = boucle;
+        this.aEnvoyer = new FileSortante<>(FileSortante.CAPACITE_DEFAUT, politique, Trame::estMessage);
+        this.handler = new ClientHandler(this, politique);
+    }
+
+    // Appelé par la boucle quand le canal vient d'être enregistré
+    void enregistree(SelectionKey cle) {
+        this.cle = cle;
+        handler.demarrer();
+    }
+
+    @Override
+    public boolean envoyer(Trame trame) {
+        if (fermee || fermetureDemandee) {
+            return false;
+        }
+        if (!aEnvoyer.deposer(trame)) {
+            return false;
+        }
+        demanderEcriture();
+        return true;
+    }
+
+    @Override
+    public void fermer() {
+        fermetureDemandee = true;
+        demanderEcriture();
+    }
+
+    // La fermeture elle-même se fait sur le thread de la boucle
+    @Override
+    public void couper() {
+        fermetureDemandee = true;
+        coupureDemandee = true;
+        aEnvoyer.vider();
+        demanderEcriture();
+    }
+
+    @Override
+    public boolean estFermee() {
+        return fermee || fermetureDemandee;
+    }
+
+    @Override
+    public int profondeurFile() {
+        return aEnvoyer.taille();
+    }
+
+    @Override
+    public long messagesPerdus() {
+        return aEnvoyer.getSupprimes();
+    }
+
+    // On ne réveille la boucle qu'une fois tant qu'elle n'a pas traité la demande
+    private void demanderEcriture() {
+        if (ecritureDemandee.compareAndSet(false, true)) {
+            boucle.demanderEcriture(this);
+        }
+    }
+
+    // --- Tout ce qui suit tourne sur le thread de la boucle ---
+
+    void preparerEcriture() {
+        ecritureDemandee.set(false);
+        if (fermee) {
+            return;
+        }
+        if (coupureDemandee) {
+            fermerMaintenant();
+            return;
+        }
+        ecrire();
+    }
+
+    void lire(ByteBuffer tampon) {
+        if (suspendue) {
+            // La clé était déjà prête avant la suspension
+            return;
+        }
+        int lus;
+        try {
+            tampon.clear();
+            lus = canal.read(tampon);
+        } catch (IOException e) {
+            System.out.println("Problème avec le client " + handler.getNomUtilisateur() + " : " + e.getMessage());
+            fermerMaintenant();
+            return;
+        }
+
+        if (lus < 0) {
+            fermerMaintenant();
+            return;
+        }
+
+        tampon.flip();
+        byte[] donnees = tampon.array();
+        int debut = tampon.arrayOffset() + tampon.position();
+        int fin = tampon.arrayOffset() + tampon.limit();
+
+        if (taillePartiel > 0) {
+            // Il restait un début de ligne ou de trame : on complète puis on analyse
+            // le tout
+            accumuler(donnees, debut, fin - debut);
+            if (fermee) {
+                return;
+            }
+            analyserPartiel();
+        } else {
+            // Le cas normal : on analyse directement dans le tampon de la boucle,
+            // sans recopie
+            int consommes = analyser(donnees, debut, fin);
+            if (debut + consommes < fin && !fermee) {
+                accumuler(donnees, debut + consommes, fin - debut - consommes);
+            }
+        }
+    }
+
+    private void analyserPartiel() {
+        int consommes = analyser(partiel, 0, taillePartiel);
+        taillePartiel -= consommes;
+        if (taillePartiel == 0) {
+            partiel = null;
+        } else {
+            System.arraycopy(partiel, consommes, partiel, 0, taillePartiel);
+        }
+    }
+
+    // Le message retenu est encore dans ce qui a été reçu : on reprend l'analyse
+    // là où elle s'était arrêtée
+    void reprendre() {
+        if (fermee || !suspendue || commandeEnCours) {
+            return;
+        }
+        suspendue = false;
+        cle.interestOps(cle.interestOps() | SelectionKey.OP_READ);
+        if (taillePartiel > 0) {
+            analyserPartiel();
+        }
+    }
+
+    private void suspendre(long attente) {
+        suspendue = true;
+        cle.interestOps(cle.interestOps() & ~SelectionKey.OP_READ);
+        boucle.planifierReprise(this, attente);
+    }
+
+    // Une commande qui touche au disque part sur un autre thread, la lecture
+    // reprend quand elle est finie
+    private void executerAPart(Runnable commande) {
+        commandeEnCours = true;
+        suspendue = true;
+        cle.interestOps(cle.interestOps() & ~SelectionKey.OP_READ);
+        boucle.executerAPart(this, commande);
+    }
+
+    void finCommande() {
+        commandeEnCours = false;
+        reprendre();
+    }
+
+    // Découpe autant de lignes (ou de trames) complètes que possible, renvoie le
+    // nombre d'octets utilisés
+    private int analyser(byte[] donnees, int debut, int fin) {
+        int position = debut;
+        while (position < fin && !fermee && !fermetureDemandee && !suspendue) {
+            int consommes = handler.estEntreeBinaire()
+                    ? analyserTrame(donnees, position, fin)
+                    : analyserLigne(donnees, position, fin);
+            if (consommes == 0) {
+                break;
+            }
+            position += consommes;
+        }
+        return position - debut;
+    }
+
+    private int analyserLigne(byte[] donnees, int debut, int fin) {
+        for (int i = debut; i < fin; i++) {
+            if (donnees[i] == '\n') {
+                int longueur = i - debut;
+                // On tolère les clients qui envoient \r\n (telnet par exemple)
+                if (longueur > 0 && donnees[i - 1] == '\r') {
+                    longueur--;
+                }
+                String ligne = new String(donnees, debut, longueur, StandardCharsets.UTF_8);
+                long attente = handler.attenteDebit(ligne);
+                if (attente > 0) {
+                    suspendre(attente);
+                    return 0;
+                }
+                if (handler.estBloquante(ligne)) {
+                    executerAPart(() -> handler.recevoirLigne(ligne));
+                } else {
+                    handler.recevoirLigne(ligne);
+                }
+                return i - debut + 1;
+            }
+        }
+        if (fin - debut > TAILLE_MAX_LIGNE) {
+            refuser("Ligne trop longue");
+        }
+        return 0;
+    }
+
+    private int analyserTrame(byte[] donnees, int debut, int fin) {
+        if (fin - debut < ProtocoleBinaire.TAILLE_ENTETE) {
+            return 0;
+        }
+        int tailleCorps = ProtocoleBinaire.lireTailleCorps(donnees, debut);
+        if (tailleCorps < 0 || tailleCorps > ProtocoleBinaire.TAILLE_MAX_CORPS) {
+            refuser("Trame trop longue");
+            return 0;
+        }
+        int tailleTrame = ProtocoleBinaire.TAILLE_ENTETE + tailleCorps;
+        if (fin - debut < tailleTrame) {
+            return 0;
+        }
+
+        // Les champs sont décodés directement dans le tampon reçu
+        String[] champs;
+        try {
+            champs = ProtocoleBinaire.decoderChamps(donnees, debut + ProtocoleBinaire.TAILLE_ENTETE, tailleCorps);
+        } catch (IllegalArgumentException e) {
+            refuser("Trame mal formée");
+            return 0;
+        }
+        byte type = donnees[debut];
+        long attente = handler.attenteDebit(type, champs);
+        if (attente > 0) {
+            suspendre(attente);
+            return 0;
+        }
+        if (handler.estBloquante(type, champs)) {
+            executerAPart(() -> handler.recevoirTrame(type, champs));
+        } else {
+            handler.recevoirTrame(type, champs);
+        }
+        return tailleTrame;
+    }
+
+    private void refuser(String raison) {
+        System.out.println(raison + " pour " + handler.getNomUtilisateur() + ", connexion fermée");
+        fermerMaintenant();
+    }
+
+    private void accumuler(byte[] donnees, int offset, int longueur) {
+        if (taillePartiel + longueur > TAILLE_MAX_PARTIEL) {
+            refuser("Ligne trop longue");
+            return;
+        }
+        if (partiel == null) {
+            partiel = new byte[Math.max(256, longueur)];
+        } else if (partiel.length < taillePartiel + longueur) {
+            partiel = Arrays.copyOf(partiel, Math.max(partiel.length * 2, taillePartiel + longueur));
+        }
+        System.arraycopy(donnees, offset, partiel, taillePartiel, longueur);
+        taillePartiel += longueur;
+    }
+
+    void ecrire() {
+        aEnvoyer.drainerVers(aEncoder);
+        for (Trame trame : aEncoder) {
+            enCours.add(trame.tampon(sortieBinaire));
+            if (trame.estBascule()) {
+                sortieBinaire = true;
+            }
+        }
+        aEncoder.clear();
+
+        try {
+            // On envoie tout ce qui est en attente en un seul appel système
+            while (!enCours.isEmpty()) {
+                ByteBuffer[] buffers = enCours.toArray(new ByteBuffer[0]);
+                long ecrits = canal.write(buffers);
+                while (!enCours.isEmpty() && !enCours.peek().hasRemaining()) {
+                    enCours.poll();
+                }
+                if (ecrits == 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            fermerMaintenant();
+            return;
+        }
+
+        if (!enCours.isEmpty()) {
+            // La socket est pleine : on attendra qu'elle soit de nouveau disponible
+            cle.interestOps(cle.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            cle.interestOps(cle.interestOps() & ~SelectionKey.OP_WRITE);
+            if (fermetureDemandee && aEnvoyer.estVide()) {
+                fermerMaintenant();
+            }
+        }
+    }
+
+    void fermerMaintenant() {
+        if (fermee) {
+            return;
+        }
+        fermee = true;
+        aEnvoyer.vider();
+        if (cle != null) {
+            cle.cancel();
+        }
+        try {
+            canal.close();
+        } catch (IOException e) {
+            System.err.println("Problème pour fermer la connexion : " + e.getMessage());
+        }
+        handler.terminer();
+    }
+}
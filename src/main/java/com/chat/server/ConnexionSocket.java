@@ -0,0 +1,120 @@
+package com.chat.server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connexion classique : une socket bloquante
+ * Les messages passent par une file bornée vidée par un thread écrivain dédié :
+ * celui qui envoie ne reste jamais bloqué sur la socket d'un client lent
+ * Pas de PrintWriter ni de synchronized ici, pour que les threads virtuels ne
+ * restent pas collés à leur thread porteur pendant une écriture
+ */
+class ConnexionSocket implements Connexion, Runnable {
+    // Temps qu'on attend d'autres messages avant d'envoyer le paquet, pour
+    // regrouper les rafales de diffusions (-Dchat.sortie.fenetreMs=1)
+    // 0 par défaut : on envoie dès que la file est vide
+    private static final long FENETRE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Integer.getInteger("chat.sortie.fenetreMs", 0));
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final FileSortante<Trame> file;
+    private volatile boolean fermetureDemandee = false;
+
+    ConnexionSocket(Socket socket, ThreadFactory fabrique, PolitiqueDebordement politique) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.file = new FileSortante<>(FileSortante.CAPACITE_DEFAUT, politique, Trame::estMessage);
+        fabrique.newThread(this).start();
+    }
+
+    @Override
+    public boolean envoyer(Trame trame) {
+        return file.deposer(trame);
+    }
+
+    // Le thread écrivain : vide la file et n'envoie le paquet que quand il n'y a
+    // plus rien en attente (et que la fenêtre est passée sans nouveau message)
+    @Override
+    public void run() {
+        try {
+            // Le client peut passer en binaire : tout ce qui suit la réponse à
+            // /binaire dans la file part sous forme de trames
+            boolean binaire = false;
+            // Quand a été écrit le premier message pas encore envoyé
+            long debutPaquet = 0;
+            boolean paquetEnCours = false;
+            Trame trame;
+            while ((trame = file.prendre()) != null) {
+                if (!paquetEnCours) {
+                    debutPaquet = System.nanoTime();
+                    paquetEnCours = true;
+                }
+                out.write(trame.octets(binaire));
+                if (trame.estBascule()) {
+                    binaire = true;
+                }
+                if (file.estVide() && !attendreSuite(debutPaquet)) {
+                    out.flush();
+                    paquetEnCours = false;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Le client est parti, le thread de lecture s'en rendra compte
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            file.vider();
+            fermerSocket();
+        }
+    }
+
+    // Le premier message du paquet n'attend jamais plus que la fenêtre
+    private boolean attendreSuite(long debutPaquet) throws InterruptedException {
+        if (FENETRE_NANOS <= 0) {
+            return false;
+        }
+        long restant = FENETRE_NANOS - (System.nanoTime() - debutPaquet);
+        return restant > 0 && file.attendre(restant, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void fermer() {
+        fermetureDemandee = true;
+        file.fermer();
+    }
+
+    @Override
+    public void couper() {
+        fermetureDemandee = true;
+        file.vider();
+        fermerSocket();
+    }
+
+    private void fermerSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Problème pour fermer la connexion : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean estFermee() {
+        return fermetureDemandee || socket.isClosed();
+    }
+
+    @Override
+    public int profondeurFile() {
+        return file.taille();
+    }
+
+    @Override
+    public long messagesPerdus() {
+        return file.getSupprimes();
+    }
+}
@@ -6,29 +6,107 @@ import com.chat.model.MessageStorage;
 import java.io.*;
 import java.net.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.nio.file.*;
 
 public class EchoServer {
     private static final int PORT = 1234;
     private static final String MESSAGES_FILE = "data/messages_offline.txt";
+    private static final String JOURNAL_FILE = "data/messages_offline.journal";
 
     // On stocke les utilisateurs connectés : nom -> ClientHandler
     static ConcurrentHashMap<String, ClientHandler> utilisateursConnectes = new ConcurrentHashMap<>();
 
-    // Messages pour les gens qui sont pas connectés : nom -> liste de messages
-    private static ConcurrentHashMap<String, ArrayList<String>> messagesHorsLigne = new ConcurrentHashMap<>();
+    // Messages pour les gens qui sont pas connectés, avec leur journal sur le
+    // disque
+    private static final StockHorsLigne horsLigne = new StockHorsLigne(Paths.get(JOURNAL_FILE),
+            Paths.get(MESSAGES_FILE));
+    // "directe" : tout part d'un coup et c'est supprimé tout de suite (telnet,
+    // vieux clients) ; "acquittee" : par lots, supprimés quand le client confirme
+    // Réglable avec -Dchat.horsligne.relecture=directe|acquittee
+    private static final boolean RELECTURE_ACQUITTEE = "acquittee"
+            .equalsIgnoreCase(System.getProperty("chat.horsligne.relecture", "directe"));
+    // La relecture ne se fait pas pendant la connexion : un gros arriéré ne
+    // retarde pas la bannière ni les autres connexions
+    // Quelques threads au plus (-Dchat.horsligne.threads, 2 par défaut) : après
+    // une vague de reconnexions les relectures attendent leur tour au lieu de
+    // créer un thread chacune
+    private static final ExecutorService relectures = Executors.newFixedThreadPool(
+            Math.max(1, Integer.getInteger("chat.horsligne.threads", 2)), r -> {
+        Thread thread = new Thread(r, "chat-relecture");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Les arrivées, départs et abonnements à la présence passent un par un : un
+    // abonné ne peut pas recevoir un changement déjà compris dans sa liste
+    // complète, ni en rater un
+    private static final ReentrantLock verrouPresence = new ReentrantLock();
+    // Ceux qui ont demandé /presence, les seuls à qui on envoie les changements
+    private static final Set<ClientHandler> abonnesPresence = ConcurrentHashMap.newKeySet();
+    // Augmente à chaque arrivée ou départ, sous verrouPresence
+    private static volatile long versionPresence = 0;
+    // La liste des connectés prête à envoyer, peut-être en retard sur
+    // versionPresence (voir instantaneCourant)
+    private static final AtomicReference<InstantaneConnectes> instantane =
+            new AtomicReference<>(InstantaneConnectes.VIDE);
 
     // Référence vers l'interface graphique pour la mettre à jour
     private static ServerGUI serverGUI;
 
+    // Les différentes façons de faire tourner les sessions clients
+    enum ModeServeur {
+        THREADS, // un thread par client (le mode historique)
+        VIRTUEL, // un thread virtuel par client (Java 21+)
+        NIO; // quelques boucles Selector pour toutes les connexions
+
+        static ModeServeur depuis(String valeur) {
+            if (valeur != null) {
+                for (ModeServeur mode : values()) {
+                    if (mode.name().equalsIgnoreCase(valeur.trim())) {
+                        return mode;
+                    }
+                }
+            }
+            return THREADS;
+        }
+    }
+
+    // Le mode se choisit avec le premier argument ou -Dchat.mode=nio|virtuel
     public static void main(String[] args) {
-        chargerMessagesHorsLigne();
+        horsLigne.charger();
 
         // Charger les groupes de chat au démarrage
         GroupeChatManager.chargerGroupes();
         System.out.println("Groupes de chat chargés");
 
+        ModeServeur mode = ModeServeur.depuis(args.length > 0 ? args[0] : System.getProperty("chat.mode"));
+        if (mode == ModeServeur.NIO) {
+            demarrerNio();
+        } else if (mode == ModeServeur.VIRTUEL) {
+            ThreadFactory fabrique = ThreadsVirtuels.fabrique("client-");
+            if (fabrique == null) {
+                System.err.println("Threads virtuels pas disponibles sur cette JVM, on garde un thread par client");
+                fabrique = Thread::new;
+            } else {
+                System.out.println("Sessions clients sur des threads virtuels");
+            }
+            demarrerThreads(fabrique);
+        } else {
+            demarrerThreads(Thread::new);
+        }
+    }
+
+    private static void demarrerThreads(ThreadFactory fabrique) {
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
             System.out.println("Serveur démarré sur le port " + PORT);
             System.out.println("J'attends des connexions...");
@@ -37,15 +115,25 @@ public class EchoServer {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("Nouvelle connexion depuis " + clientSocket.getInetAddress());
 
-                // Chaque client a son propre thread
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                new Thread(clientHandler).start();
+                // Chaque client a son propre thread (classique ou virtuel)
+                ClientHandler clientHandler = new ClientHandler(clientSocket, fabrique);
+                fabrique.newThread(clientHandler).start();
             }
         } catch (IOException e) {
             System.err.println("Problème avec le serveur : " + e.getMessage());
         }
     }
 
+    private static void demarrerNio() {
+        // Une boucle par coeur par défaut, réglable avec -Dchat.nio.boucles=N
+        int nbBoucles = Integer.getInteger("chat.nio.boucles", Runtime.getRuntime().availableProcessors());
+        try {
+            new ServeurNio(PORT, nbBoucles).demarrer();
+        } catch (IOException e) {
+            System.err.println("Problème avec le serveur : " + e.getMessage());
+        }
+    }
+
     // Méthode pour associer l'interface graphique
     public static void setServerGUI(ServerGUI gui) {
         serverGUI = gui;
@@ -53,14 +141,21 @@ public class EchoServer {
 
     // Quand quelqu'un se connecte
     public static void ajouterUtilisateur(String nom, ClientHandler handler) {
-        utilisateursConnectes.put(nom, handler);
+        verrouPresence.lock();
+        try {
+            utilisateursConnectes.put(nom, handler);
+            versionPresence++;
+            diffuserPresence(Trame.arrivee(nom));
+        } finally {
+            verrouPresence.unlock();
+        }
         System.out.println("Connecté : " + nom + " (Total: " + utilisateursConnectes.size() + ")");
 
         // On prévient les autres
-        diffuserMessage("SYSTÈME", nom + " vient de se connecter", nom);
+        diffuserAnnonce(nom + " vient de se connecter", nom);
 
-        // S'il y a des messages en attente, on les envoie
-        envoyerMessagesHorsLigne(nom);
+        // S'il y a des messages en attente, on les envoie (à côté)
+        planifierMessagesHorsLigne(nom);
 
         // Notifier l'interface graphique
         if (serverGUI != null) {
@@ -70,11 +165,21 @@ public class EchoServer {
 
     // Quand quelqu'un se déconnecte
     public static void retirerUtilisateur(String nom) {
-        utilisateursConnectes.remove(nom);
+        verrouPresence.lock();
+        try {
+            ClientHandler parti = utilisateursConnectes.remove(nom);
+            if (parti != null) {
+                abonnesPresence.remove(parti);
+            }
+            versionPresence++;
+            diffuserPresence(Trame.depart(nom));
+        } finally {
+            verrouPresence.unlock();
+        }
         System.out.println("Déconnecté : " + nom + " (Total: " + utilisateursConnectes.size() + ")");
 
         // On prévient les autres
-        diffuserMessage("SYSTÈME", nom + " s'est déconnecté", nom);
+        diffuserAnnonce(nom + " s'est déconnecté", nom);
 
         // Notifier l'interface graphique
         if (serverGUI != null) {
@@ -82,16 +187,72 @@ public class EchoServer {
         }
     }
 
+    // Abonne un client à la présence : il reçoit la liste des connectés une fois,
+    // puis seulement les arrivées et les départs
+    static void abonnerPresence(ClientHandler handler) {
+        while (true) {
+            // La liste est faite hors du verrou ; si quelqu'un est arrivé ou
+            // parti entre-temps, elle n'est plus bonne et on recommence
+            InstantaneConnectes courant = instantaneCourant();
+            verrouPresence.lock();
+            try {
+                if (courant.getVersion() == versionPresence) {
+                    abonnesPresence.add(handler);
+                    handler.envoyerTrame(courant.getPresence());
+                    return;
+                }
+            } finally {
+                verrouPresence.unlock();
+            }
+        }
+    }
+
+    // La liste des connectés à jour, refaite sans verrou par le premier qui en a
+    // besoin après un changement (et non à chaque arrivée ou départ)
+    private static InstantaneConnectes instantaneCourant() {
+        while (true) {
+            InstantaneConnectes courant = instantane.get();
+            // Lue avant les noms : la liste contient au moins ces changements
+            long version = versionPresence;
+            if (courant.getVersion() >= version) {
+                return courant;
+            }
+            InstantaneConnectes nouveau = InstantaneConnectes.de(version,
+                    utilisateursConnectes.keySet().toArray(new String[0]));
+            if (instantane.compareAndSet(courant, nouveau)) {
+                return nouveau;
+            }
+        }
+    }
+
+    // Appelé avec verrouPresence, seulement quand quelqu'un arrive ou part
+    private static void diffuserPresence(Trame trame) {
+        for (ClientHandler handler : abonnesPresence) {
+            handler.envoyerTrame(trame);
+        }
+    }
+
     // Envoie un message à tout le monde sauf à celui qui l'a envoyé
     public static void diffuserMessage(String expediteur, String message, String excluUtilisateur) {
-        String messageComplet = expediteur + " : " + message;
+        envoyerATous(expediteur, message, excluUtilisateur);
 
-        for (String nom : utilisateursConnectes.keySet()) {
-            if (!nom.equals(excluUtilisateur)) {
-                ClientHandler handler = utilisateursConnectes.get(nom);
-                if (handler != null) {
-                    handler.envoyerMessage(messageComplet);
-                }
+        // Part dans la file des écrivains, l'envoi n'a pas attendu le disque
+        MessageStorage.sauvegarderMessageGeneral(expediteur, message);
+    }
+
+    // Une annonce du serveur (arrivées, départs) : envoyée comme un message
+    // général mais pas sauvegardée, ce n'est pas la conversation
+    private static void diffuserAnnonce(String message, String excluUtilisateur) {
+        envoyerATous("SYSTÈME", message, excluUtilisateur);
+    }
+
+    private static void envoyerATous(String expediteur, String message, String excluUtilisateur) {
+        // Encodé une seule fois, les mêmes octets partent vers tout le monde
+        Trame trame = Trame.general(expediteur, message);
+
+        for (Map.Entry<String, ClientHandler> entree : utilisateursConnectes.entrySet()) {
+            if (!entree.getKey().equals(excluUtilisateur)) {
+                entree.getValue().envoyerTrame(trame);
             }
         }
 
@@ -103,322 +264,143 @@ public class EchoServer {
 
     // Envoie un message privé entre deux personnes
     public static void envoyerMessagePrive(String expediteur, String destinataire, String message) {
-        String messageComplet = "[PRIVÉ] " + expediteur + " → " + destinataire + " : " + message;
+        Trame trame = Trame.prive(expediteur, destinataire, message);
 
         ClientHandler handlerDestinataire = utilisateursConnectes.get(destinataire);
         ClientHandler handlerExpediteur = utilisateursConnectes.get(expediteur);
 
         if (handlerDestinataire != null) {
-            // La personne est connectée
-            handlerDestinataire.envoyerMessage(messageComplet);
+            // La personne est connectée : la même trame pour les deux
+            handlerDestinataire.envoyerTrame(trame);
             if (handlerExpediteur != null) {
-                handlerExpediteur.envoyerMessage(messageComplet);
+                handlerExpediteur.envoyerTrame(trame);
             }
         } else {
             // La personne est pas là, on stocke le message
-            stockerMessageHorsLigne(destinataire, messageComplet);
+            boolean stocke = stockerMessageHorsLigne(destinataire, trame.getTexte());
             if (handlerExpediteur != null) {
-                handlerExpediteur.envoyerMessage("Message stocké pour " + destinataire + " (hors ligne)");
+                handlerExpediteur.envoyerMessage(stocke
+                        ? "Message stocké pour " + destinataire + " (hors ligne)"
+                        : "Trop de messages en attente pour " + destinataire + ", message pas stocké");
             }
         }
 
+        MessageStorage.sauvegarderMessagePrive(expediteur, destinataire, message);
+
         // Notifier l'interface graphique du message privé
         if (serverGUI != null) {
             serverGUI.notifierMessagePrive(expediteur, destinataire, message);
         }
     }
 
-    // Stocke un message pour quelqu'un qui n'est pas connecté
-    private static void stockerMessageHorsLigne(String destinataire, String message) {
-        messagesHorsLigne.computeIfAbsent(destinataire, k -> new ArrayList<>()).add(message);
-        sauvegarderMessagesHorsLigne();
-    }
+    // Envoie un message à tous les membres connectés d'un groupe (l'expéditeur
+    // compris), false si l'expéditeur ne peut pas écrire dans ce groupe
+    public static boolean diffuserMessageGroupe(String nomGroupe, String expediteur, String message) {
+        GroupeChatManager.GroupeChat groupe = GroupeChatManager.obtenirGroupe(nomGroupe);
+        if (groupe == null || !groupe.isActif() || !groupe.estMembre(expediteur)) {
+            return false;
+        }
 
-    // Envoie les messages en attente quand quelqu'un se connecte
-    private static void envoyerMessagesHorsLigne(String nom) {
-        ArrayList<String> messages = messagesHorsLigne.get(nom);
-        if (messages != null && !messages.isEmpty()) {
-            ClientHandler handler = utilisateursConnectes.get(nom);
+        Trame trame = Trame.groupe(nomGroupe, expediteur, message);
+        for (String membre : groupe.getMembres()) {
+            ClientHandler handler = utilisateursConnectes.get(membre);
             if (handler != null) {
-                handler.envoyerMessage("=== " + messages.size() + " message(s) en attente ===");
-                for (String message : messages) {
-                    handler.envoyerMessage(message);
-                }
-                handler.envoyerMessage("=== Fin des messages ===");
-
-                // Une fois envoyés, on les supprime
-                messagesHorsLigne.remove(nom);
-                sauvegarderMessagesHorsLigne();
+                handler.envoyerTrame(trame);
             }
         }
+
+        // La sauvegarde reste gérée par le gestionnaire de groupes
+        GroupeChatManager.diffuserMessageGroupe(nomGroupe, expediteur, message, EchoServer.class);
+        return true;
     }
 
-    // Donne la liste des gens connectés
-    public static String obtenirListeUtilisateurs() {
-        if (utilisateursConnectes.isEmpty()) {
-            return "Personne n'est connecté pour le moment";
-        }
+    // Stocke un message pour quelqu'un qui n'est pas connecté (false si son
+    // quota est atteint)
+    static boolean stockerMessageHorsLigne(String destinataire, String message) {
+        return horsLigne.ajouter(destinataire, message);
+    }
 
-        StringBuilder liste = new StringBuilder("Utilisateurs connectés : ");
-        for (String nom : utilisateursConnectes.keySet()) {
-            liste.append(nom).append(", ");
-        }
-        return liste.substring(0, liste.length() - 2);
+    static void planifierMessagesHorsLigne(String nom) {
+        relectures.execute(() -> envoyerMessagesHorsLigne(nom));
     }
 
-    // Charge les messages depuis le fichier au démarrage
-    private static void chargerMessagesHorsLigne() {
+    // La relecture par lots d'un client, null en mode direct
+    static RelectureHorsLigne nouvelleRelecture(ClientHandler handler, String nom) {
+        return RELECTURE_ACQUITTEE ? new RelectureHorsLigne(handler, nom, horsLigne) : null;
+    }
+
+    // Envoie les messages en attente quand quelqu'un se connecte
+    static void envoyerMessagesHorsLigne(String nom) {
+        ClientHandler connecte = utilisateursConnectes.get(nom);
+        if (connecte == null) {
+            return;
+        }
+        if (connecte.getRelecture() != null) {
+            connecte.getRelecture().demarrer();
+            return;
+        }
+        // Une fois récupérés, ils sont supprimés du journal
+        List<String> messages;
         try {
-            if (Files.exists(Paths.get(MESSAGES_FILE))) {
-                for (String ligne : Files.readAllLines(Paths.get(MESSAGES_FILE))) {
-                    if (!ligne.trim().isEmpty()) {
-                        String[] parties = ligne.split("\\|", 2);
-                        if (parties.length == 2) {
-                            String destinataire = parties[0];
-                            String message = parties[1];
-                            messagesHorsLigne.computeIfAbsent(destinataire, k -> new ArrayList<>()).add(message);
-                        }
-                    }
-                }
-            }
+            messages = horsLigne.prendreTout(nom);
         } catch (IOException e) {
-            System.err.println("Problème pour charger les messages : " + e.getMessage());
+            // Rien n'a été retiré : ils repartiront à la prochaine connexion
+            System.err.println("Problème pour relire les messages hors ligne de " + nom + " : " + e.getMessage());
+            return;
+        }
+        if (messages.isEmpty()) {
+            return;
         }
-    }
 
-    // Sauvegarde les messages dans le fichier
-    private static void sauvegarderMessagesHorsLigne() {
-        try {
-            ArrayList<String> lignes = new ArrayList<>();
-            for (String destinataire : messagesHorsLigne.keySet()) {
-                for (String message : messagesHorsLigne.get(destinataire)) {
-                    lignes.add(destinataire + "|" + message);
-                }
+        ClientHandler handler = utilisateursConnectes.get(nom);
+        if (handler == null) {
+            // Parti entre-temps : on les remet de côté
+            for (String message : messages) {
+                horsLigne.ajouter(nom, message);
             }
-            Files.write(Paths.get(MESSAGES_FILE), lignes);
-        } catch (IOException e) {
-            System.err.println("Problème pour sauvegarder les messages : " + e.getMessage());
+            return;
         }
+        // Tous les messages en attente partent en une seule écriture
+        List<String> lignes = new ArrayList<>(messages.size() + 2);
+        lignes.add("=== " + messages.size() + " message(s) en attente ===");
+        lignes.addAll(messages);
+        lignes.add("=== Fin des messages ===");
+        handler.envoyerLignes(lignes);
     }
-}
 
-// Gère un client dans son propre thread
-class ClientHandler implements Runnable {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private String nomUtilisateur;
-
-    public ClientHandler(Socket socket) {
-        this.socket = socket;
+    // Tous les chiffres du stock hors ligne (nombre, destinataires, mémoire,
+    // disque, âge du plus vieux), sans relire aucun fichier
+    static StatistiquesHorsLigne statistiquesHorsLigne() {
+        return horsLigne.statistiques();
     }
 
-    @Override
-    public void run() {
-        try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // On demande le nom d'utilisateur
-            out.println("Entrez votre nom d'utilisateur :");
-            nomUtilisateur = in.readLine();
-
-            if (nomUtilisateur == null || nomUtilisateur.trim().isEmpty()) {
-                out.println("Nom pas valide. Connexion fermée.");
-                return;
-            }
-
-            // On vérifie si le nom est déjà pris
-            if (EchoServer.utilisateursConnectes.containsKey(nomUtilisateur)) {
-                out.println("Ce nom d'utilisateur est déjà pris. Connexion refusée.");
-                return;
-            }
-
-            // On ajoute l'utilisateur et on lui montre les commandes
-            EchoServer.ajouterUtilisateur(nomUtilisateur, this);
-            out.println("Bienvenue " + nomUtilisateur + " !");
-            out.println("Commandes disponibles :");
-            out.println("- /list : voir qui est connecté");
-            out.println("- /msg <utilisateur> <message> : envoyer un message privé");
-            out.println("- /bye : quitter le chat");
-            out.println("COMMANDES GROUPES :");
-            out.println("- /groupe-creer <nom> <description> : créer un groupe");
-            out.println("- /groupe-liste : voir tous les groupes");
-            out.println("- /groupe-membres <nom> : voir les membres d'un groupe");
-            out.println("- /groupe-ajouter <nom> <utilisateur> : ajouter un utilisateur au groupe");
-            out.println("- /groupe-supprimer <nom> <utilisateur> : supprimer un utilisateur du groupe");
-            out.println("- /groupe-msg <nom> <message> : envoyer un message au groupe");
-            out.println("- /mes-groupes : voir mes groupes");
-            out.println("Tapez simplement votre message pour l'envoyer à tout le monde.");
-
-            // On écoute les messages
-            String message;
-            while ((message = in.readLine()) != null) {
-                traiterMessage(message);
-            }
-
-        } catch (IOException e) {
-            System.out.println("Problème avec le client " + nomUtilisateur + " : " + e.getMessage());
-        } finally {
-            if (nomUtilisateur != null) {
-                EchoServer.retirerUtilisateur(nomUtilisateur);
-            }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                System.err.println("Problème pour fermer la connexion : " + e.getMessage());
-            }
+    // Nombre de messages en attente d'écriture pour chaque client connecté
+    public static Map<String, Integer> obtenirProfondeursFiles() {
+        Map<String, Integer> profondeurs = new HashMap<>();
+        for (Map.Entry<String, ClientHandler> entree : utilisateursConnectes.entrySet()) {
+            profondeurs.put(entree.getKey(), entree.getValue().getProfondeurFile());
         }
+        return profondeurs;
     }
 
-    // Traite un message reçu
-    private void traiterMessage(String message) {
-        if (message.startsWith("/")) {
-            traiterCommande(message);
-        } else {
-            EchoServer.diffuserMessage(nomUtilisateur, message, nomUtilisateur);
+    // Messages jetés parce que la file de sortie d'un client était pleine, pour
+    // les clients encore connectés
+    static long messagesJetes() {
+        long jetes = 0;
+        for (ClientHandler handler : utilisateursConnectes.values()) {
+            jetes += handler.getMessagesPerdus();
         }
+        return jetes;
     }
 
-    // Traite les commandes spéciales
-    private void traiterCommande(String commande) {
-        String[] parties = commande.split(" ", 4);
-
-        switch (parties[0].toLowerCase()) {
-            case "/list":
-                out.println(EchoServer.obtenirListeUtilisateurs());
-                break;
-
-            case "/msg":
-                if (parties.length >= 3) {
-                    String destinataire = parties[1];
-                    String message = parties[2];
-                    EchoServer.envoyerMessagePrive(nomUtilisateur, destinataire, message);
-                } else {
-                    out.println("Usage : /msg <utilisateur> <message>");
-                }
-                break;
-
-            case "/bye":
-                out.println("Au revoir " + nomUtilisateur + " !");
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    System.err.println("Problème pour fermer la connexion : " + e.getMessage());
-                }
-                break;
-
-            // Commandes pour les groupes
-            case "/groupe-creer":
-                if (parties.length >= 3) {
-                    String nomGroupe = parties[1];
-                    String description = parties.length >= 4 ? parties[2] + " " + parties[3] : parties[2];
-                    boolean succes = GroupeChatManager.creerGroupe(nomGroupe, nomUtilisateur, description);
-                    if (succes) {
-                        out.println("Groupe '" + nomGroupe
-                                + "' créé avec succès ! Vous êtes maintenant le créateur et modérateur.");
-                    } else {
-                        out.println("Erreur : Un groupe avec ce nom existe déjà.");
-                    }
-                } else {
-                    out.println("Usage : /groupe-creer <nom> <description>");
-                }
-                break;
-
-            case "/groupe-liste":
-                if (GroupeChatManager.obtenirTousGroupes().isEmpty()) {
-                    out.println("Aucun groupe n'a été créé pour le moment.");
-                } else {
-                    out.println("=== LISTE DES GROUPES ===");
-                    for (String nomGroupe : GroupeChatManager.obtenirTousGroupes().keySet()) {
-                        GroupeChatManager.GroupeChat groupe = GroupeChatManager.obtenirGroupe(nomGroupe);
-                        out.println("- " + nomGroupe + " (" + groupe.getMembres().size() + " membres) - "
-                                + groupe.getDescription());
-                    }
-                }
-                break;
-
-            case "/groupe-membres":
-                if (parties.length >= 2) {
-                    String nomGroupe = parties[1];
-                    GroupeChatManager.GroupeChat groupe = GroupeChatManager.obtenirGroupe(nomGroupe);
-                    if (groupe == null) {
-                        out.println("Le groupe '" + nomGroupe + "' n'existe pas.");
-                    } else {
-                        out.println("=== MEMBRES DU GROUPE '" + nomGroupe + "' ===");
-                        out.println("Créateur : " + groupe.getCreateur());
-                        out.println("Modérateurs : " + String.join(", ", groupe.getModerateurs()));
-                        out.println("Membres : " + String.join(", ", groupe.getMembres()));
-                        out.println("Total : " + groupe.getMembres().size() + " membres");
-                    }
-                } else {
-                    out.println("Usage : /groupe-membres <nom>");
-                }
-                break;
-
-            case "/groupe-ajouter":
-                if (parties.length >= 3) {
-                    String nomGroupe = parties[1];
-                    String utilisateur = parties[2];
-                    String resultat = GroupeChatManager.ajouterUtilisateurAuGroupe(nomGroupe, utilisateur,
-                            nomUtilisateur);
-                    out.println(resultat);
-                } else {
-                    out.println("Usage : /groupe-ajouter <nom> <utilisateur>");
-                }
-                break;
-
-            case "/groupe-supprimer":
-                if (parties.length >= 3) {
-                    String nomGroupe = parties[1];
-                    String utilisateur = parties[2];
-                    String resultat = GroupeChatManager.supprimerUtilisateurDuGroupe(nomGroupe, utilisateur,
-                            nomUtilisateur);
-                    out.println(resultat);
-                } else {
-                    out.println("Usage : /groupe-supprimer <nom> <utilisateur>");
-                }
-                break;
-
-            case "/groupe-msg":
-                if (parties.length >= 3) {
-                    String nomGroupe = parties[1];
-                    String message = parties[2];
-                    if (parties.length >= 4) {
-                        message += " " + parties[3];
-                    }
-                    GroupeChatManager.diffuserMessageGroupe(nomGroupe, nomUtilisateur, message, EchoServer.class);
-                } else {
-                    out.println("Usage : /groupe-msg <nom> <message>");
-                }
-                break;
-
-            case "/mes-groupes":
-                java.util.List<String> mesGroupes = GroupeChatManager.obtenirGroupesUtilisateur(nomUtilisateur);
-                if (mesGroupes.isEmpty()) {
-                    out.println("Vous n'êtes membre d'aucun groupe.");
-                } else {
-                    out.println("=== VOS GROUPES ===");
-                    for (String nomGroupe : mesGroupes) {
-                        GroupeChatManager.GroupeChat groupe = GroupeChatManager.obtenirGroupe(nomGroupe);
-                        if (groupe != null) {
-                            String role = groupe.estModerateur(nomUtilisateur) ? "(Modérateur)" : "(Membre)";
-                            out.println("- " + nomGroupe + " " + role + " - " + groupe.getDescription());
-                        }
-                    }
-                }
-                break;
-
-            default:
-                out.println("Commande inconnue : " + parties[0]);
-                break;
-        }
+    // Donne la liste des gens connectés
+    public static String obtenirListeUtilisateurs() {
+        return obtenirTrameUtilisateurs().getTexte();
     }
 
-    // Envoie un message à ce client
-    public void envoyerMessage(String message) {
-        if (out != null) {
-            out.println(message);
-        }
+    // La même liste, avec les noms séparés pour le protocole binaire
+    // Refaite au plus une fois par changement, pas à chaque /list
+    static Trame obtenirTrameUtilisateurs() {
+        return instantaneCourant().getListe();
     }
 }
@@ -0,0 +1,168 @@
+package com.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * File bornée de ce qui doit partir vers un client
+ * Plusieurs threads déposent, un seul écrivain (thread dédié ou boucle NIO)
+ * vide la file
+ */
+class FileSortante<E> {
+    // Capacité par défaut, réglable avec -Dchat.sortie.capacite=N
+    static final int CAPACITE_DEFAUT = Integer.getInteger("chat.sortie.capacite", 1024);
+
+    private final int capacite;
+    private final boolean supprimerPlusAncien;
+    // Ce qu'on a le droit de jeter pour faire de la place
+    private final Predicate<? super E> jetable;
+    private final ArrayDeque<E> elements = new ArrayDeque<>();
+    private final ReentrantLock verrou = new ReentrantLock();
+    private final Condition nonVide = verrou.newCondition();
+    private boolean fermee = false;
+    private long supprimes = 0;
+
+    FileSortante(int capacite, PolitiqueDebordement politique, Predicate<? super E> jetable) {
+        this.capacite = capacite;
+        this.supprimerPlusAncien = politique == PolitiqueDebordement.SUPPRIMER_PLUS_ANCIEN;
+        this.jetable = jetable;
+    }
+
+    /**
+     * Ajoute un élément, false si la file est pleine (ou fermée) et que la
+     * politique ne permet pas de faire de la place
+     * Pour faire de la place on jette le plus ancien élément jetable : ceux qui
+     * ne le sont pas (un lot de relecture qui attend son accusé, la bascule en
+     * binaire...) restent, et s'il n'y a que ça la file est pleine
+     */
+    boolean deposer(E element) {
+        verrou.lock();
+        try {
+            if (fermee) {
+                return false;
+            }
+            if (elements.size() >= capacite && !(supprimerPlusAncien && jeterPlusAncien())) {
+                return false;
+            }
+            elements.addLast(element);
+            nonVide.signal();
+            return true;
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    // Avec le verrou
+    private boolean jeterPlusAncien() {
+        Iterator<E> it = elements.iterator();
+        while (it.hasNext()) {
+            if (jetable.test(it.next())) {
+                it.remove();
+                supprimes++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Attend le prochain élément, null quand la file est fermée et vide
+     */
+    E prendre() throws InterruptedException {
+        verrou.lock();
+        try {
+            while (elements.isEmpty() && !fermee) {
+                nonVide.await();
+            }
+            return elements.pollFirst();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    /**
+     * Attend au plus le délai qu'un élément arrive (sans le prendre), true s'il
+     * y en a un
+     */
+    boolean attendre(long delai, TimeUnit unite) throws InterruptedException {
+        long restant = unite.toNanos(delai);
+        verrou.lock();
+        try {
+            while (elements.isEmpty() && !fermee && restant > 0) {
+                restant = nonVide.awaitNanos(restant);
+            }
+            return !elements.isEmpty();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+
+    /**
+     * Transfère tout le contenu de la file dans la collection
+     */
+    void drainerVers(Collection<? super E> destination) {
+        verrou.lock();
+        try {
+            destination.addAll(elements);
+            elements.clear();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    /**
+     * Plus rien n'est accepté, l'écrivain finit ce qui reste puis s'arrête
+     */
+    void fermer() {
+        verrou.lock();
+        try {
+            fermee = true;
+            nonVide.signalAll();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    /**
+     * Ferme la file et jette ce qui n'est pas encore parti
+     */
+    void vider() {
+        verrou.lock();
+        try {
+            fermee = true;
+            elements.clear();
+            nonVide.signalAll();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    int taille() {
+        verrou.lock();
+        try {
+            return elements.size();
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    boolean estVide() {
+        return taille() == 0;
+    }
+
+    // Nombre d'éléments jetés parce que la file était pleine
+    long getSupprimes() {
+        verrou.lock();
+        try {
+            return supprimes;
+        } finally {
+            verrou.unlock();
+        }
+    }
+}
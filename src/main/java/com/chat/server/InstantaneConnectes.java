@@ -0,0 +1,49 @@
+package com.chat.server;
+
+/**
+ * La liste des connectés telle qu'elle était à un moment donné, déjà prête à
+ * envoyer (texte et binaire encodés d'avance)
+ * Immuable : après une connexion ou une déconnexion, elle est refaite par le
+ * premier qui en a besoin (voir EchoServer.instantaneCourant), et /list ne fait
+ * plus qu'envoyer les octets de la version en cours
+ */
+final class InstantaneConnectes {
+    static final InstantaneConnectes VIDE = new InstantaneConnectes(0, new String[0]);
+
+    // Le nombre de changements déjà compris dans la liste, pour savoir si elle
+    // est encore bonne
+    private final long version;
+    // Réponse à /list
+    private final Trame liste;
+    // Premier message envoyé à un abonné de /presence
+    private final Trame presence;
+
+    private InstantaneConnectes(long version, String[] noms) {
+        this.version = version;
+        this.liste = noms.length == 0
+                ? Trame.utilisateurs("Personne n'est connecté pour le moment", noms)
+                : Trame.utilisateurs("Utilisateurs connectés : " + String.join(", ", noms), noms);
+        this.presence = Trame.presence(noms);
+        // On paie l'encodage ici, une fois par changement, plutôt qu'au premier /list
+        liste.octets(false);
+        liste.octets(true);
+        presence.octets(false);
+        presence.octets(true);
+    }
+
+    static InstantaneConnectes de(long version, String[] noms) {
+        return new InstantaneConnectes(version, noms);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    Trame getListe() {
+        return liste;
+    }
+
+    Trame getPresence() {
+        return presence;
+    }
+}
@@ -0,0 +1,77 @@
+package com.chat.server;
+
+import java.util.EnumMap;
+
+/**
+ * Limite ce qu'un utilisateur peut envoyer : un seau pour tout ce qu'il
+ * envoie, et un seau par type de commande
+ * Réglable avec -Dchat.debit.<nom>=<par seconde>,<rafale> (par exemple
+ * -Dchat.debit.diffusion=5,10), un débit de 0 enlève la limite
+ */
+class LimiteurDebit {
+    enum Categorie {
+        DIFFUSION("diffusion", 5, 10), // messages à tout le monde
+        PRIVE("prive", 10, 20), // /msg
+        GROUPE("groupe", 5, 10), // /groupe-msg
+        LISTE("liste", 2, 10); // /list, /groupe-liste... (parcourent tout)
+
+        private final double parSeconde;
+        private final double rafale;
+
+        Categorie(String nom, double parSeconde, double rafale) {
+            double[] reglage = lireReglage("chat.debit." + nom, parSeconde, rafale);
+            this.parSeconde = reglage[0];
+            this.rafale = reglage[1];
+        }
+    }
+
+    private static final double[] TOTAL = lireReglage("chat.debit.total", 20, 40);
+
+    private final SeauJetons total;
+    private final EnumMap<Categorie, SeauJetons> seaux = new EnumMap<>(Categorie.class);
+
+    LimiteurDebit() {
+        total = TOTAL[0] > 0 ? new SeauJetons(TOTAL[0], TOTAL[1]) : null;
+        for (Categorie categorie : Categorie.values()) {
+            if (categorie.parSeconde > 0) {
+                seaux.put(categorie, new SeauJetons(categorie.parSeconde, categorie.rafale));
+            }
+        }
+    }
+
+    /**
+     * 0 si le message peut passer (les jetons sont pris), sinon le temps en
+     * nanosecondes avant de pouvoir réessayer (rien n'est pris)
+     * categorie peut être null : seul le seau général compte
+     */
+    long attente(Categorie categorie) {
+        long maintenant = System.nanoTime();
+        SeauJetons seau = categorie == null ? null : seaux.get(categorie);
+        long attente = Math.max(total == null ? 0 : total.manque(maintenant),
+                seau == null ? 0 : seau.manque(maintenant));
+        if (attente > 0) {
+            return attente;
+        }
+        if (total != null) {
+            total.consommer();
+        }
+        if (seau != null) {
+            seau.consommer();
+        }
+        return 0;
+    }
+
+    private static double[] lireReglage(String propriete, double parSeconde, double rafale) {
+        String valeur = System.getProperty(propriete);
+        if (valeur != null) {
+            try {
+                String[] parties = valeur.split(",");
+                parSeconde = Double.parseDouble(parties[0].trim());
+                rafale = parties.length > 1 ? Double.parseDouble(parties[1].trim()) : Math.max(1, parSeconde);
+            } catch (NumberFormatException e) {
+                System.err.println("Réglage " + propriete + " pas valide : " + valeur);
+            }
+        }
+        return new double[] { parSeconde, Math.max(1, rafale) };
+    }
+}
@@ -0,0 +1,27 @@
+package com.chat.server;
+
+/**
+ * Ce qu'on fait quand la file de sortie d'un client est pleine (client trop
+ * lent à lire ce qu'on lui envoie)
+ */
+enum PolitiqueDebordement {
+    SUPPRIMER_PLUS_ANCIEN, // on jette le plus vieux message de chat en attente (jamais une réponse ou un lot)
+    DECONNECTER, // on coupe le client
+    STOCKER_HORS_LIGNE; // on met le message de côté comme pour un client déconnecté
+
+    /**
+     * Réglable avec -Dchat.sortie.politique=..., par défaut on jette le plus
+     * ancien
+     */
+    static PolitiqueDebordement configuree() {
+        String valeur = System.getProperty("chat.sortie.politique");
+        if (valeur != null) {
+            for (PolitiqueDebordement politique : values()) {
+                if (politique.name().equalsIgnoreCase(valeur.trim())) {
+                    return politique;
+                }
+            }
+        }
+        return SUPPRIMER_PLUS_ANCIEN;
+    }
+}
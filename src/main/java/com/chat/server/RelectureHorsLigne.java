@@ -0,0 +1,121 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Relecture des messages hors ligne d'un client par lots, avec accusés de
+ * réception (mode -Dchat.horsligne.relecture=acquittee)
+ * Chaque lot se termine par "[ACK] <numéro>" et le client répond
+ * "/ack <numéro>" : c'est seulement là que les messages du lot sont supprimés
+ * et que le lot suivant part. Si la connexion tombe au milieu, ce qui n'a pas
+ * été acquitté reste dans le stock et repart à la prochaine connexion
+ * Un seul lot en route à la fois, un gros arriéré ne remplit pas la file de
+ * sortie d'un coup
+ */
+class RelectureHorsLigne {
+    static final String MARQUE_ACQUITTEMENT = "[ACK] ";
+    // Nombre de messages par lot, réglable avec -Dchat.horsligne.lot=N
+    private static final int TAILLE_LOT = Math.max(1, Integer.getInteger("chat.horsligne.lot", 100));
+
+    private final ClientHandler handler;
+    private final String destinataire;
+    private final StockHorsLigne stock;
+    // La relecture est pilotée à la fois par le thread de relecture et par les
+    // accusés qui arrivent sur le thread du client
+    private final ReentrantLock verrou = new ReentrantLock();
+
+    // Les messages de la relecture en cours (null s'il n'y en a pas) et où on en est
+    private List<StockHorsLigne.Noeud> messages;
+    private int position;
+    // Le lot envoyé qui attend son accusé
+    private List<StockHorsLigne.Noeud> enAttenteAccuse;
+
+    RelectureHorsLigne(ClientHandler handler, String destinataire, StockHorsLigne stock) {
+        this.handler = handler;
+        this.destinataire = destinataire;
+        this.stock = stock;
+    }
+
+    // Lance une relecture s'il n'y en a pas déjà une (celle en cours reprendra
+    // les nouveaux messages à la fin)
+    void demarrer() {
+        verrou.lock();
+        try {
+            if (messages == null) {
+                commencer();
+            }
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    // Le client a bien reçu le lot qui se termine par ce numéro
+    void acquitter(long numero) {
+        verrou.lock();
+        try {
+            if (enAttenteAccuse == null || dernierNumero(enAttenteAccuse) != numero) {
+                // Accusé en double ou d'une relecture abandonnée : rien à faire
+                return;
+            }
+            stock.acquitter(destinataire, enAttenteAccuse);
+            enAttenteAccuse = null;
+            if (position < messages.size()) {
+                envoyerLot(null);
+            } else {
+                messages = null;
+                handler.envoyerMessage("=== Fin des messages ===");
+                // Des messages ont pu arriver pendant la relecture
+                commencer();
+            }
+        } finally {
+            verrou.unlock();
+        }
+    }
+
+    private void commencer() {
+        List<StockHorsLigne.Noeud> enAttente;
+        try {
+            enAttente = stock.nonAcquittes(destinataire);
+        } catch (IOException e) {
+            // Rien n'a été retiré : ils repartiront à la prochaine connexion
+            System.err.println("Problème pour relire les messages hors ligne de " + destinataire + " : "
+                    + e.getMessage());
+            return;
+        }
+        if (enAttente.isEmpty()) {
+            return;
+        }
+        messages = enAttente;
+        position = 0;
+        envoyerLot("=== " + enAttente.size() + " message(s) en attente ===");
+    }
+
+    private void envoyerLot(String entete) {
+        int fin = Math.min(messages.size(), position + TAILLE_LOT);
+        List<StockHorsLigne.Noeud> lot = messages.subList(position, fin);
+        List<String> lignes = new ArrayList<>(lot.size() + 2);
+        if (entete != null) {
+            lignes.add(entete);
+        }
+        for (StockHorsLigne.Noeud noeud : lot) {
+            lignes.add(noeud.message);
+        }
+        lignes.add(MARQUE_ACQUITTEMENT + dernierNumero(lot));
+
+        if (!handler.envoyerRelecture(Trame.lot(lignes))) {
+            // File pleine ou connexion fermée : rien n'est perdu, le lot reste
+            // dans le stock et la relecture sera relancée
+            messages = null;
+            return;
+        }
+        position = fin;
+        enAttenteAccuse = lot;
+    }
+
+    private static long dernierNumero(List<StockHorsLigne.Noeud> lot) {
+        return lot.get(lot.size() - 1).numero;
+    }
+}
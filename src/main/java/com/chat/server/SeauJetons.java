@@ -0,0 +1,50 @@
+package com.chat.server;
+
+/**
+ * Un seau de jetons : il se remplit à vitesse constante jusqu'à sa capacité,
+ * chaque message en consomme un
+ * Pas de verrou : un seau n'est utilisé que par le thread qui lit la
+ * connexion (thread du client ou boucle NIO)
+ */
+class SeauJetons {
+    private final double capacite;
+    private final double jetonsParNano;
+    private double jetons;
+    private long derniereMaj;
+
+    SeauJetons(double jetonsParSeconde, double capacite) {
+        this(jetonsParSeconde, capacite, System.nanoTime());
+    }
+
+    // Plein à la date donnée (System.nanoTime)
+    SeauJetons(double jetonsParSeconde, double capacite, long maintenant) {
+        this.capacite = capacite;
+        this.jetonsParNano = jetonsParSeconde / 1_000_000_000.0;
+        this.jetons = capacite;
+        this.derniereMaj = maintenant;
+    }
+
+    /**
+     * 0 s'il y a un jeton disponible, sinon le temps (en nanosecondes) avant
+     * qu'il y en ait un
+     */
+    long manque(long maintenant) {
+        remplir(maintenant);
+        if (jetons >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - jetons) / jetonsParNano);
+    }
+
+    void consommer() {
+        jetons -= 1;
+    }
+
+    private void remplir(long maintenant) {
+        long ecoule = maintenant - derniereMaj;
+        if (ecoule > 0) {
+            jetons = Math.min(capacite, jetons + ecoule * jetonsParNano);
+            derniereMaj = maintenant;
+        }
+    }
+}
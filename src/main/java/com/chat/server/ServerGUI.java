@@ -1,6 +1,7 @@
 package com.chat.server;
 
 import com.chat.model.MessageStorage;
+import com.chat.model.StatistiquesHistorique;
 import com.chat.model.Utilisateur;
 
 import javax.swing.*;
@@ -12,8 +13,10 @@ import java.awt.event.ActionListener;
 import java.io.*;
 import java.net.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.ArrayList;
-import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -45,12 +48,20 @@ public class ServerGUI extends JFrame {
   private Thread serverThread;
   private boolean isRunning = false;
   private static final int PORT = 1234; // Port par défaut, pourrait être configurable
-  private static final String MESSAGES_FILE = "data/messages_offline.txt";
 
-  // Stockage des données - on utilise maintenant celles d'EchoServer
-  private static ConcurrentHashMap<String, ArrayList<String>> messagesHorsLigne = new ConcurrentHashMap<>();
+  // Un panneau par client affiché (les données restent dans EchoServer)
   private ConcurrentHashMap<String, JPanel> panelsClients = new ConcurrentHashMap<>();
 
+  // Les statistiques sont calculées sur ce thread, jamais sur celui de Swing :
+  // parcourir les connexions et les écrivains ne doit pas figer l'interface
+  private final ScheduledExecutorService calculStats = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "chat-stats");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // Un seul calcul en attente à la fois, même si les connexions s'enchaînent
+  private final AtomicBoolean statsDemandees = new AtomicBoolean(false);
+
   public static void main(String[] args) {
     SwingUtilities.invokeLater(() -> {
       // Essaye d'utiliser Nimbus si possible, sinon on garde le look par défaut
@@ -74,14 +85,16 @@ public class ServerGUI extends JFrame {
     setSize(1200, 800);
     setLocationRelativeTo(null);
 
-    // Initialisation des données au démarrage
-    chargerMessagesHorsLigne();
     initializeUI();
     setVisible(true);
 
     // Associer cette interface avec EchoServer
     EchoServer.setServerGUI(this);
 
+    // Les messages hors ligne changent aussi sans connexion ni déconnexion : on
+    // relit les compteurs du serveur régulièrement (quelques lectures, rien de plus)
+    calculStats.scheduleWithFixedDelay(this::mettreAJourStats, 2, 2, TimeUnit.SECONDS);
+
     // On démarre automatiquement le serveur après l'initialisation
     SwingUtilities.invokeLater(() -> {
       ajouterLog("Interface graphique prête");
@@ -176,7 +189,7 @@ public class ServerGUI extends JFrame {
     scrollPane.setBorder(null);
 
     // Message quand aucun client n'est connecté
-    if (messagesHorsLigne.isEmpty()) {
+    if (EchoServer.utilisateursConnectes.isEmpty()) {
       noClientsLabel = new JLabel("Aucun client connecté");
       noClientsLabel.setFont(new Font("Segoe UI", Font.ITALIC, 14));
       noClientsLabel.setForeground(Color.GRAY);
@@ -329,31 +342,73 @@ public class ServerGUI extends JFrame {
     logArea.setCaretPosition(logArea.getDocument().getLength());
   }
 
-  // Met à jour les statistiques affichées en bas
+  // Peut être appelée de n'importe quel thread : le calcul part sur calculStats
+  private void demanderStats() {
+    if (statsDemandees.compareAndSet(false, true)) {
+      calculStats.execute(() -> {
+        statsDemandees.set(false);
+        mettreAJourStats();
+      });
+    }
+  }
+
+  // Met à jour les statistiques affichées en bas (sur calculStats)
   private void mettreAJourStats() {
+    String texte;
+    try {
+      texte = calculerStats();
+    } catch (RuntimeException e) {
+      // Une exception arrêterait la mise à jour régulière
+      System.err.println("Problème pour calculer les statistiques : " + e.getMessage());
+      return;
+    }
+    SwingUtilities.invokeLater(() -> statsLabel.setText(texte));
+  }
+
+  private String calculerStats() {
     int nbClients = EchoServer.utilisateursConnectes.size();
-    int nbMessages = messagesHorsLigne.values().stream().mapToInt(ArrayList::size).sum();
-    statsLabel.setText("Port: " + PORT + " | Clients: " + nbClients + " | Messages en attente: " + nbMessages);
+    StatistiquesHorsLigne horsLigne = EchoServer.statistiquesHorsLigne();
+    // La file de sortie la plus remplie montre s'il y a un client qui n'arrive pas à suivre
+    int fileMax = EchoServer.obtenirProfondeursFiles().values().stream().mapToInt(Integer::intValue).max().orElse(0);
+    String texte = "Port: " + PORT + " | Clients: " + nbClients + " | Messages en attente: " + horsLigne.getMessages();
+    if (horsLigne.getMessages() > 0) {
+      texte += " pour " + horsLigne.getDestinataires() + " (" + horsLigne.getOctetsEnMemoire() / 1024
+          + " Ko en mémoire, " + horsLigne.getSurDisque() + " sur disque, le plus vieux depuis "
+          + formaterDuree(horsLigne.getAgeMaxMs()) + ")";
+    }
+    // Si le retard grimpe, le disque n'arrive plus à suivre les messages
+    StatistiquesHistorique historique = MessageStorage.statistiquesHistorique();
+    texte += " | File de sortie max: " + fileMax;
+    long jetes = EchoServer.messagesJetes();
+    if (jetes > 0) {
+      texte += " (" + jetes + " messages jetés)";
+    }
+    texte += " | Historique: " + historique.getEnAttente()
+        + " à écrire (retard " + historique.getRetardMs() + " ms)";
+    if (historique.getPerdus() > 0) {
+      texte += ", " + historique.getPerdus() + " pas sauvegardés";
+    }
+    if (historique.getSegmentsCompresses() > 0) {
+      texte += " | Archives: " + historique.getSegmentsCompresses() + " segments, "
+          + historique.getOctetsEconomises() / 1024 + " Ko gagnés (" + historique.getOctetsOriginaux() / 1024
+          + " → " + historique.getOctetsCompresses() / 1024 + " Ko), " + historique.getLecturesEnCache() + "/"
+          + historique.getLecturesArchives() + " lectures en cache";
+    }
+    return texte;
   }
 
-  // Charge les messages hors ligne depuis le fichier
-  private void chargerMessagesHorsLigne() {
-    try {
-      if (Files.exists(Paths.get(MESSAGES_FILE))) {
-        for (String ligne : Files.readAllLines(Paths.get(MESSAGES_FILE))) {
-          if (!ligne.trim().isEmpty()) {
-            String[] parties = ligne.split("\\|", 2);
-            if (parties.length == 2) {
-              String destinataire = parties[0];
-              String message = parties[1];
-              messagesHorsLigne.computeIfAbsent(destinataire, k -> new ArrayList<>()).add(message);
-            }
-          }
-        }
-      }
-    } catch (IOException e) {
-      ajouterLog("Erreur lors du chargement des messages : " + e.getMessage());
+  private static String formaterDuree(long ms) {
+    long secondes = ms / 1000;
+    if (secondes < 60) {
+      return secondes + " s";
+    }
+    if (secondes < 3600) {
+      return secondes / 60 + " min";
+    }
+    if (secondes < 86400) {
+      return secondes / 3600 + " h";
     }
+    return secondes / 86400 + " j";
   }
 
   // Méthodes de notification appelées par EchoServer
@@ -361,7 +416,7 @@ public class ServerGUI extends JFrame {
     SwingUtilities.invokeLater(() -> {
       ajouterClientAListe(nom);
       ajouterLog("Client connecté : " + nom);
-      mettreAJourStats();
+      demanderStats();
     });
   }
 
@@ -369,7 +424,7 @@ public class ServerGUI extends JFrame {
     SwingUtilities.invokeLater(() -> {
       retirerClientDeListe(nom);
       ajouterLog("Client déconnecté : " + nom);
-      mettreAJourStats();
+      demanderStats();
     });
   }
 
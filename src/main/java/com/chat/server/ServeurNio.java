@@ -0,0 +1,234 @@
+package com.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Moteur de serveur non bloquant
+ * Au lieu d'un thread par client, quelques boucles (une par coeur) gèrent
+ * toutes les connexions avec un Selector chacune
+ * Le protocole reste celui de ClientHandler, ligne par ligne
+ * Les commandes qui lisent ou écrivent des fichiers (voir
+ * ClientHandler.estBloquante) ne tournent pas sur la boucle mais sur quelques
+ * threads à part (-Dchat.nio.commandes, 4 par défaut) : un disque lent ne gèle
+ * pas toutes les connexions de la boucle
+ */
+class ServeurNio {
+    private static final int TAILLE_TAMPON_LECTURE = 16 * 1024;
+    private static final int FILE_ATTENTE_CONNEXIONS = 1024;
+    private static final ExecutorService COMMANDES = Executors.newFixedThreadPool(
+            Math.max(1, Integer.getInteger("chat.nio.commandes", 4)), r -> {
+        Thread thread = new Thread(r, "chat-commande");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int port;
+    private final Boucle[] boucles;
+
+    ServeurNio(int port, int nbBoucles) {
+        this.port = port;
+        this.boucles = new Boucle[Math.max(1, nbBoucles)];
+    }
+
+    /**
+     * Démarre les boucles puis accepte les connexions sur le thread appelant
+     * (comme la version avec un thread par client, ça ne rend pas la main)
+     */
+    void demarrer() throws IOException {
+        for (int i = 0; i < boucles.length; i++) {
+            boucles[i] = new Boucle();
+            Thread thread = new Thread(boucles[i], "chat-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serveur = ServerSocketChannel.open()) {
+            serveur.bind(new InetSocketAddress(port), FILE_ATTENTE_CONNEXIONS);
+            System.out.println("Serveur NIO démarré sur le port " + port + " (" + boucles.length + " boucles)");
+            System.out.println("J'attends des connexions...");
+
+            int prochaine = 0;
+            while (true) {
+                SocketChannel canal = serveur.accept();
+                canal.configureBlocking(false);
+                canal.socket().setTcpNoDelay(true);
+
+                // On répartit les connexions à tour de rôle entre les boucles
+                boucles[prochaine].ajouter(canal);
+                prochaine = (prochaine + 1) % boucles.length;
+            }
+        }
+    }
+
+    /**
+     * Une boucle d'événements : un Selector et son thread
+     */
+    static class Boucle implements Runnable {
+        private final Selector selector;
+        // Un seul tampon de lecture par boucle, pas par connexion
+        private final ByteBuffer tamponLecture = ByteBuffer.allocate(TAILLE_TAMPON_LECTURE);
+        private final ConcurrentLinkedQueue<SocketChannel> nouvelles = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<ConnexionNio> ecritures = new ConcurrentLinkedQueue<>();
+        // Connexions dont la commande bloquante vient de finir
+        private final ConcurrentLinkedQueue<ConnexionNio> finsCommandes = new ConcurrentLinkedQueue<>();
+        private final PolitiqueDebordement politique = PolitiqueDebordement.configuree();
+        // Connexions en pause à cause de la limite de débit, la plus proche en
+        // premier (seulement utilisé par le thread de la boucle)
+        private final PriorityQueue<Reprise> reprises = new PriorityQueue<>();
+        private volatile Thread thread;
+
+        Boucle() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void ajouter(SocketChannel canal) {
+            nouvelles.add(canal);
+            selector.wakeup();
+        }
+
+        void demanderEcriture(ConnexionNio connexion) {
+            ecritures.add(connexion);
+            // Pas besoin de réveiller le selector si on est déjà dans la boucle
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        // La commande tourne à côté, la connexion ne lit plus rien d'ici là : ce
+        // qu'elle envoie ensuite est traité après, dans l'ordre
+        void executerAPart(ConnexionNio connexion, Runnable commande) {
+            COMMANDES.execute(() -> {
+                try {
+                    commande.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Problème avec une commande NIO : " + e.getMessage());
+                } finally {
+                    finsCommandes.add(connexion);
+                    selector.wakeup();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    if (reprises.isEmpty()) {
+                        selector.select();
+                    } else {
+                        long delai = reprises.peek().date - System.nanoTime();
+                        // select(0) attendrait pour toujours
+                        selector.select(Math.max(1, (delai + 999_999) / 1_000_000));
+                    }
+                    enregistrerNouvelles();
+                    traiterReprises();
+                    traiterFinsCommandes();
+                    traiterEcritures();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey cle = it.next();
+                        it.remove();
+                        ConnexionNio connexion = (ConnexionNio) cle.attachment();
+
+                        try {
+                            if (cle.isValid() && cle.isReadable()) {
+                                connexion.lire(tamponLecture);
+                            }
+                            if (cle.isValid() && cle.isWritable()) {
+                                connexion.ecrire();
+                            }
+                        } catch (RuntimeException e) {
+                            // Une erreur sur une connexion ne doit pas arrêter toute la boucle
+                            System.err.println("Problème avec une connexion NIO : " + e.getMessage());
+                            connexion.fermerMaintenant();
+                        }
+                    }
+
+                    // Les réponses produites pendant les lectures partent tout de suite
+                    traiterEcritures();
+                } catch (Exception e) {
+                    System.err.println("Problème dans la boucle NIO : " + e.getMessage());
+                }
+            }
+        }
+
+        private void enregistrerNouvelles() {
+            SocketChannel canal;
+            while ((canal = nouvelles.poll()) != null) {
+                ConnexionNio connexion = new ConnexionNio(canal, this, politique);
+                try {
+                    SelectionKey cle = canal.register(selector, SelectionKey.OP_READ, connexion);
+                    connexion.enregistree(cle);
+                } catch (IOException e) {
+                    System.err.println("Problème pour enregistrer la connexion : " + e.getMessage());
+                    connexion.fermerMaintenant();
+                }
+            }
+        }
+
+        // Appelé depuis la boucle quand une connexion doit arrêter de lire
+        void planifierReprise(ConnexionNio connexion, long attente) {
+            reprises.add(new Reprise(connexion, System.nanoTime() + attente));
+        }
+
+        private void traiterReprises() {
+            long maintenant = System.nanoTime();
+            while (!reprises.isEmpty() && reprises.peek().date <= maintenant) {
+                ConnexionNio connexion = reprises.poll().connexion;
+                try {
+                    connexion.reprendre();
+                } catch (RuntimeException e) {
+                    System.err.println("Problème avec une connexion NIO : " + e.getMessage());
+                    connexion.fermerMaintenant();
+                }
+            }
+        }
+
+        private void traiterFinsCommandes() {
+            ConnexionNio connexion;
+            while ((connexion = finsCommandes.poll()) != null) {
+                try {
+                    connexion.finCommande();
+                } catch (RuntimeException e) {
+                    System.err.println("Problème avec une connexion NIO : " + e.getMessage());
+                    connexion.fermerMaintenant();
+                }
+            }
+        }
+
+        private void traiterEcritures() {
+            ConnexionNio connexion;
+            while ((connexion = ecritures.poll()) != null) {
+                connexion.preparerEcriture();
+            }
+        }
+    }
+
+    private static class Reprise implements Comparable<Reprise> {
+        final ConnexionNio connexion;
+        final long date;
+
+        Reprise(ConnexionNio connexion, long date) {
+            this.connexion = connexion;
+            this.date = date;
+        }
+
+        @Override
+        public int compareTo(Reprise autre) {
+            return Long.compare(date, autre.date);
+        }
+    }
+}
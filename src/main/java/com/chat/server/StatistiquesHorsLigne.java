@@ -0,0 +1,48 @@
+package com.chat.server;
+
+/**
+ * Les chiffres du stock hors ligne à un instant donné, pour l'interface du
+ * serveur
+ * Le stock les tient à jour au fil des dépôts et des remises, les lire ne
+ * demande pas de parcourir les messages
+ */
+final class StatistiquesHorsLigne {
+    private final int messages;
+    private final int destinataires;
+    private final long octetsEnMemoire;
+    private final int surDisque;
+    private final long ageMaxMs;
+
+    StatistiquesHorsLigne(int messages, int destinataires, long octetsEnMemoire, int surDisque, long ageMaxMs) {
+        this.messages = messages;
+        this.destinataires = destinataires;
+        this.octetsEnMemoire = octetsEnMemoire;
+        this.surDisque = surDisque;
+        this.ageMaxMs = ageMaxMs;
+    }
+
+    // Messages en attente
+    int getMessages() {
+        return messages;
+    }
+
+    // Utilisateurs qui ont au moins un message en attente
+    int getDestinataires() {
+        return destinataires;
+    }
+
+    // Estimation de la mémoire prise par les messages en attente
+    long getOctetsEnMemoire() {
+        return octetsEnMemoire;
+    }
+
+    // Messages passés dans les segments sur le disque
+    int getSurDisque() {
+        return surDisque;
+    }
+
+    // Depuis combien de temps attend le plus vieux (0 s'il n'y en a pas)
+    long getAgeMaxMs() {
+        return ageMaxMs;
+    }
+}
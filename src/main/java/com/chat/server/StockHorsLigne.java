@@ -0,0 +1,1002 @@
+package com.chat.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Les messages en attente pour les utilisateurs pas connectés
+ *
+ * En mémoire, chaque destinataire a sa pile sans verrou : les expéditeurs
+ * empilent avec un compareAndSet, et à la connexion on récupère toute la pile
+ * d'un coup en la remplaçant par une pile vide. Chaque message reçoit un
+ * numéro qui suit celui du sommet, donc les numéros d'un destinataire sont
+ * croissants dans l'ordre d'arrivée
+ * Ceux qui enlèvent des messages (connexion, accusés, entretien) passent un par
+ * un grâce au verrou de la pile, les expéditeurs ne le prennent jamais
+ *
+ * Pour la relecture avec accusés de réception, les messages restent dans la
+ * pile tant qu'ils ne sont pas acquittés : chaque pile retient jusqu'à quel
+ * numéro le client a confirmé, ce qui est en dessous ne compte plus
+ *
+ * La mémoire est bornée : au-delà du budget, les plus vieux messages des plus
+ * grosses piles partent dans des segments sur le disque (seuls les plus récents
+ * restent en mémoire) et sont relus à la connexion. Chaque destinataire a aussi
+ * un quota, et les messages trop vieux expirent
+ *
+ * Sur le disque c'est un journal où on ne fait qu'ajouter des lignes :
+ * "+|numéro|destinataire|message|dépôt" quand un message est mis de côté
+ * "-|destinataire|numéro" quand tous ses messages jusqu'à ce numéro ont été
+ * remis (ou ont expiré)
+ * Un seul thread écrit le journal : les autres déposent leurs lignes dans une
+ * file sans verrou, il les écrit toutes puis vide le tampon une fois. Quand le
+ * journal contient surtout des messages déjà remis, ce même thread le réécrit
+ * avec seulement ceux qui attendent encore. C'est aussi lui qui fait
+ * l'entretien (expiration, passage sur le disque)
+ */
+class StockHorsLigne {
+    // Nombre de lignes inutiles à partir duquel on pense à compacter
+    private static final int SEUIL_COMPACTAGE = Integer.getInteger("chat.horsligne.compactage", 1000);
+    // Mémoire pour les messages en attente, -Dchat.horsligne.memoireKo=N
+    private static final long BUDGET_MEMOIRE = Long.getLong("chat.horsligne.memoireKo", 16 * 1024) * 1024;
+    // Messages gardés en mémoire par destinataire quand on dépasse le budget
+    private static final int RECENTS = Math.max(1, Integer.getInteger("chat.horsligne.recents", 50));
+    // Messages en attente au plus par destinataire (0 pour pas de limite)
+    private static final int QUOTA = Integer.getInteger("chat.horsligne.quota", 10_000);
+    // Durée de vie d'un message en attente, en heures (0 pour ne jamais expirer)
+    private static final long DUREE_VIE = TimeUnit.HOURS.toMillis(Long.getLong("chat.horsligne.ttlHeures", 720));
+    private static final long PERIODE_EXPIRATION = TimeUnit.MINUTES.toNanos(1);
+    private static final long PERIODE_DEBORDEMENT = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path journal;
+    // L'ancien fichier "destinataire|message", repris une seule fois
+    private final Path ancienFichier;
+    // Les segments des messages passés sur le disque, refaits à chaque démarrage
+    private final Path dossierSegments;
+    // Au-delà, les plus vieux messages passent sur le disque
+    private final long budgetMemoire;
+
+    private final ConcurrentHashMap<String, PileDestinataire> piles = new ConcurrentHashMap<>();
+    // Les chiffres pour l'interface, tenus à jour à chaque dépôt et remise
+    private final AtomicInteger enAttente = new AtomicInteger();
+    private final AtomicInteger destinataires = new AtomicInteger();
+    private final AtomicLong octetsEnMemoire = new AtomicLong();
+    private final AtomicInteger surDisque = new AtomicInteger();
+    private final AtomicLong numeroSegment = new AtomicLong();
+
+    // Ce qui doit être écrit dans le journal, et le thread qui s'en occupe
+    private final ConcurrentLinkedQueue<Enregistrement> aEcrire = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean reveille = new AtomicBoolean(false);
+    private volatile boolean arret = false;
+    private Thread ecrivain;
+
+    // Seulement utilisés par le thread écrivain (ou par charger avant qu'il
+    // démarre)
+    private Writer sortie;
+    private long lignesMortes = 0;
+    private long derniereExpiration = System.nanoTime();
+    private long dernierDebordement = System.nanoTime() - PERIODE_DEBORDEMENT;
+
+    /**
+     * Un message en attente, un segment de messages passés sur le disque, ou le
+     * fond de la pile quand il n'y a ni l'un ni l'autre (il garde le numéro du
+     * dernier message remis)
+     * Immuable : une pile récupérée peut être parcourue sans précaution
+     */
+    static final class Noeud {
+        // Pour un segment, le numéro de son dernier message
+        final long numero;
+        final String message;
+        // Heure de dépôt (pour un segment, celle du plus récent)
+        final long depot;
+        final Segment segment;
+        final Noeud suivant;
+
+        Noeud(long numero, String message, long depot, Segment segment, Noeud suivant) {
+            this.numero = numero;
+            this.message = message;
+            this.depot = depot;
+            this.segment = segment;
+            this.suivant = suivant;
+        }
+
+        static Noeud fond(long numero) {
+            return new Noeud(numero, null, 0, null, null);
+        }
+
+        boolean estFond() {
+            return message == null && segment == null;
+        }
+    }
+
+    // Des messages aux numéros qui se suivent, de premier au numéro du noeud
+    private static final class Segment {
+        final Path fichier;
+        final long premier;
+        final int nombre;
+        // Heure de dépôt du plus vieux
+        final long plusAncien;
+
+        Segment(Path fichier, long premier, int nombre, long plusAncien) {
+            this.fichier = fichier;
+            this.premier = premier;
+            this.nombre = nombre;
+            this.plusAncien = plusAncien;
+        }
+    }
+
+    private static final class PileDestinataire {
+        final AtomicReference<Noeud> sommet;
+        // Dernier numéro acquitté par le client (relecture avec accusés) ou expiré
+        final AtomicLong acquitte;
+        // Pour ceux qui enlèvent des messages, pas pour ceux qui en ajoutent
+        final ReentrantLock verrou = new ReentrantLock();
+        // Messages qui comptent encore (au-dessus de acquitte), pour le quota
+        final AtomicInteger nombre = new AtomicInteger();
+        // Place prise en mémoire par les messages de la pile
+        final AtomicLong octets = new AtomicLong();
+        // Heure de dépôt du plus vieux message qui compte (à peu près : un dépôt et
+        // une remise en même temps peuvent le décaler jusqu'au suivant)
+        volatile long plusAncien = Long.MAX_VALUE;
+        // Le fond trouvé au compactage d'avant si la pile était déjà vide (null
+        // sinon) : encore le même au suivant, personne n'y a touché entre-temps
+        // (seulement utilisé par le compactage)
+        Noeud videAuCompactage;
+
+        PileDestinataire(Noeud fond) {
+            this.sommet = new AtomicReference<>(fond);
+            this.acquitte = new AtomicLong(fond.numero);
+        }
+    }
+
+    private static final class Enregistrement {
+        final String ligne;
+        // Lignes du journal que celle-ci rend inutiles (elle comprise)
+        final int morts;
+
+        Enregistrement(String ligne, int morts) {
+            this.ligne = ligne;
+            this.morts = morts;
+        }
+    }
+
+    StockHorsLigne(Path journal, Path ancienFichier) {
+        this(journal, ancienFichier, BUDGET_MEMOIRE);
+    }
+
+    StockHorsLigne(Path journal, Path ancienFichier, long budgetMemoire) {
+        this.journal = journal;
+        this.ancienFichier = ancienFichier;
+        this.dossierSegments = journal.resolveSibling("messages_offline.segments");
+        this.budgetMemoire = budgetMemoire;
+    }
+
+    /**
+     * Relit le journal (ou reprend l'ancien fichier la première fois), puis
+     * démarre le thread qui l'écrit
+     */
+    void charger() {
+        try {
+            if (journal.getParent() != null) {
+                Files.createDirectories(journal.getParent());
+            }
+            viderSegments();
+            if (Files.exists(journal)) {
+                relire();
+            } else if (Files.exists(ancienFichier)) {
+                reprendreAncienFichier();
+            }
+            // Tout a été relu en mémoire : on remet le budget en place
+            entretenir(true, true);
+            if (lignesMortes >= SEUIL_COMPACTAGE && lignesMortes > enAttente.get()) {
+                // Au démarrage personne n'attend, autant le faire tout de suite
+                compacterMaintenant();
+            }
+            if (sortie == null) {
+                ouvrir();
+            }
+        } catch (IOException e) {
+            System.err.println("Problème pour charger les messages : " + e.getMessage());
+        }
+
+        ecrivain = new Thread(this::ecrire, "chat-journal");
+        ecrivain.setDaemon(true);
+        ecrivain.start();
+        // Ce qui est encore dans la file part sur le disque avant l'arrêt
+        Runtime.getRuntime().addShutdownHook(new Thread(this::arreter, "chat-journal-arret"));
+    }
+
+    /**
+     * Met un message de côté, sans verrou
+     * Renvoie false si le destinataire a déjà atteint son quota
+     */
+    boolean ajouter(String destinataire, String message) {
+        PileDestinataire pile;
+        int nombre;
+        do {
+            pile = piles.get(destinataire);
+            if (pile == null) {
+                pile = piles.computeIfAbsent(destinataire, k -> new PileDestinataire(Noeud.fond(0)));
+            }
+            // La place est réservée avant d'empiler : le compteur ne passe jamais
+            // sous le nombre de messages dans la pile, même si elle est vidée
+            // entre-temps
+            nombre = pile.nombre.incrementAndGet();
+            // Négatif : la pile vient d'être retirée par le compactage, on
+            // recommence avec celle qui la remplace
+        } while (nombre <= 0);
+        if (QUOTA > 0 && nombre > QUOTA) {
+            pile.nombre.decrementAndGet();
+            return false;
+        }
+        if (nombre == 1) {
+            destinataires.incrementAndGet();
+        }
+        enAttente.incrementAndGet();
+        long depot = System.currentTimeMillis();
+        Noeud sommet;
+        Noeud noeud;
+        do {
+            sommet = pile.sommet.get();
+            noeud = new Noeud(sommet.numero + 1, message, depot, null, sommet);
+        } while (!pile.sommet.compareAndSet(sommet, noeud));
+        if (pile.plusAncien == Long.MAX_VALUE) {
+            pile.plusAncien = depot;
+        }
+        long taille = tailleEnMemoire(message);
+        pile.octets.addAndGet(taille);
+        octetsEnMemoire.addAndGet(taille);
+
+        // Un dépassement du budget est vu par l'écrivain, qu'on réveille ici
+        deposer(new Enregistrement("+|" + noeud.numero + "|" + echapper(destinataire) + "|" + echapper(message)
+                + "|" + depot, 0));
+        return true;
+    }
+
+    /**
+     * Prend tous les messages en attente pour quelqu'un (liste vide s'il n'y en
+     * a pas), dans l'ordre où ils sont arrivés
+     * Toute la pile est récupérée d'un coup : un message envoyé pendant ce temps
+     * est soit dans la liste, soit dans la nouvelle pile, jamais perdu ni en
+     * double
+     * Si un segment ne peut pas être relu, rien n'est retiré : la pile, ses
+     * segments et le journal restent tels quels
+     */
+    List<String> prendreTout(String destinataire) throws IOException {
+        PileDestinataire pile = piles.get(destinataire);
+        if (pile == null) {
+            return Collections.emptyList();
+        }
+        pile.verrou.lock();
+        try {
+            Noeud sommet;
+            List<Noeud> noeuds;
+            do {
+                sommet = pile.sommet.get();
+                if (sommet.estFond()) {
+                    return Collections.emptyList();
+                }
+                // Relu avant de toucher à la pile : une erreur la laisse intacte
+                noeuds = deplier(sommet, pile.acquitte.get());
+            } while (!pile.sommet.compareAndSet(sommet, Noeud.fond(sommet.numero)));
+
+            liberer(pile, sommet);
+            decompter(pile, noeuds.size());
+
+            ArrayList<String> messages = new ArrayList<>(noeuds.size());
+            for (Noeud noeud : noeuds) {
+                messages.add(noeud.message);
+            }
+            deposer(new Enregistrement("-|" + echapper(destinataire) + "|" + sommet.numero, messages.size() + 1));
+            return messages;
+        } finally {
+            pile.verrou.unlock();
+        }
+    }
+
+    /**
+     * Les messages pas encore acquittés, du plus ancien au plus récent, sans les
+     * enlever
+     */
+    List<Noeud> nonAcquittes(String destinataire) throws IOException {
+        PileDestinataire pile = piles.get(destinataire);
+        if (pile == null) {
+            return Collections.emptyList();
+        }
+        pile.verrou.lock();
+        try {
+            return deplier(pile.sommet.get(), pile.acquitte.get());
+        } finally {
+            pile.verrou.unlock();
+        }
+    }
+
+    /**
+     * Le client a confirmé avoir reçu ce lot (pris dans nonAcquittes) : ces
+     * messages et tous ceux d'avant sont supprimés
+     */
+    void acquitter(String destinataire, List<Noeud> lot) {
+        PileDestinataire pile = piles.get(destinataire);
+        if (pile == null || lot.isEmpty()) {
+            return;
+        }
+        pile.verrou.lock();
+        try {
+            long numero = lot.get(lot.size() - 1).numero;
+            long precedent = pile.acquitte.get();
+            if (precedent >= numero) {
+                // Déjà acquitté (accusé en double) ou expiré entre-temps
+                return;
+            }
+            // Ceux qui ont expiré pendant la relecture sont déjà décomptés
+            int nouveaux = 0;
+            for (Noeud noeud : lot) {
+                if (noeud.numero > precedent) {
+                    nouveaux++;
+                }
+            }
+            pile.acquitte.set(numero);
+            decompter(pile, nouveaux);
+            deposer(new Enregistrement("-|" + echapper(destinataire) + "|" + numero, nouveaux + 1));
+
+            // Si tout est acquitté, on libère la pile d'un coup (sinon les noeuds
+            // acquittés restent dessous jusqu'au prochain entretien)
+            Noeud sommet = pile.sommet.get();
+            if (!sommet.estFond() && sommet.numero <= numero
+                    && pile.sommet.compareAndSet(sommet, Noeud.fond(sommet.numero))) {
+                liberer(pile, sommet);
+            }
+        } finally {
+            pile.verrou.unlock();
+        }
+    }
+
+    /**
+     * Les chiffres du moment, sans parcourir les messages (seulement une valeur
+     * par destinataire pour trouver le plus vieux)
+     */
+    StatistiquesHorsLigne statistiques() {
+        long plusAncien = Long.MAX_VALUE;
+        for (PileDestinataire pile : piles.values()) {
+            if (pile.nombre.get() > 0) {
+                plusAncien = Math.min(plusAncien, pile.plusAncien);
+            }
+        }
+        long age = plusAncien == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - plusAncien);
+        return new StatistiquesHorsLigne(enAttente.get(), destinataires.get(), octetsEnMemoire.get(),
+                surDisque.get(), age);
+    }
+
+    // Des messages de la pile ne comptent plus (remis, acquittés ou expirés)
+    // À appeler avec le verrou de la pile
+    private void decompter(PileDestinataire pile, int retires) {
+        if (retires == 0) {
+            return;
+        }
+        enAttente.addAndGet(-retires);
+        if (pile.nombre.addAndGet(-retires) == 0) {
+            destinataires.decrementAndGet();
+        }
+        // Le plus vieux qui reste est le dernier de la chaîne au-dessus du numéro
+        // acquitté
+        long acquitte = pile.acquitte.get();
+        long plusAncien = Long.MAX_VALUE;
+        for (Noeud noeud = pile.sommet.get(); !noeud.estFond() && noeud.numero > acquitte; noeud = noeud.suivant) {
+            plusAncien = noeud.segment != null ? noeud.segment.plusAncien : noeud.depot;
+        }
+        pile.plusAncien = plusAncien;
+    }
+
+    // Estimation grossière : le noeud, la String et ses caractères
+    private static long tailleEnMemoire(String message) {
+        return 64 + 2L * message.length();
+    }
+
+    /**
+     * Les messages de la chaîne qui sont au-dessus de "apres", du plus ancien au
+     * plus récent, avec ceux des segments relus sur le disque
+     * À appeler avec le verrou de la pile (un segment n'est supprimé que sous ce
+     * verrou)
+     */
+    private List<Noeud> deplier(Noeud sommet, long apres) throws IOException {
+        ArrayList<Noeud> noeuds = new ArrayList<>();
+        for (Noeud noeud = sommet; !noeud.estFond() && noeud.numero > apres; noeud = noeud.suivant) {
+            noeuds.add(noeud);
+        }
+        Collections.reverse(noeuds);
+        ArrayList<Noeud> messages = new ArrayList<>(noeuds.size());
+        for (Noeud noeud : noeuds) {
+            if (noeud.segment == null) {
+                messages.add(noeud);
+                continue;
+            }
+            for (Noeud message : lireSegment(noeud.segment)) {
+                if (message.numero > apres) {
+                    messages.add(message);
+                }
+            }
+        }
+        return messages;
+    }
+
+    // Une chaîne vient d'être retirée de la pile : on rend sa mémoire et on
+    // supprime ses segments
+    private void liberer(PileDestinataire pile, Noeud sommet) {
+        long octets = 0;
+        for (Noeud noeud = sommet; !noeud.estFond(); noeud = noeud.suivant) {
+            if (noeud.segment != null) {
+                supprimerSegment(noeud.segment);
+            } else {
+                octets += tailleEnMemoire(noeud.message);
+            }
+        }
+        pile.octets.addAndGet(-octets);
+        octetsEnMemoire.addAndGet(-octets);
+    }
+
+    private void deposer(Enregistrement enregistrement) {
+        aEcrire.add(enregistrement);
+        reveiller();
+    }
+
+    // On ne réveille l'écrivain que s'il dort
+    private void reveiller() {
+        if (!reveille.getAndSet(true) && ecrivain != null) {
+            LockSupport.unpark(ecrivain);
+        }
+    }
+
+    // --- Le thread écrivain ---
+
+    private void ecrire() {
+        while (!arret) {
+            reveille.set(false);
+            viderFile();
+            long maintenant = System.nanoTime();
+            boolean expirer = maintenant - derniereExpiration >= PERIODE_EXPIRATION;
+            // Au plus une fois par seconde : si les piles n'ont plus que des
+            // messages récents, ça ne sert à rien d'insister
+            boolean deborder = octetsEnMemoire.get() > budgetMemoire
+                    && maintenant - dernierDebordement >= PERIODE_DEBORDEMENT;
+            if (expirer || deborder) {
+                entretenir(expirer, deborder);
+                if (expirer) {
+                    derniereExpiration = maintenant;
+                }
+                if (deborder) {
+                    dernierDebordement = maintenant;
+                }
+                viderFile();
+            }
+            if (lignesMortes >= SEUIL_COMPACTAGE && lignesMortes > enAttente.get()) {
+                try {
+                    compacterMaintenant();
+                } catch (IOException e) {
+                    System.err.println("Problème pour compacter les messages : " + e.getMessage());
+                }
+            }
+            if (aEcrire.isEmpty() && !reveille.get()) {
+                // Le délai n'est qu'une sécurité, normalement on est réveillé
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        // Au cas où des messages sont arrivés pendant le dernier tour
+        viderFile();
+    }
+
+    // Écrit tout ce qui attend, puis un seul flush pour le lot
+    private void viderFile() {
+        Enregistrement enregistrement;
+        boolean ecrit = false;
+        try {
+            if (sortie == null) {
+                // Le journal n'a pas pu être ouvert : les lignes restent dans la
+                // file, on réessaiera au prochain tour
+                ouvrir();
+            }
+            while ((enregistrement = aEcrire.poll()) != null) {
+                sortie.write(enregistrement.ligne);
+                sortie.write('\n');
+                lignesMortes += enregistrement.morts;
+                ecrit = true;
+            }
+            if (ecrit) {
+                sortie.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Problème pour sauvegarder les messages : " + e.getMessage());
+        }
+    }
+
+    private void arreter() {
+        arret = true;
+        if (ecrivain != null) {
+            LockSupport.unpark(ecrivain);
+            try {
+                ecrivain.join(TimeUnit.SECONDS.toMillis(2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // --- Entretien : expiration et passage sur le disque ---
+
+    private void entretenir(boolean expirer, boolean deborder) {
+        long limite = expirer && DUREE_VIE > 0 ? System.currentTimeMillis() - DUREE_VIE : Long.MIN_VALUE;
+        for (Map.Entry<String, PileDestinataire> entree : piles.entrySet()) {
+            PileDestinataire pile = entree.getValue();
+            pile.verrou.lock();
+            try {
+                expirer(entree.getKey(), pile, limite);
+                // Sans dépassement, on ne fait que retirer les messages acquittés ou
+                // expirés qui traînent sous les autres
+                reorganiser(pile, false);
+            } finally {
+                pile.verrou.unlock();
+            }
+        }
+        if (!deborder || octetsEnMemoire.get() <= budgetMemoire) {
+            return;
+        }
+
+        // Les plus grosses piles d'abord, jusqu'à repasser sous le budget
+        List<PileDestinataire> parTaille = new ArrayList<>(piles.values());
+        parTaille.sort((a, b) -> Long.compare(b.octets.get(), a.octets.get()));
+        for (PileDestinataire pile : parTaille) {
+            if (octetsEnMemoire.get() <= budgetMemoire) {
+                break;
+            }
+            pile.verrou.lock();
+            try {
+                reorganiser(pile, true);
+            } finally {
+                pile.verrou.unlock();
+            }
+        }
+    }
+
+    // Tout ce qui a été déposé avant la limite expire (c'est le bas de la pile :
+    // comme pour un accusé, seul le numéro de la pile avance)
+    private void expirer(String destinataire, PileDestinataire pile, long limite) {
+        long precedent = pile.acquitte.get();
+        long dernier = -1;
+        for (Noeud noeud = pile.sommet.get(); !noeud.estFond() && noeud.numero > precedent; noeud = noeud.suivant) {
+            if (noeud.depot < limite) {
+                dernier = noeud.numero;
+                break;
+            }
+        }
+        if (dernier < 0) {
+            return;
+        }
+        int expires = 0;
+        for (Noeud noeud = pile.sommet.get(); !noeud.estFond() && noeud.numero > precedent; noeud = noeud.suivant) {
+            long debut = Math.max(noeud.segment != null ? noeud.segment.premier : noeud.numero, precedent + 1);
+            long fin = Math.min(noeud.numero, dernier);
+            if (fin >= debut) {
+                expires += (int) (fin - debut + 1);
+            }
+        }
+        pile.acquitte.set(dernier);
+        decompter(pile, expires);
+        deposer(new Enregistrement("-|" + echapper(destinataire) + "|" + dernier, expires + 1));
+    }
+
+    /**
+     * Refait la chaîne sans ce qui est sous le numéro acquitté, et si on déborde,
+     * avec les plus vieux messages regroupés dans un segment sur le disque
+     * Les expéditeurs peuvent empiler pendant ce temps : si le sommet a changé on
+     * recommence avec le nouveau
+     */
+    private void reorganiser(PileDestinataire pile, boolean deborder) {
+        while (true) {
+            Noeud sommet = pile.sommet.get();
+            long acquitte = pile.acquitte.get();
+
+            ArrayList<Noeud> vivants = new ArrayList<>();
+            ArrayList<Noeud> retires = new ArrayList<>();
+            Noeud fond = sommet;
+            for (; !fond.estFond(); fond = fond.suivant) {
+                if (fond.numero > acquitte) {
+                    vivants.add(fond);
+                } else {
+                    retires.add(fond);
+                }
+            }
+            Collections.reverse(vivants);
+
+            // Les segments sont toujours sous les messages en mémoire : ceux à
+            // envoyer sur le disque sont les plus vieux de ces derniers
+            int enMemoire = 0;
+            for (Noeud noeud : vivants) {
+                if (noeud.segment == null) {
+                    enMemoire++;
+                }
+            }
+            int aDeborder = deborder ? Math.max(0, enMemoire - RECENTS) : 0;
+            if (retires.isEmpty() && aDeborder == 0) {
+                return;
+            }
+
+            int debut = vivants.size() - enMemoire;
+            int fin = debut;
+            Noeud noeudSegment = null;
+            if (aDeborder > 0) {
+                noeudSegment = ecrireSegment(vivants.subList(debut, debut + aDeborder));
+                if (noeudSegment != null) {
+                    fin = debut + aDeborder;
+                }
+                // Sinon tant pis pour le budget, on garde tout en mémoire
+            }
+
+            // retires va du plus récent au plus vieux
+            long numeroFond = retires.isEmpty() ? fond.numero : Math.max(fond.numero, retires.get(0).numero);
+            Noeud chaine = Noeud.fond(numeroFond);
+            for (int i = 0; i < vivants.size(); i++) {
+                Noeud noeud = vivants.get(i);
+                if (i >= debut && i < fin) {
+                    if (i == fin - 1) {
+                        chaine = new Noeud(noeudSegment.numero, null, noeudSegment.depot, noeudSegment.segment, chaine);
+                    }
+                } else {
+                    chaine = new Noeud(noeud.numero, noeud.message, noeud.depot, noeud.segment, chaine);
+                }
+            }
+
+            if (!pile.sommet.compareAndSet(sommet, chaine)) {
+                if (noeudSegment != null) {
+                    supprimerFichier(noeudSegment.segment.fichier);
+                }
+                continue;
+            }
+
+            long octets = 0;
+            for (Noeud noeud : retires) {
+                if (noeud.segment != null) {
+                    supprimerSegment(noeud.segment);
+                } else {
+                    octets += tailleEnMemoire(noeud.message);
+                }
+            }
+            for (int i = debut; i < fin; i++) {
+                octets += tailleEnMemoire(vivants.get(i).message);
+            }
+            if (fin > debut) {
+                surDisque.addAndGet(fin - debut);
+            }
+            pile.octets.addAndGet(-octets);
+            octetsEnMemoire.addAndGet(-octets);
+            return;
+        }
+    }
+
+    // Le noeud qui remplace ces messages dans la pile, null si l'écriture a raté
+    private Noeud ecrireSegment(List<Noeud> messages) {
+        Path fichier = dossierSegments.resolve(numeroSegment.incrementAndGet() + ".seg");
+        try {
+            Files.createDirectories(dossierSegments);
+            try (Writer w = Files.newBufferedWriter(fichier, StandardCharsets.UTF_8)) {
+                for (Noeud noeud : messages) {
+                    w.write(noeud.numero + "|" + noeud.depot + "|" + echapper(noeud.message) + "\n");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Problème pour écrire un segment de messages : " + e.getMessage());
+            supprimerFichier(fichier);
+            return null;
+        }
+        Noeud dernier = messages.get(messages.size() - 1);
+        Segment segment = new Segment(fichier, messages.get(0).numero, messages.size(), messages.get(0).depot);
+        return new Noeud(dernier.numero, null, dernier.depot, segment, null);
+    }
+
+    // Un segment illisible ou incomplet est une erreur : mieux vaut ne rien
+    // remettre que d'en remettre une partie et supprimer le reste
+    private List<Noeud> lireSegment(Segment segment) throws IOException {
+        ArrayList<Noeud> messages = new ArrayList<>(segment.nombre);
+        try (BufferedReader in = Files.newBufferedReader(segment.fichier, StandardCharsets.UTF_8)) {
+            String ligne;
+            while ((ligne = in.readLine()) != null) {
+                String[] parties = ligne.split("\\|", 3);
+                messages.add(new Noeud(Long.parseLong(parties[0]), desechapper(parties[2]),
+                        Long.parseLong(parties[1]), null, null));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Segment abîmé " + segment.fichier + " : " + e.getMessage(), e);
+        }
+        if (messages.size() != segment.nombre) {
+            throw new IOException("Segment incomplet " + segment.fichier + " : " + messages.size() + " messages sur "
+                    + segment.nombre);
+        }
+        return messages;
+    }
+
+    private void supprimerSegment(Segment segment) {
+        surDisque.addAndGet(-segment.nombre);
+        supprimerFichier(segment.fichier);
+    }
+
+    private static void supprimerFichier(Path fichier) {
+        try {
+            Files.deleteIfExists(fichier);
+        } catch (IOException e) {
+            // Il sera supprimé au prochain démarrage
+            System.err.println("Problème pour supprimer " + fichier + " : " + e.getMessage());
+        }
+    }
+
+    // Le journal fait foi : les segments d'avant ne servent plus
+    private void viderSegments() throws IOException {
+        if (!Files.isDirectory(dossierSegments)) {
+            return;
+        }
+        try (DirectoryStream<Path> fichiers = Files.newDirectoryStream(dossierSegments, "*.seg")) {
+            for (Path fichier : fichiers) {
+                Files.deleteIfExists(fichier);
+            }
+        }
+    }
+
+    /**
+     * Réécrit le journal avec seulement les messages qui attendent encore
+     * Les expéditeurs ne sont pas bloqués : un message empilé pendant ce temps a
+     * sa ligne dans la file, elle sera écrite après dans le nouveau journal (en
+     * double au pire, la relecture s'en accommode)
+     */
+    private void compacterMaintenant() throws IOException {
+        Path temporaire = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(temporaire, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, PileDestinataire> entree : piles.entrySet()) {
+                String destinataire = echapper(entree.getKey());
+                PileDestinataire pile = entree.getValue();
+                // Le verrou empêche seulement qu'un segment disparaisse pendant qu'on
+                // le relit
+                pile.verrou.lock();
+                try {
+                    Noeud sommet = pile.sommet.get();
+                    if (retirerSiVide(entree.getKey(), pile, sommet)) {
+                        continue;
+                    }
+                    long acquitte = pile.acquitte.get();
+                    Noeud fond = sommet;
+                    while (!fond.estFond()) {
+                        fond = fond.suivant;
+                    }
+                    // Le fond de la pile dit jusqu'où les messages ont été remis : on le
+                    // garde pour qu'une ligne "+" en retard ne les fasse pas revenir
+                    long remis = Math.max(fond.numero, acquitte);
+                    if (remis > 0) {
+                        w.write("-|" + destinataire + "|" + remis + "\n");
+                    }
+                    for (Noeud noeud : deplier(sommet, acquitte)) {
+                        w.write("+|" + noeud.numero + "|" + destinataire + "|" + echapper(noeud.message)
+                                + "|" + noeud.depot + "\n");
+                    }
+                } finally {
+                    pile.verrou.unlock();
+                }
+            }
+        }
+        if (sortie != null) {
+            sortie.close();
+            sortie = null;
+        }
+        try {
+            Files.move(temporaire, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaire, journal, StandardCopyOption.REPLACE_EXISTING);
+        }
+        lignesMortes = 0;
+        ouvrir();
+    }
+
+    /**
+     * Une pile vide (tout remis ou acquitté) ne sert plus qu'à garder son numéro
+     * pour sa ligne "-" : sans ça, chaque destinataire croisé un jour resterait
+     * en mémoire et dans le journal pour toujours
+     * Elle n'est retirée qu'au deuxième compactage où on la trouve vide et
+     * intacte : le premier a réécrit sa ligne "-", et les lignes déposées avant
+     * (un "+" en retard sur son "-") sont écrites depuis longtemps. Une nouvelle
+     * pile peut alors recommencer à 1 sans risque
+     * À appeler avec le verrou de la pile
+     */
+    private boolean retirerSiVide(String destinataire, PileDestinataire pile, Noeud sommet) {
+        if (!sommet.estFond() || pile.nombre.get() != 0) {
+            pile.videAuCompactage = null;
+            return false;
+        }
+        if (pile.videAuCompactage != sommet) {
+            pile.videAuCompactage = sommet;
+            return false;
+        }
+        // Un expéditeur qui a encore cette pile en main voit un nombre négatif et
+        // va chercher la nouvelle
+        if (!pile.nombre.compareAndSet(0, Integer.MIN_VALUE / 2)) {
+            return false;
+        }
+        piles.remove(destinataire, pile);
+        return true;
+    }
+
+    // --- Relecture au démarrage ---
+
+    private void relire() throws IOException {
+        // Par destinataire : les messages encore en attente par numéro, et le
+        // dernier numéro remis
+        Map<String, TreeMap<Long, Noeud>> vivants = new HashMap<>();
+        Map<String, Long> remis = new HashMap<>();
+        long lignes = 0;
+        // Les lignes écrites avant qu'on note l'heure de dépôt repartent pour une
+        // durée de vie complète
+        long maintenant = System.currentTimeMillis();
+
+        try (BufferedReader in = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String ligne;
+            while ((ligne = in.readLine()) != null) {
+                if (ligne.isEmpty()) {
+                    continue;
+                }
+                lignes++;
+                try {
+                    if (ligne.startsWith("+|")) {
+                        String[] parties = ligne.split("\\|", 5);
+                        long numero = Long.parseLong(parties[1]);
+                        String destinataire = desechapper(parties[2]);
+                        long depot = parties.length == 5 ? Long.parseLong(parties[4]) : maintenant;
+                        // Une ligne "+" peut arriver après le "-" qui la couvre
+                        if (numero > remis.getOrDefault(destinataire, 0L)) {
+                            vivants.computeIfAbsent(destinataire, k -> new TreeMap<>())
+                                    .put(numero, new Noeud(numero, desechapper(parties[3]), depot, null, null));
+                        }
+                    } else if (ligne.startsWith("-|")) {
+                        String[] parties = ligne.split("\\|", 3);
+                        String destinataire = desechapper(parties[1]);
+                        long numero = Long.parseLong(parties[2]);
+                        remis.merge(destinataire, numero, Math::max);
+                        TreeMap<Long, Noeud> messages = vivants.get(destinataire);
+                        if (messages != null) {
+                            messages.headMap(numero, true).clear();
+                        }
+                    } else {
+                        throw new IllegalArgumentException("ligne inconnue");
+                    }
+                } catch (RuntimeException e) {
+                    // Typiquement une dernière ligne coupée par un arrêt brutal
+                    System.err.println("Ligne du journal ignorée : " + ligne);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Long> entree : remis.entrySet()) {
+            piles.put(entree.getKey(), new PileDestinataire(Noeud.fond(entree.getValue())));
+        }
+        for (Map.Entry<String, TreeMap<Long, Noeud>> entree : vivants.entrySet()) {
+            if (entree.getValue().isEmpty()) {
+                // Tout a été remis depuis (sa ligne "-" a déjà créé la pile)
+                continue;
+            }
+            PileDestinataire pile = piles.computeIfAbsent(entree.getKey(),
+                    k -> new PileDestinataire(Noeud.fond(0)));
+            Noeud sommet = pile.sommet.get();
+            for (Noeud message : entree.getValue().values()) {
+                sommet = new Noeud(message.numero, message.message, message.depot, null, sommet);
+                long taille = tailleEnMemoire(message.message);
+                pile.octets.addAndGet(taille);
+                octetsEnMemoire.addAndGet(taille);
+            }
+            pile.sommet.set(sommet);
+            pile.nombre.addAndGet(entree.getValue().size());
+            pile.plusAncien = entree.getValue().firstEntry().getValue().depot;
+            destinataires.incrementAndGet();
+            enAttente.addAndGet(entree.getValue().size());
+        }
+        lignesMortes = lignes - enAttente.get();
+    }
+
+    private void reprendreAncienFichier() throws IOException {
+        long maintenant = System.currentTimeMillis();
+        for (String ligne : Files.readAllLines(ancienFichier, StandardCharsets.UTF_8)) {
+            if (!ligne.trim().isEmpty()) {
+                String[] parties = ligne.split("\\|", 2);
+                if (parties.length == 2) {
+                    PileDestinataire pile = piles.computeIfAbsent(parties[0],
+                            k -> new PileDestinataire(Noeud.fond(0)));
+                    Noeud sommet = pile.sommet.get();
+                    pile.sommet.set(new Noeud(sommet.numero + 1, parties[1], maintenant, null, sommet));
+                    long taille = tailleEnMemoire(parties[1]);
+                    pile.octets.addAndGet(taille);
+                    octetsEnMemoire.addAndGet(taille);
+                    if (pile.nombre.incrementAndGet() == 1) {
+                        destinataires.incrementAndGet();
+                        pile.plusAncien = maintenant;
+                    }
+                    enAttente.incrementAndGet();
+                }
+            }
+        }
+        compacterMaintenant();
+        // On le garde de côté au cas où, mais il ne sera plus relu
+        Files.move(ancienFichier, ancienFichier.resolveSibling(ancienFichier.getFileName() + ".migre"),
+                StandardCopyOption.REPLACE_EXISTING);
+        System.out.println(enAttente.get() + " message(s) hors ligne repris de " + ancienFichier);
+    }
+
+    private void ouvrir() throws IOException {
+        sortie = Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // Un message ne doit pas casser le format : une ligne, champs séparés par |
+    static String echapper(String texte) {
+        if (texte.indexOf('\\') < 0 && texte.indexOf('|') < 0 && texte.indexOf('\n') < 0
+                && texte.indexOf('\r') < 0) {
+            return texte;
+        }
+        StringBuilder sb = new StringBuilder(texte.length() + 8);
+        for (int i = 0; i < texte.length(); i++) {
+            char c = texte.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '|':
+                    sb.append("\\b");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String desechapper(String texte) {
+        if (texte.indexOf('\\') < 0) {
+            return texte;
+        }
+        StringBuilder sb = new StringBuilder(texte.length());
+        for (int i = 0; i < texte.length(); i++) {
+            char c = texte.charAt(i);
+            if (c == '\\' && i + 1 < texte.length()) {
+                char suivant = texte.charAt(++i);
+                switch (suivant) {
+                    case 'b':
+                        sb.append('|');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    default:
+                        sb.append(suivant);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,29 @@
+package com.chat.server;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Accès aux threads virtuels (Java 21+) sans empêcher la compilation en Java 11
+ * On passe par la réflexion pour ne pas dépendre de l'API au moment de la
+ * compilation
+ */
+final class ThreadsVirtuels {
+
+    private ThreadsVirtuels() {
+    }
+
+    /**
+     * Une fabrique de threads virtuels nommés prefixe0, prefixe1...
+     * ou null si la JVM ne les supporte pas
+     */
+    static ThreadFactory fabrique(String prefixe) {
+        try {
+            Class<?> classeBuilder = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = classeBuilder.getMethod("name", String.class, long.class).invoke(builder, prefixe, 0L);
+            return (ThreadFactory) classeBuilder.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.chat.server;
+
+import com.chat.model.ProtocoleBinaire;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Un message prêt à partir sur le réseau, partagé entre tous les destinataires
+ * Il garde son type et ses champs pour le protocole binaire, et sa version
+ * texte pour les autres clients
+ * Chaque encodage (texte UTF-8 avec son retour à la ligne, ou trame binaire)
+ * est fait une seule fois, au premier destinataire qui en a besoin, puis
+ * les octets sont partagés tels quels
+ */
+final class Trame {
+    private final byte type;
+    private final String[] champs;
+    private final String texte;
+    // Marque la réponse à /binaire : tout ce qui suit part en binaire
+    private final boolean bascule;
+    // Plusieurs lignes envoyées d'un coup (une ligne par champ)
+    private final boolean lot;
+    // Pour une liste de noms : le type des trames qui suivent la première quand
+    // elle ne tient pas dans une seule (0 sinon)
+    private final byte suite;
+
+    private volatile byte[] octetsTexte;
+    private volatile byte[] octetsBinaires;
+
+    private Trame(byte type, String texte, boolean bascule, String... champs) {
+        this(type, texte, bascule, false, (byte) 0, champs);
+    }
+
+    private Trame(byte type, String texte, boolean bascule, boolean lot, byte suite, String... champs) {
+        this.type = type;
+        this.texte = texte;
+        this.bascule = bascule;
+        this.lot = lot;
+        this.suite = suite;
+        this.champs = champs;
+    }
+
+    static Trame texte(String ligne) {
+        return new Trame(ProtocoleBinaire.TEXTE, ligne, false, ligne);
+    }
+
+    static Trame general(String expediteur, String message) {
+        return new Trame(ProtocoleBinaire.GENERAL, expediteur + " : " + message, false, expediteur, message);
+    }
+
+    static Trame prive(String expediteur, String destinataire, String message) {
+        return new Trame(ProtocoleBinaire.PRIVE, "[PRIVÉ] " + expediteur + " → " + destinataire + " : " + message,
+                false, expediteur, destinataire, message);
+    }
+
+    static Trame groupe(String nomGroupe, String expediteur, String message) {
+        return new Trame(ProtocoleBinaire.GROUPE, "[" + nomGroupe + "] " + expediteur + " : " + message,
+                false, nomGroupe, expediteur, message);
+    }
+
+    // Une réponse de plusieurs lignes (bannière, listes de groupes...) qui part
+    // en une seule écriture au lieu d'une par ligne
+    // En binaire ce sont les mêmes trames TEXTE que ligne par ligne, collées
+    static Trame lot(List<String> lignes) {
+        String[] champs = lignes.toArray(new String[0]);
+        return new Trame(ProtocoleBinaire.TEXTE, String.join("\n", champs), false, true, (byte) 0, champs);
+    }
+
+    // La liste des connectés : le texte habituel, et les noms un par champ
+    // (en plusieurs trames en binaire s'il y a trop de monde pour une seule)
+    static Trame utilisateurs(String texte, String[] noms) {
+        return new Trame(ProtocoleBinaire.UTILISATEURS, texte, false, false, ProtocoleBinaire.UTILISATEURS_SUITE,
+                noms);
+    }
+
+    // Abonnement à la présence : la liste complète une fois, puis les
+    // changements un par un
+    static Trame presence(String[] noms) {
+        return new Trame(ProtocoleBinaire.PRESENCE, "[PRÉSENCE] = " + String.join(", ", noms), false, false,
+                ProtocoleBinaire.PRESENCE_SUITE, noms);
+    }
+
+    static Trame arrivee(String nom) {
+        return new Trame(ProtocoleBinaire.PRESENCE_ARRIVEE, "[PRÉSENCE] + " + nom, false, nom);
+    }
+
+    static Trame depart(String nom) {
+        return new Trame(ProtocoleBinaire.PRESENCE_DEPART, "[PRÉSENCE] - " + nom, false, nom);
+    }
+
+    static Trame groupesModifies(String texte) {
+        return new Trame(ProtocoleBinaire.GROUPES_MODIFIES, texte, false, texte);
+    }
+
+    static Trame basculeBinaire() {
+        return new Trame(ProtocoleBinaire.TEXTE, ProtocoleBinaire.ACCORD, true, ProtocoleBinaire.ACCORD);
+    }
+
+    // Le texte pour le protocole texte, sans le retour à la ligne
+    String getTexte() {
+        return texte;
+    }
+
+    boolean estBascule() {
+        return bascule;
+    }
+
+    // Un message de chat seul (général, privé ou de groupe) : la seule sorte de
+    // trame qu'on peut jeter ou mettre de côté quand la file d'un client est
+    // pleine. Les réponses, les lots et la bascule en binaire doivent arriver,
+    // sinon le client ne sait plus où il en est
+    boolean estMessage() {
+        return !lot && !bascule && (type == ProtocoleBinaire.GENERAL || type == ProtocoleBinaire.PRIVE
+                || type == ProtocoleBinaire.GROUPE);
+    }
+
+    // Les octets partagés : à ne pas modifier
+    byte[] octets(boolean binaire) {
+        if (binaire) {
+            byte[] octets = octetsBinaires;
+            if (octets == null) {
+                // Si deux threads encodent en même temps, le résultat est le même
+                if (lot) {
+                    octets = encoderLot();
+                } else if (suite != 0) {
+                    octets = ProtocoleBinaire.encoderListe(type, suite, champs);
+                } else {
+                    octets = ProtocoleBinaire.encoder(type, champs);
+                }
+                octetsBinaires = octets;
+            }
+            return octets;
+        }
+        byte[] octets = octetsTexte;
+        if (octets == null) {
+            octets = (texte + "\n").getBytes(StandardCharsets.UTF_8);
+            octetsTexte = octets;
+        }
+        return octets;
+    }
+
+    private byte[] encoderLot() {
+        ByteArrayOutputStream octets = new ByteArrayOutputStream();
+        for (String ligne : champs) {
+            octets.writeBytes(ProtocoleBinaire.encoder(type, ligne));
+        }
+        return octets.toByteArray();
+    }
+
+    // Une vue à part pour chaque destinataire (position propre, mêmes octets)
+    ByteBuffer tampon(boolean binaire) {
+        return ByteBuffer.wrap(octets(binaire));
+    }
+}
@@ -0,0 +1,91 @@
+package com.chat.model;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AnnuaireConversationsTest {
+  private static final String PREFIXE = "private_";
+
+  @Rule
+  public TemporaryFolder dossierTemporaire = new TemporaryFolder();
+
+  private Path historique() {
+    return dossierTemporaire.getRoot().toPath();
+  }
+
+  private void conversation(String expediteur, String destinataire) throws IOException {
+    JournalConversation journal = new JournalConversation(
+        historique().resolve(PREFIXE + expediteur + "_" + destinataire));
+    journal.ecrire(List.of(new Enregistrement(System.currentTimeMillis(), expediteur, destinataire, "coucou")));
+    journal.fermer();
+  }
+
+  private List<String> lignesFichier() throws IOException {
+    return Files.readAllLines(historique().resolve(AnnuaireConversations.NOM_FICHIER), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void refaitQuandLeFichierManque() throws IOException {
+    conversation("alice", "bob");
+    conversation("carol", "alice");
+    // Un "_" dans un nom : les noms viennent du journal, pas du dossier
+    conversation("jean_paul", "bob");
+
+    AnnuaireConversations annuaire = new AnnuaireConversations(historique(), PREFIXE);
+    assertEquals(List.of("bob", "carol"), annuaire.partenaires("alice"));
+    assertEquals(List.of("alice", "jean_paul"), annuaire.partenaires("bob"));
+    assertTrue(annuaire.partenaires("personne").isEmpty());
+    assertEquals(3, lignesFichier().size());
+  }
+
+  @Test
+  public void ajoutsRelusAuDemarrage() throws IOException {
+    AnnuaireConversations annuaire = new AnnuaireConversations(historique(), PREFIXE);
+    annuaire.noter("alice", "bob");
+    annuaire.noter("bob", "alice");
+    annuaire.noter("alice", "dave");
+    assertEquals(List.of("alice\tbob", "alice\tdave"), lignesFichier());
+
+    AnnuaireConversations relu = new AnnuaireConversations(historique(), PREFIXE);
+    assertEquals(List.of("bob", "dave"), relu.partenaires("alice"));
+    assertEquals(List.of("alice"), relu.partenaires("dave"));
+  }
+
+  @Test
+  public void fichierAbimeNeLaissePasDePairesFausses() throws IOException {
+    conversation("alice", "bob");
+    // Des paires qui n'existent pas, puis une ligne abîmée
+    Files.write(historique().resolve(AnnuaireConversations.NOM_FICHIER),
+        "alice\tzoe\nmallory\tbob\nligne sans tabulation\n".getBytes(StandardCharsets.UTF_8));
+
+    AnnuaireConversations annuaire = new AnnuaireConversations(historique(), PREFIXE);
+    assertEquals(List.of("bob"), annuaire.partenaires("alice"));
+    assertEquals(List.of("alice"), annuaire.partenaires("bob"));
+    assertTrue(annuaire.partenaires("zoe").isEmpty());
+    assertEquals(List.of("alice\tbob"), lignesFichier());
+  }
+
+  @Test
+  public void reconstruireOublieCeQuiNEstPlusSurLeDisque() throws IOException {
+    AnnuaireConversations annuaire = new AnnuaireConversations(historique(), PREFIXE);
+    annuaire.noter("alice", "zoe");
+    conversation("alice", "bob");
+
+    annuaire.reconstruire();
+    assertEquals(List.of("bob"), annuaire.partenaires("alice"));
+    assertTrue(annuaire.partenaires("zoe").isEmpty());
+
+    // L'annuaire refait sert encore pour les ajouts
+    annuaire.noter("alice", "carol");
+    assertEquals(List.of("alice\tbob", "alice\tcarol"), lignesFichier());
+  }
+}
@@ -0,0 +1,127 @@
+package com.chat.model;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EcrivainGroupeTest {
+  private static final int CAPACITE = 4;
+
+  @Rule
+  public TemporaryFolder dossierTemporaire = new TemporaryFolder();
+
+  // Bloque le thread écrivain après son premier paquet, comme un disque qui
+  // ne suit plus
+  private final CountDownLatch bloque = new CountDownLatch(1);
+  private final CountDownLatch liberer = new CountDownLatch(1);
+
+  @After
+  public void debloquer() {
+    liberer.countDown();
+  }
+
+  private EcrivainGroupe ecrivainLent(Path dossier) {
+    return new EcrivainGroupe(dossier, "test", 4, (conversation, enregistrements) -> {
+      bloque.countDown();
+      try {
+        liberer.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, CAPACITE);
+  }
+
+  private static Enregistrement message(String texte) {
+    return new Enregistrement(System.currentTimeMillis(), "alice", null, texte);
+  }
+
+  private static List<String> relire(Path dossier) throws IOException {
+    List<String> textes = new ArrayList<>();
+    LectureJournal.parcourir(dossier, false, 1, e -> textes.add(e.message));
+    return textes;
+  }
+
+  private static List<String> attendus(int nombre) {
+    List<String> textes = new ArrayList<>();
+    for (int i = 0; i < nombre; i++) {
+      textes.add("m" + i);
+    }
+    return textes;
+  }
+
+  @Test(timeout = 10_000)
+  public void fileDebordeeSurLeDisqueSansRienPerdre() throws Exception {
+    Path dossier = dossierTemporaire.getRoot().toPath();
+    EcrivainGroupe ecrivain = ecrivainLent(dossier);
+    assertTrue(ecrivain.ajouter("general", message("m0")));
+    assertTrue(bloque.await(5, TimeUnit.SECONDS));
+
+    for (int i = 1; i < 50; i++) {
+      assertTrue(ecrivain.ajouter("general", message("m" + i)));
+    }
+    assertTrue(Files.exists(dossier.resolve("test.debordement")));
+    assertEquals(50, ecrivain.enAttente());
+
+    liberer.countDown();
+    ecrivain.synchroniser();
+    assertEquals(attendus(50), relire(dossier.resolve("general")));
+    assertEquals(0, ecrivain.enAttente());
+    assertEquals(0, ecrivain.perdus());
+    assertFalse(Files.exists(dossier.resolve("test.debordement")));
+
+    // Le débordement vidé, les messages repassent par la file
+    assertTrue(ecrivain.ajouter("general", message("m50")));
+    ecrivain.synchroniser();
+    assertEquals(attendus(51), relire(dossier.resolve("general")));
+    assertFalse(Files.exists(dossier.resolve("test.debordement")));
+  }
+
+  @Test(timeout = 10_000)
+  public void debordementReprisAuDemarrage() throws Exception {
+    Path dossier = dossierTemporaire.newFolder("avant").toPath();
+    EcrivainGroupe ecrivain = ecrivainLent(dossier);
+    ecrivain.ajouter("general", message("perdu de vue"));
+    assertTrue(bloque.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < CAPACITE; i++) {
+      ecrivain.ajouter("autre", message("dans la file"));
+    }
+    for (int i = 0; i < 10; i++) {
+      ecrivain.ajouter("general", message("m" + i));
+    }
+
+    // Un arrêt brutal : le fichier de débordement reste, avec un message coupé
+    // à la fin
+    Path apres = dossierTemporaire.newFolder("apres").toPath();
+    Path debordement = apres.resolve("test.debordement");
+    Files.copy(dossier.resolve("test.debordement"), debordement);
+    Files.write(debordement, new byte[] { 0, 0, 0, 7, 'g', 'e' }, StandardOpenOption.APPEND);
+
+    EcrivainGroupe repris = new EcrivainGroupe(apres, "test", 4, null, CAPACITE);
+    repris.synchroniser();
+    assertEquals(attendus(10), relire(apres.resolve("general")));
+    assertFalse(Files.exists(debordement));
+
+    repris.ajouter("general", message("m10"));
+    repris.synchroniser();
+    assertEquals(attendus(11), relire(apres.resolve("general")));
+  }
+
+  @Test(timeout = 10_000)
+  public void synchroniserSansRienADeposer() {
+    EcrivainGroupe ecrivain = new EcrivainGroupe(dossierTemporaire.getRoot().toPath(), "test", 4, null, CAPACITE);
+    ecrivain.synchroniser();
+    assertEquals(0, ecrivain.enAttente());
+  }
+}
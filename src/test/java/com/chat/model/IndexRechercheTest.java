@@ -0,0 +1,97 @@
+package com.chat.model;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexRechercheTest {
+  private static final BiPredicate<String, Set<String>> TOUT = (conversation, participants) -> true;
+
+  private IndexRecherche index;
+
+  @Before
+  public void preparer() {
+    index = new IndexRecherche();
+  }
+
+  private void indexer(String conversation, String destinataire, String... textes) {
+    List<Enregistrement> paquet = new ArrayList<>();
+    for (int i = 0; i < textes.length; i++) {
+      Enregistrement enregistrement = new Enregistrement(i, "alice", destinataire, textes[i]);
+      enregistrement.numero = i + 1;
+      paquet.add(enregistrement);
+    }
+    index.indexer(conversation, paquet);
+  }
+
+  private static List<String> trouves(List<IndexRecherche.Resultat> resultats) {
+    List<String> trouves = new ArrayList<>();
+    for (IndexRecherche.Resultat resultat : resultats) {
+      trouves.add(resultat.conversation + "#" + resultat.numero);
+    }
+    return trouves;
+  }
+
+  @Test
+  public void motsSansAccentsNiMajuscules() {
+    assertEquals(Set.of("cafe", "ete", "deja"), IndexRecherche.mots("Café, été... déjà ! à y"));
+  }
+
+  @Test
+  public void tousLesMotsDoiventEtreLa() {
+    indexer("general_chat", null, "bonjour tout le monde", "bonjour", "tout va bien", "Bonjour à TOUT le monde");
+
+    assertEquals(List.of("general_chat#4", "general_chat#1"),
+        trouves(index.chercher(IndexRecherche.mots("bonjour tout"), TOUT, 10)));
+    assertEquals(List.of("general_chat#3"), trouves(index.chercher(IndexRecherche.mots("bien"), TOUT, 10)));
+  }
+
+  @Test
+  public void motInconnu() {
+    indexer("general_chat", null, "bonjour");
+    assertTrue(index.chercher(IndexRecherche.mots("bonjour absent"), TOUT, 10).isEmpty());
+    assertTrue(index.chercher(IndexRecherche.mots(""), TOUT, 10).isEmpty());
+  }
+
+  @Test
+  public void lesPlusRecentsDAbordJusquALaLimite() {
+    indexer("general_chat", null, "pomme", "pomme", "poire", "pomme", "pomme");
+    assertEquals(List.of("general_chat#5", "general_chat#4"),
+        trouves(index.chercher(IndexRecherche.mots("pomme"), TOUT, 2)));
+  }
+
+  @Test
+  public void conversationsPriveesSeulementPourLeursParticipants() {
+    indexer("general_chat", null, "rendez-vous demain");
+    indexer("private_alice_bob", "bob", "rendez-vous secret");
+    indexer("group_amis", null, "rendez-vous au parc");
+
+    // Comme MessageStorage.rechercher : le général, ses groupes et ses
+    // conversations privées
+    BiPredicate<String, Set<String>> pourCarol = (conversation, participants) -> conversation.equals("general_chat")
+        || (conversation.startsWith("private_") && participants.contains("carol"));
+    BiPredicate<String, Set<String>> pourBob = (conversation, participants) -> conversation.equals("general_chat")
+        || conversation.equals("group_amis")
+        || (conversation.startsWith("private_") && participants.contains("bob"));
+
+    assertEquals(List.of("general_chat#1"), trouves(index.chercher(IndexRecherche.mots("rendez-vous"), pourCarol, 10)));
+    assertTrue(index.chercher(IndexRecherche.mots("secret"), pourCarol, 10).isEmpty());
+
+    List<String> pourBobTrouves = trouves(index.chercher(IndexRecherche.mots("rendez vous"), pourBob, 10));
+    assertEquals(3, pourBobTrouves.size());
+    assertTrue(pourBobTrouves.contains("private_alice_bob#1"));
+    assertTrue(pourBobTrouves.contains("group_amis#1"));
+  }
+
+  @Test
+  public void motsDansDesMessagesDifferentsNeSuffisentPas() {
+    indexer("general_chat", null, "chat", "chien");
+    assertTrue(index.chercher(IndexRecherche.mots("chat chien"), TOUT, 10).isEmpty());
+  }
+}
@@ -0,0 +1,170 @@
+package com.chat.model;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalConversationTest {
+  private static final long JOUR = 24 * 3_600_000L;
+  // Midi UTC : les messages d'un même test restent dans la même tranche
+  private static final long DEBUT = 20_000 * JOUR + JOUR / 2;
+
+  @Rule
+  public TemporaryFolder dossierTemporaire = new TemporaryFolder();
+
+  private static List<Enregistrement> messages(long horodatage, String... textes) {
+    List<Enregistrement> liste = new ArrayList<>();
+    for (String texte : textes) {
+      liste.add(new Enregistrement(horodatage, "alice", null, texte));
+    }
+    return liste;
+  }
+
+  private static List<Enregistrement> lireDepuis(Path dossier, long numero) throws IOException {
+    List<Enregistrement> lus = new ArrayList<>();
+    LectureJournal.parcourir(dossier, false, numero, e -> lus.add(e));
+    return lus;
+  }
+
+  private static List<String> textes(List<Enregistrement> enregistrements) {
+    List<String> textes = new ArrayList<>();
+    for (Enregistrement enregistrement : enregistrements) {
+      textes.add(enregistrement.message);
+    }
+    return textes;
+  }
+
+  @Test
+  public void numerosDonnesALEcriture() throws IOException {
+    Path dossier = dossierTemporaire.newFolder("general").toPath();
+    JournalConversation journal = new JournalConversation(dossier);
+    List<Enregistrement> paquet = messages(DEBUT, "un", "deux", "trois");
+    journal.ecrire(paquet);
+    journal.fermer();
+
+    assertEquals(1, paquet.get(0).numero);
+    assertEquals(3, paquet.get(2).numero);
+    assertEquals(3, LectureJournal.dernierNumero(dossier));
+    List<Enregistrement> lus = lireDepuis(dossier, 1);
+    assertEquals(List.of("un", "deux", "trois"), textes(lus));
+    assertEquals("alice", lus.get(0).expediteur);
+    assertEquals(DEBUT, lus.get(0).horodatage, 1000);
+  }
+
+  @Test
+  public void nouveauSegmentAuChangementDeTranche() throws IOException {
+    Path dossier = dossierTemporaire.newFolder("general").toPath();
+    JournalConversation journal = new JournalConversation(dossier);
+    journal.ecrire(messages(DEBUT, "un", "deux", "trois"));
+    journal.ecrire(messages(DEBUT + JOUR, "quatre", "cinq"));
+    journal.fermer();
+
+    List<SegmentJournal> segments = SegmentJournal.lister(dossier);
+    assertEquals(2, segments.size());
+    assertEquals(1, segments.get(0).premier);
+    assertEquals(4, segments.get(1).premier);
+    assertEquals(List.of("un", "deux", "trois", "quatre", "cinq"), textes(lireDepuis(dossier, 1)));
+    // Une page qui commence dans le premier segment continue dans le suivant
+    assertEquals(List.of("trois", "quatre", "cinq"), textes(lireDepuis(dossier, 3)));
+  }
+
+  @Test
+  public void repriseApresUnArret() throws IOException {
+    Path dossier = dossierTemporaire.newFolder("general").toPath();
+    JournalConversation journal = new JournalConversation(dossier);
+    journal.ecrire(messages(DEBUT, "un", "deux"));
+    journal.fermer();
+
+    journal = new JournalConversation(dossier);
+    List<Enregistrement> suite = messages(DEBUT, "trois");
+    journal.ecrire(suite);
+    journal.fermer();
+
+    assertEquals(3, suite.get(0).numero);
+    assertEquals(1, SegmentJournal.lister(dossier).size());
+    assertEquals(List.of("un", "deux", "trois"), textes(lireDepuis(dossier, 1)));
+  }
+
+  @Test
+  public void messageAMoitieEcritEnleveALaReprise() throws IOException {
+    Path dossier = dossierTemporaire.newFolder("general").toPath();
+    JournalConversation journal = new JournalConversation(dossier);
+    journal.ecrire(messages(DEBUT, "un", "deux"));
+    journal.fermer();
+
+    // Un arrêt brutal au milieu d'un message : le début de sa taille et
+    // quelques octets seulement
+    SegmentJournal segment = SegmentJournal.lister(dossier).get(0);
+    try (FileChannel canal = FileChannel.open(segment.fichier(), StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND)) {
+      canal.write(ByteBuffer.wrap(segment.binaire ? new byte[] { 0x40, 1, 2 } : "2026-01-0".getBytes()));
+    }
+    assertEquals(List.of("un", "deux"), textes(lireDepuis(dossier, 1)));
+
+    journal = new JournalConversation(dossier);
+    List<Enregistrement> suite = messages(DEBUT, "trois");
+    journal.ecrire(suite);
+    journal.fermer();
+
+    assertEquals(3, suite.get(0).numero);
+    assertEquals(List.of("un", "deux", "trois"), textes(lireDepuis(dossier, 1)));
+  }
+
+  @Test
+  public void pagesParNumero() throws IOException {
+    Path dossier = dossierTemporaire.newFolder("general").toPath();
+    JournalConversation journal = new JournalConversation(dossier);
+    for (int jour = 0; jour < 3; jour++) {
+      List<Enregistrement> paquet = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        paquet.add(new Enregistrement(DEBUT + jour * JOUR + i, "alice", null, "m" + (jour * 4 + i + 1)));
+      }
+      journal.ecrire(paquet);
+    }
+    journal.fermer();
+
+    assertEquals(12, LectureJournal.dernierNumero(dossier));
+    List<Enregistrement> page = new ArrayList<>();
+    LectureJournal.parcourir(dossier, false, 6, e -> page.add(e) && page.size() < 3);
+    assertEquals(List.of("m6", "m7", "m8"), textes(page));
+    assertEquals(6, page.get(0).numero);
+
+    List<Enregistrement> choisis = new ArrayList<>();
+    LectureJournal.lireNumeros(dossier, false, new long[] { 2, 5, 11 }, e -> choisis.add(e));
+    assertEquals(List.of("m2", "m5", "m11"), textes(choisis));
+    assertEquals(11, choisis.get(2).numero);
+  }
+
+  @Test
+  public void conversationPrivee() throws IOException {
+    Path dossier = dossierTemporaire.newFolder("private_alice_bob").toPath();
+    JournalConversation journal = new JournalConversation(dossier);
+    journal.ecrire(List.of(new Enregistrement(DEBUT, "alice", "bob", "coucou"),
+        new Enregistrement(DEBUT + 1, "bob", "alice", "salut")));
+    journal.fermer();
+
+    List<Enregistrement> lus = new ArrayList<>();
+    LectureJournal.parcourir(dossier, true, 1, e -> lus.add(e));
+    assertEquals(2, lus.size());
+    assertEquals("bob", lus.get(0).destinataire);
+    assertEquals("alice", lus.get(1).destinataire);
+    assertEquals("salut", lus.get(1).message);
+  }
+
+  @Test
+  public void journalVide() throws IOException {
+    Path dossier = dossierTemporaire.newFolder("vide").toPath();
+    assertEquals(0, LectureJournal.dernierNumero(dossier));
+    assertTrue(lireDepuis(dossier, 1).isEmpty());
+  }
+}
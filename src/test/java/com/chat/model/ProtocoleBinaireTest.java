@@ -0,0 +1,137 @@
+package com.chat.model;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ProtocoleBinaireTest {
+
+  private static ProtocoleBinaire.Lecteur lecteur(byte[] octets) {
+    return new ProtocoleBinaire.Lecteur(new ByteArrayInputStream(octets));
+  }
+
+  private static String repeter(String texte, int fois) {
+    StringBuilder sb = new StringBuilder(texte.length() * fois);
+    for (int i = 0; i < fois; i++) {
+      sb.append(texte);
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void allerRetour() throws IOException {
+    byte[] trame = ProtocoleBinaire.encoder(ProtocoleBinaire.PRIVE, "alice", "bob", "Salut ça va ? 👋");
+    ProtocoleBinaire.TrameRecue recue = lecteur(trame).lireTrame();
+    assertEquals(ProtocoleBinaire.PRIVE, recue.type);
+    assertArrayEquals(new String[] { "alice", "bob", "Salut ça va ? 👋" }, recue.champs);
+  }
+
+  @Test
+  public void champVideEtNul() throws IOException {
+    ProtocoleBinaire.TrameRecue recue = lecteur(ProtocoleBinaire.encoder(ProtocoleBinaire.GENERAL, "", null))
+        .lireTrame();
+    assertArrayEquals(new String[] { "", "" }, recue.champs);
+  }
+
+  @Test
+  public void textePuisBinaire() throws IOException {
+    ByteArrayOutputStream flux = new ByteArrayOutputStream();
+    flux.writeBytes("alice\r\n/binaire\n".getBytes(StandardCharsets.UTF_8));
+    flux.writeBytes(ProtocoleBinaire.encoder(ProtocoleBinaire.ENVOI_GENERAL, "bonjour"));
+    flux.writeBytes(ProtocoleBinaire.encoder(ProtocoleBinaire.ENVOI_GROUPE, "amis", "salut"));
+
+    ProtocoleBinaire.Lecteur lecteur = lecteur(flux.toByteArray());
+    assertEquals("alice", lecteur.lireLigne());
+    assertEquals(ProtocoleBinaire.COMMANDE_NEGOCIATION, lecteur.lireLigne());
+    assertArrayEquals(new String[] { "bonjour" }, lecteur.lireTrame().champs);
+    ProtocoleBinaire.TrameRecue groupe = lecteur.lireTrame();
+    assertEquals(ProtocoleBinaire.ENVOI_GROUPE, groupe.type);
+    assertArrayEquals(new String[] { "amis", "salut" }, groupe.champs);
+    assertNull(lecteur.lireTrame());
+  }
+
+  @Test
+  public void champTropLongCoupeEntreDeuxCaracteres() throws IOException {
+    // 2 octets par caractère : la limite tombe au milieu d'un "é"
+    String texte = repeter("é", 40_000);
+    byte[] trame = ProtocoleBinaire.encoder(ProtocoleBinaire.TEXTE, texte);
+    assertTrue(trame.length <= ProtocoleBinaire.TAILLE_ENTETE + ProtocoleBinaire.TAILLE_MAX_CORPS);
+
+    String recu = lecteur(trame).lireTrame().champs[0];
+    assertTrue(recu.length() > 0 && recu.length() < texte.length());
+    assertTrue(texte.startsWith(recu));
+    assertEquals(-1, recu.indexOf('\uFFFD'));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void trameTropLongueRefusee() {
+    String moitie = repeter("a", ProtocoleBinaire.TAILLE_MAX_CORPS / 2);
+    ProtocoleBinaire.encoder(ProtocoleBinaire.GENERAL, moitie, moitie);
+  }
+
+  @Test
+  public void messageALaLimiteTientDansUneTrame() throws IOException {
+    String nom = repeter("n", ProtocoleBinaire.TAILLE_MAX_NOM);
+    String message = repeter("m", ProtocoleBinaire.TAILLE_MAX_MESSAGE);
+    byte[] trame = ProtocoleBinaire.encoder(ProtocoleBinaire.PRIVE, nom, nom, message);
+    assertEquals(message, lecteur(trame).lireTrame().champs[2]);
+  }
+
+  @Test
+  public void grandeListeEnPlusieursTrames() throws IOException {
+    String[] noms = new String[10_000];
+    for (int i = 0; i < noms.length; i++) {
+      noms[i] = String.format("utilisateur_%08d", i);
+    }
+    byte[] octets = ProtocoleBinaire.encoderListe(ProtocoleBinaire.UTILISATEURS, ProtocoleBinaire.UTILISATEURS_SUITE,
+        noms);
+
+    ProtocoleBinaire.Lecteur lecteur = lecteur(octets);
+    List<String> recus = new ArrayList<>();
+    int trames = 0;
+    ProtocoleBinaire.TrameRecue trame;
+    while ((trame = lecteur.lireTrame()) != null) {
+      assertEquals(trames == 0 ? ProtocoleBinaire.UTILISATEURS : ProtocoleBinaire.UTILISATEURS_SUITE, trame.type);
+      recus.addAll(List.of(trame.champs));
+      trames++;
+    }
+    assertTrue(trames > 1);
+    assertEquals(List.of(noms), recus);
+  }
+
+  @Test
+  public void listeVideEnUneTrame() throws IOException {
+    byte[] octets = ProtocoleBinaire.encoderListe(ProtocoleBinaire.PRESENCE, ProtocoleBinaire.PRESENCE_SUITE,
+        new String[0]);
+    ProtocoleBinaire.Lecteur lecteur = lecteur(octets);
+    ProtocoleBinaire.TrameRecue trame = lecteur.lireTrame();
+    assertEquals(ProtocoleBinaire.PRESENCE, trame.type);
+    assertEquals(0, trame.champs.length);
+    assertNull(lecteur.lireTrame());
+  }
+
+  @Test(expected = IOException.class)
+  public void enteteTropGrandRefuse() throws IOException {
+    byte[] entete = { ProtocoleBinaire.TEXTE, 0x00, 0x01, 0x00, 0x01 };
+    lecteur(entete).lireTrame();
+  }
+
+  @Test(expected = IOException.class)
+  public void champPlusLongQueLaTrame() throws IOException {
+    byte[] trame = { ProtocoleBinaire.TEXTE, 0, 0, 0, 3, 0, 5, 'a' };
+    lecteur(trame).lireTrame();
+  }
+
+  @Test
+  public void tailleUtf8CommeGetBytes() {
+    String texte = "abc é € 👋 fin";
+    assertEquals(texte.getBytes(StandardCharsets.UTF_8).length, ProtocoleBinaire.tailleUtf8(texte));
+  }
+}
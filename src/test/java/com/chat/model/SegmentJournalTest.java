@@ -0,0 +1,87 @@
+package com.chat.model;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentJournalTest {
+  private static final long JOUR = 24 * 3_600_000L;
+  // Midi UTC, chaque jour a son segment (tranches de 24 h par défaut)
+  private static final long DEBUT = 20_000 * JOUR + JOUR / 2;
+
+  @Rule
+  public TemporaryFolder dossierTemporaire = new TemporaryFolder();
+
+  // Deux messages par jour pendant ce nombre de jours : numéros 1-2, 3-4...
+  private Path conversation(Path historique, String nom, int jours) throws IOException {
+    Path dossier = historique.resolve(nom);
+    JournalConversation journal = new JournalConversation(dossier);
+    for (int jour = 0; jour < jours; jour++) {
+      List<Enregistrement> paquet = new ArrayList<>();
+      paquet.add(new Enregistrement(DEBUT + jour * JOUR, "alice", null, "matin " + jour));
+      paquet.add(new Enregistrement(DEBUT + jour * JOUR + 1000, "bob", null, "soir " + jour));
+      journal.ecrire(paquet);
+    }
+    journal.fermer();
+    return dossier;
+  }
+
+  private static List<String> textes(Path dossier) throws IOException {
+    List<String> textes = new ArrayList<>();
+    LectureJournal.parcourir(dossier, false, 1, e -> textes.add(e.message));
+    return textes;
+  }
+
+  @Test
+  public void segmentsTropVieuxSupprimesEntiers() throws IOException {
+    Path historique = dossierTemporaire.getRoot().toPath();
+    Path dossier = conversation(historique, "general", 5);
+    assertEquals(5, SegmentJournal.lister(dossier).size());
+
+    // Deux jours gardés le jour 4 : les jours 0 et 1 partent
+    Map<String, Long> restants = SegmentJournal.supprimerAnciens(historique, c -> 2, DEBUT + 4 * JOUR,
+        c -> false);
+    assertEquals(Map.of("general", 5L), restants);
+    assertEquals(3, SegmentJournal.lister(dossier).size());
+    assertEquals(List.of("matin 2", "soir 2", "matin 3", "soir 3", "matin 4", "soir 4"), textes(dossier));
+
+    // Un deuxième passage n'a plus rien à faire
+    assertTrue(SegmentJournal.supprimerAnciens(historique, c -> 2, DEBUT + 4 * JOUR, c -> false).isEmpty());
+  }
+
+  @Test
+  public void dernierSegmentJamaisSupprime() throws IOException {
+    Path historique = dossierTemporaire.getRoot().toPath();
+    Path dossier = conversation(historique, "general", 3);
+
+    // Tout est trop vieux, mais l'écrivain ajoute encore dans le dernier
+    Map<String, Long> restants = SegmentJournal.supprimerAnciens(historique, c -> 1, DEBUT + 100 * JOUR,
+        c -> false);
+    assertEquals(Map.of("general", 5L), restants);
+    assertEquals(List.of("matin 2", "soir 2"), textes(dossier));
+    assertEquals(6, LectureJournal.dernierNumero(dossier));
+  }
+
+  @Test
+  public void chaqueConversationASaDuree() throws IOException {
+    Path historique = dossierTemporaire.getRoot().toPath();
+    Path general = conversation(historique, "general", 4);
+    Path groupe = conversation(historique, "group_amis", 4);
+
+    // 0 : on garde tout. Pour general, le jour 2 finit après la limite et reste
+    Map<String, Long> restants = SegmentJournal.supprimerAnciens(historique,
+        c -> c.startsWith("group_") ? 0 : 1, DEBUT + 3 * JOUR, c -> false);
+    assertEquals(Map.of("general", 5L), restants);
+    assertEquals(2, SegmentJournal.lister(general).size());
+    assertEquals(4, SegmentJournal.lister(groupe).size());
+    assertEquals(8, textes(groupe).size());
+  }
+}
@@ -0,0 +1,109 @@
+package com.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FileSortanteTest {
+
+    private static List<String> textes(FileSortante<Trame> file) {
+        List<Trame> trames = new ArrayList<>();
+        file.drainerVers(trames);
+        List<String> textes = new ArrayList<>();
+        for (Trame trame : trames) {
+            textes.add(trame.getTexte());
+        }
+        return textes;
+    }
+
+    @Test
+    public void pleineSansPolitiqueQuiFaitDeLaPlace() {
+        for (PolitiqueDebordement politique : new PolitiqueDebordement[] { PolitiqueDebordement.DECONNECTER,
+                PolitiqueDebordement.STOCKER_HORS_LIGNE }) {
+            FileSortante<Trame> file = new FileSortante<>(2, politique, Trame::estMessage);
+            assertTrue(file.deposer(Trame.general("alice", "un")));
+            assertTrue(file.deposer(Trame.general("alice", "deux")));
+            assertFalse(file.deposer(Trame.general("alice", "trois")));
+            assertEquals(0, file.getSupprimes());
+            assertEquals(List.of("alice : un", "alice : deux"), textes(file));
+        }
+    }
+
+    @Test
+    public void plusAncienMessageJete() {
+        FileSortante<Trame> file = new FileSortante<>(3, PolitiqueDebordement.SUPPRIMER_PLUS_ANCIEN,
+                Trame::estMessage);
+        file.deposer(Trame.texte("Bienvenue alice !"));
+        file.deposer(Trame.general("bob", "un"));
+        file.deposer(Trame.prive("bob", "alice", "deux"));
+        assertTrue(file.deposer(Trame.groupe("amis", "bob", "trois")));
+        assertTrue(file.deposer(Trame.general("bob", "quatre")));
+
+        // La réponse reste, les deux plus vieux messages de chat sont partis
+        assertEquals(2, file.getSupprimes());
+        assertEquals(List.of("Bienvenue alice !", "[amis] bob : trois", "bob : quatre"), textes(file));
+    }
+
+    @Test
+    public void reponsesJamaisJetees() {
+        FileSortante<Trame> file = new FileSortante<>(2, PolitiqueDebordement.SUPPRIMER_PLUS_ANCIEN,
+                Trame::estMessage);
+        assertTrue(file.deposer(Trame.basculeBinaire()));
+        assertTrue(file.deposer(Trame.lot(List.of("ligne 1", "ligne 2"))));
+        // Rien de jetable : la file est pleine, même pour un message
+        assertFalse(file.deposer(Trame.general("bob", "un")));
+        assertFalse(file.deposer(Trame.texte("Utilisateurs connectés : bob")));
+        assertEquals(0, file.getSupprimes());
+        assertEquals(2, file.taille());
+    }
+
+    @Test
+    public void fermeeLEcrivainFinitCeQuiReste() throws InterruptedException {
+        FileSortante<String> file = new FileSortante<>(4, PolitiqueDebordement.SUPPRIMER_PLUS_ANCIEN, e -> true);
+        file.deposer("un");
+        file.deposer("deux");
+        file.fermer();
+        assertFalse(file.deposer("trois"));
+        assertEquals("un", file.prendre());
+        assertEquals("deux", file.prendre());
+        assertNull(file.prendre());
+    }
+
+    @Test
+    public void videeRienNePart() throws InterruptedException {
+        FileSortante<String> file = new FileSortante<>(4, PolitiqueDebordement.SUPPRIMER_PLUS_ANCIEN, e -> true);
+        file.deposer("un");
+        file.vider();
+        assertTrue(file.estVide());
+        assertNull(file.prendre());
+        assertFalse(file.deposer("deux"));
+    }
+
+    @Test(timeout = 5_000)
+    public void ecrivainReveilleParUnDepot() throws Exception {
+        FileSortante<String> file = new FileSortante<>(4, PolitiqueDebordement.SUPPRIMER_PLUS_ANCIEN, e -> true);
+        assertFalse(file.attendre(20, TimeUnit.MILLISECONDS));
+
+        List<String> recus = new ArrayList<>();
+        Thread ecrivain = new Thread(() -> {
+            try {
+                String element;
+                while ((element = file.prendre()) != null) {
+                    recus.add(element);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ecrivain.start();
+        file.deposer("un");
+        file.deposer("deux");
+        file.fermer();
+        ecrivain.join();
+        assertEquals(List.of("un", "deux"), recus);
+    }
+}
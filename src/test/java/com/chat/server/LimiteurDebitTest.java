@@ -0,0 +1,85 @@
+package com.chat.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LimiteurDebitTest {
+    private static final long SECONDE = 1_000_000_000L;
+
+    @Test
+    public void rafalePuisRefus() {
+        long debut = System.nanoTime();
+        SeauJetons seau = new SeauJetons(2, 3, debut);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, seau.manque(debut));
+            seau.consommer();
+        }
+        // 2 jetons par seconde : le prochain dans une demi-seconde
+        assertEquals(SECONDE / 2, seau.manque(debut), 1000);
+        assertEquals(SECONDE / 4, seau.manque(debut + SECONDE / 4), 1000);
+    }
+
+    @Test
+    public void seRempliJusquASaCapacite() {
+        long debut = System.nanoTime();
+        SeauJetons seau = new SeauJetons(2, 3, debut);
+        for (int i = 0; i < 3; i++) {
+            seau.consommer();
+        }
+        assertEquals(0, seau.manque(debut + SECONDE / 2));
+        seau.consommer();
+        assertTrue(seau.manque(debut + SECONDE / 2) > 0);
+
+        // Une longue pause ne donne pas plus que la capacité
+        long tard = debut + 60 * SECONDE;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, seau.manque(tard));
+            seau.consommer();
+        }
+        assertTrue(seau.manque(tard) > 0);
+    }
+
+    @Test
+    public void limitesParDefaut() {
+        LimiteurDebit limiteur = new LimiteurDebit();
+        // Rafale de 10 pour les messages à tous
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiteur.attente(LimiteurDebit.Categorie.DIFFUSION));
+        }
+        long attente = limiteur.attente(LimiteurDebit.Categorie.DIFFUSION);
+        assertTrue(attente > 0 && attente <= SECONDE / 5);
+
+        // Les autres seaux ne sont pas touchés, seul le total a servi
+        assertEquals(0, limiteur.attente(LimiteurDebit.Categorie.PRIVE));
+        assertEquals(0, limiteur.attente(LimiteurDebit.Categorie.LISTE));
+    }
+
+    @Test
+    public void refusNeConsommeRien() {
+        LimiteurDebit limiteur = new LimiteurDebit();
+        for (int i = 0; i < 10; i++) {
+            limiteur.attente(LimiteurDebit.Categorie.LISTE);
+        }
+        // Les demandes refusées ne vident pas le seau général : il reste 30 des
+        // 40 jetons pour les messages privés (rafale de 20)
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiteur.attente(LimiteurDebit.Categorie.LISTE) > 0);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(0, limiteur.attente(LimiteurDebit.Categorie.PRIVE));
+        }
+        assertTrue(limiteur.attente(LimiteurDebit.Categorie.PRIVE) > 0);
+    }
+
+    @Test
+    public void seauGeneralPourToutLeReste() {
+        LimiteurDebit limiteur = new LimiteurDebit();
+        // 40 jetons au total, sans seau propre pour les autres commandes
+        for (int i = 0; i < 40; i++) {
+            assertEquals(0, limiteur.attente(null));
+        }
+        assertTrue(limiteur.attente(null) > 0);
+        assertTrue(limiteur.attente(LimiteurDebit.Categorie.PRIVE) > 0);
+    }
+}
@@ -0,0 +1,199 @@
+package com.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RelectureHorsLigneTest {
+    // -Dchat.horsligne.lot par défaut
+    private static final int LOT = 100;
+
+    @Rule
+    public TemporaryFolder dossierTemporaire = new TemporaryFolder();
+
+    // Garde ce qui part vers le client, ou refuse tout comme une file pleine
+    private static class ConnexionTest implements Connexion {
+        final List<Trame> envoyees = new ArrayList<>();
+        boolean pleine = false;
+
+        @Override
+        public boolean envoyer(Trame trame) {
+            if (pleine) {
+                return false;
+            }
+            envoyees.add(trame);
+            return true;
+        }
+
+        @Override
+        public void fermer() {
+        }
+
+        @Override
+        public void couper() {
+        }
+
+        @Override
+        public boolean estFermee() {
+            return false;
+        }
+
+        @Override
+        public int profondeurFile() {
+            return envoyees.size();
+        }
+
+        @Override
+        public long messagesPerdus() {
+            return 0;
+        }
+
+        // Les lignes de la dernière trame envoyée
+        List<String> derniere() {
+            return List.of(envoyees.get(envoyees.size() - 1).getTexte().split("\n"));
+        }
+    }
+
+    private Path journal() {
+        return dossierTemporaire.getRoot().toPath().resolve("messages_offline.journal");
+    }
+
+    private StockHorsLigne charger() {
+        StockHorsLigne stock = new StockHorsLigne(journal(),
+                dossierTemporaire.getRoot().toPath().resolve("messages_offline.txt"));
+        stock.charger();
+        return stock;
+    }
+
+    private static RelectureHorsLigne relecture(ConnexionTest connexion, StockHorsLigne stock) {
+        return new RelectureHorsLigne(new ClientHandler(connexion, PolitiqueDebordement.SUPPRIMER_PLUS_ANCIEN),
+                "bob", stock);
+    }
+
+    private static void remplir(StockHorsLigne stock, int debut, int fin) {
+        for (int i = debut; i <= fin; i++) {
+            stock.ajouter("bob", "m" + i);
+        }
+    }
+
+    private static List<String> lot(String entete, int debut, int fin) {
+        List<String> lignes = new ArrayList<>();
+        if (entete != null) {
+            lignes.add(entete);
+        }
+        for (int i = debut; i <= fin; i++) {
+            lignes.add("m" + i);
+        }
+        lignes.add(RelectureHorsLigne.MARQUE_ACQUITTEMENT + fin);
+        return lignes;
+    }
+
+    // Le journal est écrit par un autre thread
+    private void attendreJournal(String ligne) throws Exception {
+        long limite = System.nanoTime() + 5_000_000_000L;
+        while (!Files.exists(journal())
+                || !Files.readAllLines(journal(), StandardCharsets.UTF_8).contains(ligne)) {
+            if (System.nanoTime() > limite) {
+                fail("Pas de " + ligne + " dans le journal");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void unLotALaFoisChacunApresSonAccuse() throws IOException {
+        StockHorsLigne stock = charger();
+        remplir(stock, 1, 250);
+        ConnexionTest connexion = new ConnexionTest();
+        RelectureHorsLigne relecture = relecture(connexion, stock);
+
+        relecture.demarrer();
+        assertEquals(1, connexion.envoyees.size());
+        assertEquals(lot("=== 250 message(s) en attente ===", 1, LOT), connexion.derniere());
+
+        // Rien ne part tant que le lot n'est pas acquitté, et un mauvais numéro
+        // ne compte pas
+        relecture.demarrer();
+        relecture.acquitter(LOT - 1);
+        assertEquals(1, connexion.envoyees.size());
+        assertEquals(250, stock.nonAcquittes("bob").size());
+
+        relecture.acquitter(LOT);
+        assertEquals(lot(null, LOT + 1, 2 * LOT), connexion.derniere());
+        assertEquals(150, stock.nonAcquittes("bob").size());
+        relecture.acquitter(2 * LOT);
+        assertEquals(lot(null, 2 * LOT + 1, 250), connexion.derniere());
+        relecture.acquitter(250);
+        assertEquals(List.of("=== Fin des messages ==="), connexion.derniere());
+        assertTrue(stock.nonAcquittes("bob").isEmpty());
+
+        // Un accusé en double ne renvoie rien
+        relecture.acquitter(250);
+        assertEquals(4, connexion.envoyees.size());
+    }
+
+    @Test
+    public void reprendApresLeDernierLotAcquitte() throws Exception {
+        StockHorsLigne stock = charger();
+        remplir(stock, 1, 250);
+        RelectureHorsLigne relecture = relecture(new ConnexionTest(), stock);
+        relecture.demarrer();
+        relecture.acquitter(LOT);
+        // Le deuxième lot est parti mais la connexion tombe avant son accusé
+
+        ConnexionTest reconnexion = new ConnexionTest();
+        relecture(reconnexion, stock).demarrer();
+        assertEquals(lot("=== 150 message(s) en attente ===", LOT + 1, 2 * LOT), reconnexion.derniere());
+
+        // Même chose après un redémarrage du serveur
+        attendreJournal("-|bob|" + LOT);
+        ConnexionTest apresRedemarrage = new ConnexionTest();
+        relecture(apresRedemarrage, charger()).demarrer();
+        assertEquals(lot("=== 150 message(s) en attente ===", LOT + 1, 2 * LOT), apresRedemarrage.derniere());
+    }
+
+    @Test
+    public void filePleineRienNEstRetire() throws IOException {
+        StockHorsLigne stock = charger();
+        remplir(stock, 1, 3);
+        ConnexionTest connexion = new ConnexionTest();
+        connexion.pleine = true;
+        RelectureHorsLigne relecture = relecture(connexion, stock);
+
+        relecture.demarrer();
+        assertTrue(connexion.envoyees.isEmpty());
+        assertEquals(3, stock.nonAcquittes("bob").size());
+
+        // La relecture est relancée une fois la file vidée
+        connexion.pleine = false;
+        relecture.demarrer();
+        assertEquals(lot("=== 3 message(s) en attente ===", 1, 3), connexion.derniere());
+    }
+
+    @Test
+    public void messagesArrivesPendantLaRelecture() throws IOException {
+        StockHorsLigne stock = charger();
+        remplir(stock, 1, 2);
+        ConnexionTest connexion = new ConnexionTest();
+        RelectureHorsLigne relecture = relecture(connexion, stock);
+        relecture.demarrer();
+        remplir(stock, 3, 4);
+
+        relecture.acquitter(2);
+        List<Trame> envoyees = connexion.envoyees;
+        assertEquals(List.of("=== Fin des messages ==="),
+                List.of(envoyees.get(envoyees.size() - 2).getTexte().split("\n")));
+        assertEquals(lot("=== 2 message(s) en attente ===", 3, 4), connexion.derniere());
+        relecture.acquitter(4);
+        assertTrue(stock.nonAcquittes("bob").isEmpty());
+    }
+}
@@ -0,0 +1,261 @@
+package com.chat.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StockHorsLigneTest {
+    // Au-delà de chat.horsligne.compactage (1000 par défaut) lignes inutiles
+    private static final int POUR_COMPACTER = 1200;
+
+    @Rule
+    public TemporaryFolder dossierTemporaire = new TemporaryFolder();
+
+    private Path journal() {
+        return dossierTemporaire.getRoot().toPath().resolve("messages_offline.journal");
+    }
+
+    private StockHorsLigne charger() {
+        StockHorsLigne stock = new StockHorsLigne(journal(),
+                dossierTemporaire.getRoot().toPath().resolve("messages_offline.txt"));
+        stock.charger();
+        return stock;
+    }
+
+    private StockHorsLigne charger(long budgetMemoire) {
+        StockHorsLigne stock = new StockHorsLigne(journal(),
+                dossierTemporaire.getRoot().toPath().resolve("messages_offline.txt"), budgetMemoire);
+        stock.charger();
+        return stock;
+    }
+
+    private Path dossierSegments() {
+        return dossierTemporaire.getRoot().toPath().resolve("messages_offline.segments");
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (Files.isDirectory(dossierSegments())) {
+            try (DirectoryStream<Path> fichiers = Files.newDirectoryStream(dossierSegments(), "*.seg")) {
+                fichiers.forEach(segments::add);
+            }
+        }
+        return segments;
+    }
+
+    // Le passage sur le disque est fait par le thread écrivain
+    private static void attendre(BooleanSupplier condition) throws InterruptedException {
+        long limite = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > limite) {
+                fail("Condition pas atteinte à temps");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    // Selon le moment où l'écrivain passe, une partie seulement des plus vieux
+    // messages part sur le disque : il suffit de repasser sous le budget
+    private static void attendreSousLeBudget(StockHorsLigne stock) throws InterruptedException {
+        attendre(() -> stock.statistiques().getOctetsEnMemoire() <= 8 * 1024
+                && stock.statistiques().getSurDisque() > 0);
+    }
+
+    private static List<String> numerotes(int nombre) {
+        List<String> messages = new ArrayList<>();
+        for (int i = 1; i <= nombre; i++) {
+            messages.add("message numéro " + i);
+        }
+        return messages;
+    }
+
+    private static List<String> lignes(Path fichier) throws IOException {
+        return Files.exists(fichier) ? Files.readAllLines(fichier, StandardCharsets.UTF_8) : Collections.emptyList();
+    }
+
+    // Le journal est écrit par un autre thread
+    private void attendreJournal(Predicate<List<String>> condition) throws Exception {
+        long limite = System.nanoTime() + 5_000_000_000L;
+        while (!condition.test(lignes(journal()))) {
+            if (System.nanoTime() > limite) {
+                fail("Journal pas dans l'état attendu : " + lignes(journal()));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean contient(List<String> lignes, String debut) {
+        return lignes.stream().anyMatch(ligne -> ligne.startsWith(debut));
+    }
+
+    // Dépose puis remet assez de messages pour que le journal soit compacté
+    private static void remplirEtVider(StockHorsLigne stock, String destinataire) throws IOException {
+        for (int i = 0; i < POUR_COMPACTER / 2; i++) {
+            stock.ajouter(destinataire, "message " + i);
+        }
+        assertEquals(POUR_COMPACTER / 2, stock.prendreTout(destinataire).size());
+    }
+
+    @Test
+    public void messagesDansLOrdreEtPrisUneSeuleFois() throws IOException {
+        StockHorsLigne stock = charger();
+        assertTrue(stock.ajouter("bob", "un"));
+        assertTrue(stock.ajouter("bob", "deux"));
+        assertTrue(stock.ajouter("carol", "trois"));
+
+        assertEquals(List.of("un", "deux"), stock.prendreTout("bob"));
+        assertTrue(stock.prendreTout("bob").isEmpty());
+        assertTrue(stock.prendreTout("personne").isEmpty());
+        assertEquals(1, stock.statistiques().getMessages());
+    }
+
+    @Test
+    public void relectureDuJournal() throws Exception {
+        StockHorsLigne stock = charger();
+        stock.ajouter("bob", "un");
+        stock.ajouter("bob", "deux|avec\nde quoi casser la ligne\\");
+        stock.ajouter("carol", "trois");
+        stock.prendreTout("carol");
+        attendreJournal(lignes -> contient(lignes, "-|carol|"));
+
+        StockHorsLigne relu = charger();
+        assertEquals(List.of("un", "deux|avec\nde quoi casser la ligne\\"), relu.prendreTout("bob"));
+        assertTrue(relu.prendreTout("carol").isEmpty());
+    }
+
+    @Test
+    public void accusesDeReception() throws Exception {
+        StockHorsLigne stock = charger();
+        for (int i = 1; i <= 5; i++) {
+            stock.ajouter("bob", "m" + i);
+        }
+        List<StockHorsLigne.Noeud> lot = stock.nonAcquittes("bob").subList(0, 3);
+        stock.acquitter("bob", lot);
+        assertEquals(2, stock.nonAcquittes("bob").size());
+        attendreJournal(lignes -> contient(lignes, "-|bob|3"));
+
+        assertEquals(List.of("m4", "m5"), charger().prendreTout("bob"));
+    }
+
+    @Test
+    public void compactageGardeSeulementCeQuiAttend() throws Exception {
+        StockHorsLigne stock = charger();
+        stock.ajouter("carol", "pour plus tard");
+        remplirEtVider(stock, "bob");
+        remplirEtVider(stock, "bob");
+        attendreJournal(lignes -> lignes.size() < 10 && contient(lignes, "-|bob|"));
+
+        List<String> lignes = lignes(journal());
+        assertTrue(lignes.toString(), contient(lignes, "-|bob|" + POUR_COMPACTER));
+        assertTrue(lignes.toString(), contient(lignes, "+|1|carol|pour plus tard|"));
+
+        StockHorsLigne relu = charger();
+        assertTrue(relu.prendreTout("bob").isEmpty());
+        assertEquals(List.of("pour plus tard"), relu.prendreTout("carol"));
+    }
+
+    @Test
+    public void pileVideOublieeAuCompactageSuivant() throws Exception {
+        StockHorsLigne stock = charger();
+        remplirEtVider(stock, "bob");
+        remplirEtVider(stock, "bob");
+        attendreJournal(lignes -> lignes.size() == 1 && contient(lignes, "-|bob|"));
+
+        // Deuxième compactage sans que bob ait reçu quoi que ce soit : sa pile et
+        // sa ligne disparaissent
+        remplirEtVider(stock, "carol");
+        remplirEtVider(stock, "carol");
+        attendreJournal(lignes -> lignes.size() == 1 && contient(lignes, "-|carol|"));
+
+        // Une nouvelle pile recommence à 1, la relecture ne la confond pas avec
+        // l'ancienne
+        stock.ajouter("bob", "nouveau");
+        attendreJournal(lignes -> contient(lignes, "+|1|bob|nouveau|"));
+        assertEquals(List.of("nouveau"), charger().prendreTout("bob"));
+    }
+
+    @Test
+    public void ancienFichierRepris() throws Exception {
+        Path ancien = dossierTemporaire.getRoot().toPath().resolve("messages_offline.txt");
+        Files.write(ancien, List.of("bob|un", "bob|deux", "carol|trois"), StandardCharsets.UTF_8);
+
+        StockHorsLigne stock = charger();
+        assertFalse(Files.exists(ancien));
+        assertEquals(List.of("un", "deux"), stock.prendreTout("bob"));
+        assertEquals(List.of("trois"), charger().prendreTout("carol"));
+    }
+
+    @Test
+    public void auDelaDuBudgetLesPlusVieuxPassentSurLeDisque() throws Exception {
+        StockHorsLigne stock = charger(8 * 1024);
+        for (String message : numerotes(300)) {
+            assertTrue(stock.ajouter("bob", message));
+        }
+        attendreSousLeBudget(stock);
+        assertFalse(segments().isEmpty());
+        assertEquals(300, stock.statistiques().getMessages());
+
+        List<String> nonAcquittes = new ArrayList<>();
+        for (StockHorsLigne.Noeud noeud : stock.nonAcquittes("bob")) {
+            nonAcquittes.add(noeud.message);
+        }
+        assertEquals(numerotes(300), nonAcquittes);
+
+        assertEquals(numerotes(300), stock.prendreTout("bob"));
+        assertEquals(0, stock.statistiques().getSurDisque());
+        assertTrue(segments().isEmpty());
+    }
+
+    @Test
+    public void segmentIllisibleRienNEstRetire() throws Exception {
+        StockHorsLigne stock = charger(8 * 1024);
+        for (String message : numerotes(300)) {
+            stock.ajouter("bob", message);
+        }
+        attendreSousLeBudget(stock);
+
+        Path segment = segments().get(0);
+        Path deCote = segment.resolveSibling("de_cote");
+        Files.move(segment, deCote);
+        try {
+            stock.prendreTout("bob");
+            fail("Le segment manquant aurait dû être signalé");
+        } catch (IOException e) {
+            // Attendu
+        }
+        assertEquals(300, stock.statistiques().getMessages());
+
+        // Le segment revenu, tout est remis
+        Files.move(deCote, segment);
+        assertEquals(numerotes(300), stock.prendreTout("bob"));
+    }
+
+    @Test
+    public void segmentsRefaitsDepuisLeJournalAuDemarrage() throws Exception {
+        StockHorsLigne stock = charger(8 * 1024);
+        for (String message : numerotes(300)) {
+            stock.ajouter("bob", message);
+        }
+        attendreSousLeBudget(stock);
+        attendreJournal(lignes -> lignes.size() == 300);
+
+        // Au démarrage tout est relu puis remis sous le budget d'un coup : seuls
+        // les 50 plus récents (-Dchat.horsligne.recents) restent en mémoire
+        StockHorsLigne relu = charger(8 * 1024);
+        assertEquals(250, relu.statistiques().getSurDisque());
+        assertEquals(numerotes(300), relu.prendreTout("bob"));
+    }
+}
@@ -0,0 +1,63 @@
+package com.chat.server;
+
+import static org.junit.Assert.*;
+
+import com.chat.model.ProtocoleBinaire;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TrameTest {
+
+    @Test
+    public void encodeeUneSeuleFoisPourTousLesDestinataires() {
+        Trame trame = Trame.general("alice", "salut");
+        assertSame(trame.octets(false), trame.octets(false));
+        assertSame(trame.octets(true), trame.octets(true));
+        assertArrayEquals("alice : salut\n".getBytes(StandardCharsets.UTF_8), trame.octets(false));
+
+        // Chaque destinataire a sa position, mais les octets sont les mêmes
+        ByteBuffer premier = trame.tampon(true);
+        ByteBuffer second = trame.tampon(true);
+        premier.get();
+        assertEquals(0, second.position());
+        assertSame(premier.array(), second.array());
+    }
+
+    @Test
+    public void memesChampsEnBinaire() throws IOException {
+        Trame trame = Trame.prive("alice", "bob", "coucou");
+        assertEquals("[PRIVÉ] alice → bob : coucou", trame.getTexte());
+        ProtocoleBinaire.TrameRecue recue = new ProtocoleBinaire.Lecteur(
+                new ByteArrayInputStream(trame.octets(true))).lireTrame();
+        assertEquals(ProtocoleBinaire.PRIVE, recue.type);
+        assertArrayEquals(new String[] { "alice", "bob", "coucou" }, recue.champs);
+    }
+
+    @Test
+    public void lotCommeLigneParLigne() {
+        Trame lot = Trame.lot(List.of("un", "deux"));
+        assertEquals("un\ndeux\n", new String(lot.octets(false), StandardCharsets.UTF_8));
+
+        byte[] un = ProtocoleBinaire.encoder(ProtocoleBinaire.TEXTE, "un");
+        byte[] deux = ProtocoleBinaire.encoder(ProtocoleBinaire.TEXTE, "deux");
+        ByteBuffer attendu = ByteBuffer.allocate(un.length + deux.length).put(un).put(deux);
+        assertArrayEquals(attendu.array(), lot.octets(true));
+    }
+
+    @Test
+    public void seulsLesMessagesDeChatSontJetables() {
+        assertTrue(Trame.general("alice", "salut").estMessage());
+        assertTrue(Trame.prive("alice", "bob", "salut").estMessage());
+        assertTrue(Trame.groupe("amis", "alice", "salut").estMessage());
+        assertFalse(Trame.texte("Bienvenue !").estMessage());
+        assertFalse(Trame.lot(List.of("un")).estMessage());
+        assertFalse(Trame.basculeBinaire().estMessage());
+        assertFalse(Trame.arrivee("alice").estMessage());
+    }
+}